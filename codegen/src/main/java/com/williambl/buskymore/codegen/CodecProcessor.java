@@ -0,0 +1,41 @@
+package com.williambl.buskymore.codegen;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Writes the codec class for each record annotated with {@link GenerateCodecs}.
+ */
+@SupportedAnnotationTypes("com.williambl.buskymore.codegen.GenerateCodecs")
+public class CodecProcessor extends AbstractProcessor {
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (var element : roundEnv.getElementsAnnotatedWith(GenerateCodecs.class)) {
+            if (element.getKind() != ElementKind.RECORD) {
+                this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "@GenerateCodecs only works on records", element);
+                continue;
+            }
+            var root = (TypeElement) element;
+            try {
+                new CodecWriter(this.processingEnv, root, root.getAnnotation(GenerateCodecs.class).value()).write();
+            } catch (CodecWriter.UnsupportedTypeException e) {
+                this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, e.getMessage(), e.where());
+            } catch (IOException e) {
+                this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Couldn't write codecs: " + e, element);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,587 @@
+package com.williambl.buskymore.codegen;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.RecordComponentElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeMirror;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Works out the shape of a record and everything reachable from it, then writes out straight-line code to parse and
+ * print it as bini, and to read it from json.
+ * <p>For every record or sealed interface {@code X} the generated class has {@code parseX} and {@code unparseX} for
+ * bini and {@code readX} for json, plus {@code parseBini}, {@code unparseBini} and {@code readJson} for the root.</p>
+ */
+final class CodecWriter {
+    private static final String FISP = "com.williambl.buskymore.PostFilter.Fisp";
+    private static final String BINI = "com.williambl.buskymore.Bini";
+
+    private final ProcessingEnvironment env;
+    private final TypeElement root;
+    private final String packageName;
+    private final String className;
+    // every record and sealed interface we need code for, and the name its methods get
+    private final Map<TypeElement, String> names = new LinkedHashMap<>();
+    private final Map<TypeElement, List<Component>> components = new LinkedHashMap<>();
+    private final StringBuilder out = new StringBuilder(16384);
+
+    CodecWriter(ProcessingEnvironment env, TypeElement root, String className) {
+        this.env = env;
+        this.root = root;
+        this.packageName = env.getElementUtils().getPackageOf(root).getQualifiedName().toString();
+        this.className = className;
+    }
+
+    static final class UnsupportedTypeException extends RuntimeException {
+        private final Element where;
+
+        UnsupportedTypeException(String message, Element where) {
+            super(message);
+            this.where = where;
+        }
+
+        Element where() {
+            return this.where;
+        }
+    }
+
+    enum Atomic {
+        STRING("%s.trim()", "%s.getAsString()"),
+        INT("Integer.parseInt(%s.trim())", "%s.getAsInt()"),
+        LONG("Long.parseLong(%s.trim())", "%s.getAsLong()"),
+        FLOAT("Float.parseFloat(%s.trim())", "%s.getAsFloat()"),
+        DOUBLE("Double.parseDouble(%s.trim())", "%s.getAsDouble()"),
+        BOOLEAN("Boolean.parseBoolean(%s.trim())", "%s.getAsBoolean()"),
+        FISP(CodecWriter.FISP + ".parse(%s.trim())", CodecWriter.FISP + ".fromJson(%s)");
+
+        private final String fromBini;
+        private final String fromJson;
+
+        Atomic(String fromBini, String fromJson) {
+            this.fromBini = fromBini;
+            this.fromJson = fromJson;
+        }
+    }
+
+    sealed interface Shape {
+        record AtomicShape(Atomic atomic) implements Shape {}
+        record RecordShape(TypeElement element) implements Shape {}
+        record SealedShape(TypeElement element, List<TypeElement> subtypes) implements Shape {}
+        record CollectionShape(boolean set, Shape element) implements Shape {}
+        record OptionalShape(Shape element) implements Shape {}
+    }
+
+    record Component(String name, String type, Shape shape) {
+        // what's inside, for optionals
+        Shape value() {
+            return this.shape instanceof Shape.OptionalShape(Shape element) ? element : this.shape;
+        }
+
+        boolean isOptional() {
+            return this.shape instanceof Shape.OptionalShape;
+        }
+
+        boolean isAtomic() {
+            return this.value() instanceof Shape.AtomicShape;
+        }
+
+        boolean isCollection() {
+            return this.shape instanceof Shape.CollectionShape;
+        }
+
+        // the `[name]` bullet shortcut fills this in
+        boolean isName() {
+            return this.name.equals("name") && this.shape instanceof Shape.AtomicShape(Atomic atomic) && atomic == Atomic.STRING;
+        }
+    }
+
+    void write() throws IOException {
+        this.visit(this.root);
+        this.writeHeader();
+        for (var type : this.names.keySet()) {
+            if (type.getKind() == ElementKind.RECORD) {
+                this.writeRecord(type);
+            } else {
+                this.writeSealed(type);
+            }
+        }
+        this.writeFooter();
+        var file = this.env.getFiler().createSourceFile(this.packageName + "." + this.className, this.root);
+        try (Writer writer = file.openWriter()) {
+            writer.write(this.out.toString());
+        }
+    }
+
+    private void visit(TypeElement type) {
+        if (this.names.containsKey(type)) {
+            return;
+        }
+        var qualifiedName = type.getQualifiedName().toString();
+        var relativeName = this.packageName.isEmpty() ? qualifiedName : qualifiedName.substring(this.packageName.length() + 1);
+        this.names.put(type, relativeName.replace(".", ""));
+        if (type.getKind() == ElementKind.RECORD) {
+            List<Component> cmps = new ArrayList<>();
+            for (RecordComponentElement cmp : type.getRecordComponents()) {
+                cmps.add(new Component(cmp.getSimpleName().toString(), this.sourceType(cmp.asType()), this.shapeOf(cmp.asType(), cmp)));
+            }
+            this.components.put(type, cmps);
+        } else {
+            for (var subtype : this.subtypes(type)) {
+                this.visit(subtype);
+            }
+        }
+    }
+
+    private List<TypeElement> subtypes(TypeElement sealed) {
+        List<TypeElement> subtypes = new ArrayList<>();
+        for (var permitted : sealed.getPermittedSubclasses()) {
+            var subtype = (TypeElement) ((DeclaredType) permitted).asElement();
+            if (subtype.getKind() != ElementKind.RECORD) {
+                throw new UnsupportedTypeException("Subtypes of sealed interfaces need to be records", subtype);
+            }
+            subtypes.add(subtype);
+        }
+        return subtypes;
+    }
+
+    private Shape shapeOf(TypeMirror type, Element where) {
+        switch (type.getKind()) {
+            case INT: return new Shape.AtomicShape(Atomic.INT);
+            case LONG: return new Shape.AtomicShape(Atomic.LONG);
+            case FLOAT: return new Shape.AtomicShape(Atomic.FLOAT);
+            case DOUBLE: return new Shape.AtomicShape(Atomic.DOUBLE);
+            case BOOLEAN: return new Shape.AtomicShape(Atomic.BOOLEAN);
+            case DECLARED: break;
+            default: throw new UnsupportedTypeException("I don't know how to make a codec for a %s".formatted(type), where);
+        }
+        var declared = (DeclaredType) type;
+        var element = (TypeElement) declared.asElement();
+        switch (element.getQualifiedName().toString()) {
+            case "java.lang.String": return new Shape.AtomicShape(Atomic.STRING);
+            case "java.lang.Integer": return new Shape.AtomicShape(Atomic.INT);
+            case "java.lang.Long": return new Shape.AtomicShape(Atomic.LONG);
+            case "java.lang.Float": return new Shape.AtomicShape(Atomic.FLOAT);
+            case "java.lang.Double": return new Shape.AtomicShape(Atomic.DOUBLE);
+            case "java.lang.Boolean": return new Shape.AtomicShape(Atomic.BOOLEAN);
+            case FISP: return new Shape.AtomicShape(Atomic.FISP);
+            case "java.util.List", "java.util.Set": {
+                var elementShape = this.shapeOf(declared.getTypeArguments().getFirst(), where);
+                if (elementShape instanceof Shape.CollectionShape || elementShape instanceof Shape.OptionalShape) {
+                    throw new UnsupportedTypeException("Bini can't do collections of collections or optionals", where);
+                }
+                return new Shape.CollectionShape(element.getQualifiedName().contentEquals("java.util.Set"), elementShape);
+            }
+            case "java.util.Optional": {
+                var elementShape = this.shapeOf(declared.getTypeArguments().getFirst(), where);
+                if (elementShape instanceof Shape.CollectionShape || elementShape instanceof Shape.OptionalShape) {
+                    throw new UnsupportedTypeException("Optionals can only hold atomic values and objects", where);
+                }
+                return new Shape.OptionalShape(elementShape);
+            }
+            default: break;
+        }
+        if (element.getKind() == ElementKind.RECORD) {
+            this.visit(element);
+            return new Shape.RecordShape(element);
+        } else if (element.getKind() == ElementKind.INTERFACE && element.getModifiers().contains(Modifier.SEALED)) {
+            this.visit(element);
+            return new Shape.SealedShape(element, this.subtypes(element));
+        }
+        throw new UnsupportedTypeException("I don't know how to make a codec for a %s".formatted(type), where);
+    }
+
+    private String sourceType(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return this.env.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString();
+        }
+        return type.toString();
+    }
+
+    private String typeName(TypeElement type) {
+        return type.getQualifiedName().toString();
+    }
+
+    private String discriminatorOf(TypeElement subtype) {
+        return subtype.getSimpleName().toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static String quote(String s) {
+        return '"' + s + '"';
+    }
+
+    private void line(int depth, String text) {
+        this.out.append("    ".repeat(depth)).append(text).append('\n');
+    }
+
+    private void writeHeader() {
+        var rootType = this.typeName(this.root);
+        var rootName = this.names.get(this.root);
+        if (!this.packageName.isEmpty()) {
+            this.line(0, "package " + this.packageName + ";");
+            this.line(0, "");
+        }
+        this.line(0, "import com.google.gson.JsonArray;");
+        this.line(0, "import com.google.gson.JsonElement;");
+        this.line(0, "import com.google.gson.JsonObject;");
+        this.line(0, "import com.google.gson.JsonParseException;");
+        this.line(0, "");
+        this.line(0, "import java.util.ArrayList;");
+        this.line(0, "import java.util.List;");
+        this.line(0, "import java.util.Optional;");
+        this.line(0, "import java.util.Set;");
+        this.line(0, "import java.util.function.Function;");
+        this.line(0, "");
+        this.line(0, "/**");
+        this.line(0, " * Bini and json codecs for {@link " + rootType + "}. Generated by the codegen project - don't edit.");
+        this.line(0, " */");
+        this.line(0, "@javax.annotation.processing.Generated(\"" + CodecProcessor.class.getName() + "\")");
+        this.line(0, "public final class " + this.className + " {");
+        this.line(1, "private " + this.className + "() {");
+        this.line(1, "}");
+        this.line(0, "");
+        this.line(1, "public static " + rootType + " parseBini(List<String> lines) {");
+        this.line(2, "return parse" + rootName + "(" + BINI + ".tokenise(lines), null);");
+        this.line(1, "}");
+        this.line(0, "");
+        this.line(1, "public static String unparseBini(" + rootType + " value) {");
+        this.line(2, "StringBuilder sb = new StringBuilder(512);");
+        this.line(2, "unparse" + rootName + "(value, sb, 0, false);");
+        this.line(2, "return sb.toString();");
+        this.line(1, "}");
+        this.line(0, "");
+        this.line(1, "public static " + rootType + " readJson(JsonElement json) {");
+        this.line(2, "return read" + rootName + "(json);");
+        this.line(1, "}");
+    }
+
+    private void writeFooter() {
+        this.line(0, "");
+        this.line(1, "private static JsonObject object(JsonElement json, String typeName) {");
+        this.line(2, "if (!(json instanceof JsonObject object)) {");
+        this.line(3, "throw new JsonParseException(\"Expected %s to be an object, but got %s\".formatted(typeName, json));");
+        this.line(2, "}");
+        this.line(2, "return object;");
+        this.line(1, "}");
+        this.line(0, "");
+        this.line(1, "private static JsonElement required(JsonObject object, String key, String typeName) {");
+        this.line(2, "var element = object.get(key);");
+        this.line(2, "if (element == null || element.isJsonNull()) {");
+        this.line(3, "throw new JsonParseException(\"Couldn't find %s in %s\".formatted(key, typeName));");
+        this.line(2, "}");
+        this.line(2, "return element;");
+        this.line(1, "}");
+        this.line(0, "");
+        this.line(1, "private static <E> List<E> readList(JsonObject object, String key, Function<JsonElement, E> reader) {");
+        this.line(2, "var element = object.get(key);");
+        this.line(2, "if (element == null || element.isJsonNull()) {");
+        this.line(3, "return List.of();");
+        this.line(2, "}");
+        this.line(2, "JsonArray array = element.getAsJsonArray();");
+        this.line(2, "List<E> values = new ArrayList<>(array.size());");
+        this.line(2, "for (var value : array) {");
+        this.line(3, "values.add(reader.apply(value));");
+        this.line(2, "}");
+        this.line(2, "return List.copyOf(values);");
+        this.line(1, "}");
+        this.line(0, "}");
+    }
+
+    private void writeRecord(TypeElement type) {
+        var typeName = this.typeName(type);
+        var name = this.names.get(type);
+        var cmps = this.components.get(type);
+
+        // bini
+        this.line(0, "");
+        this.line(1, "public static " + typeName + " parse" + name + "(List<" + BINI + ".Line> lines, String nameValue) {");
+        for (var cmp : cmps) {
+            this.line(2, cmp.type() + " f_" + cmp.name() + " = " + (cmp.isName() ? "nameValue" : "null") + ";");
+        }
+        this.line(2, "for (var line : lines) {");
+        this.line(3, "var field = " + BINI + ".Field.of(line);");
+        this.line(3, "if (field == null) {");
+        this.line(4, "continue;");
+        this.line(3, "}");
+        this.line(3, "switch (field.key()) {");
+        for (var cmp : cmps) {
+            this.line(4, "case " + quote(cmp.name()) + " -> {");
+            String parsed;
+            if (cmp.value() instanceof Shape.AtomicShape(Atomic atomic)) {
+                this.line(5, "if (field.isAtomic()) {");
+                parsed = atomic.fromBini.formatted("field.value()");
+            } else {
+                this.line(5, "if (field.isComposite()) {");
+                parsed = this.parseComposite(cmp.value(), "field.valueLines()");
+            }
+            this.line(6, "f_" + cmp.name() + " = " + (cmp.isOptional() ? "Optional.of(" + parsed + ")" : parsed) + ";");
+            this.line(5, "}");
+            this.line(4, "}");
+        }
+        this.line(4, "default -> {");
+        this.line(4, "}");
+        this.line(3, "}");
+        this.line(2, "}");
+        for (var cmp : cmps) {
+            if (cmp.shape() instanceof Shape.CollectionShape(boolean set, Shape ignored)) {
+                this.line(2, "if (f_" + cmp.name() + " == null) {");
+                this.line(3, "f_" + cmp.name() + " = " + (set ? "Set.of()" : "List.of()") + ";");
+                this.line(2, "}");
+            } else if (cmp.isOptional()) {
+                this.line(2, "if (f_" + cmp.name() + " == null) {");
+                this.line(3, "f_" + cmp.name() + " = Optional.empty();");
+                this.line(2, "}");
+            }
+        }
+        this.line(2, "List<String> missing = new ArrayList<>();");
+        for (var cmp : cmps) {
+            if (!cmp.isCollection() && !cmp.isOptional()) {
+                this.line(2, "if (f_" + cmp.name() + " == null) {");
+                this.line(3, "missing.add(" + quote(cmp.name()) + ");");
+                this.line(2, "}");
+            }
+        }
+        this.line(2, "if (!missing.isEmpty()) {");
+        this.line(3, "throw " + BINI + ".missingFields(" + quote(typeName) + ", lines, missing);");
+        this.line(2, "}");
+        this.line(2, "return new " + typeName + "(" + cmps.stream().map(cmp -> "f_" + cmp.name()).collect(Collectors.joining(", ")) + ");");
+        this.line(1, "}");
+
+        int longest = 0;
+        int longestWithoutName = 0;
+        for (var cmp : cmps) {
+            if (cmp.isAtomic()) {
+                longest = Math.max(longest, cmp.name().length());
+                if (!cmp.isName()) {
+                    longestWithoutName = Math.max(longestWithoutName, cmp.name().length());
+                }
+            }
+        }
+        this.line(0, "");
+        this.line(1, "public static void unparse" + name + "(" + typeName + " value, StringBuilder sb, int indent, boolean named) {");
+        this.line(2, "int start = sb.length();");
+        this.line(2, "String tabs = \"\\t\".repeat(indent);");
+        this.line(2, "int longest = named ? " + longestWithoutName + " : " + longest + ";");
+        for (var cmp : cmps) {
+            int depth = 2;
+            var getter = "value." + cmp.name() + "()";
+            if (cmp.isName()) {
+                // it's in the bullet already
+                this.line(2, "if (!named) {");
+                depth = 3;
+            } else if (cmp.isOptional()) {
+                // missing optionals are just left out
+                this.line(2, "if (" + getter + ".isPresent()) {");
+                depth = 3;
+                getter = getter + ".get()";
+            }
+            this.line(depth, "if (sb.length() > start) {");
+            this.line(depth + 1, "sb.append('\\n');");
+            this.line(depth, "}");
+            if (cmp.isAtomic()) {
+                this.line(depth, "sb.append(tabs).append(" + quote(cmp.name()) + ").append(\" \".repeat(longest + 1 - " + cmp.name().length() + ")).append(\"= \");");
+                this.line(depth, BINI + ".appendAtomic(" + getter + ", sb);");
+            } else {
+                this.line(depth, "sb.append(tabs).append(" + quote(cmp.name() + ":\n").replace("\n", "\\n") + ");");
+                this.unparseComposite(depth, cmp.value(), getter, "indent + 1");
+            }
+            if (depth == 3) {
+                this.line(2, "}");
+            }
+        }
+        this.line(1, "}");
+
+        // json
+        this.line(0, "");
+        this.line(1, "public static " + typeName + " read" + name + "(JsonElement json) {");
+        this.line(2, "var object = object(json, " + quote(typeName) + ");");
+        this.line(2, "return new " + typeName + "(");
+        for (int i = 0; i < cmps.size(); i++) {
+            var cmp = cmps.get(i);
+            this.line(4, this.readJson(cmp, typeName) + (i < cmps.size() - 1 ? "," : ");"));
+        }
+        if (cmps.isEmpty()) {
+            this.line(4, ");");
+        }
+        this.line(1, "}");
+    }
+
+    private String parseComposite(Shape shape, String lines) {
+        return switch (shape) {
+            case Shape.RecordShape(TypeElement element) -> "parse" + this.names.get(element) + "(" + lines + ", null)";
+            case Shape.SealedShape(TypeElement element, List<TypeElement> ignored) -> "parse" + this.names.get(element) + "(" + lines + ", null)";
+            case Shape.CollectionShape(boolean set, Shape element) -> {
+                var parseElement = switch (element) {
+                    case Shape.AtomicShape(Atomic atomic) -> atomic.fromBini.formatted("value");
+                    case Shape.RecordShape(TypeElement el) -> "parse" + this.names.get(el) + "(children, name)";
+                    case Shape.SealedShape(TypeElement el, List<TypeElement> ignored) -> "parse" + this.names.get(el) + "(children, name)";
+                    case Shape.CollectionShape ignored -> throw new IllegalStateException();
+                    case Shape.OptionalShape ignored -> throw new IllegalStateException();
+                };
+                var list = BINI + ".parseList(" + lines + ", (value, children, name) -> " + parseElement + ")";
+                yield set ? "Set.copyOf(" + list + ")" : "List.copyOf(" + list + ")";
+            }
+            case Shape.AtomicShape ignored -> throw new IllegalStateException();
+            case Shape.OptionalShape ignored -> throw new IllegalStateException();
+        };
+    }
+
+    private void unparseComposite(int depth, Shape shape, String value, String indent) {
+        switch (shape) {
+            case Shape.RecordShape(TypeElement element) -> this.line(depth, "unparse" + this.names.get(element) + "(" + value + ", sb, " + indent + ", false);");
+            case Shape.SealedShape(TypeElement element, List<TypeElement> ignored) -> this.line(depth, "unparse" + this.names.get(element) + "(" + value + ", sb, " + indent + ", false);");
+            case Shape.CollectionShape(boolean ignored, Shape element) -> {
+                this.line(depth, "{");
+                this.line(depth + 1, "boolean first = true;");
+                this.line(depth + 1, "for (var element : " + value + ") {");
+                this.line(depth + 2, "if (!first) {");
+                this.line(depth + 3, "sb.append('\\n');");
+                this.line(depth + 2, "}");
+                this.line(depth + 2, "first = false;");
+                this.line(depth + 2, "sb.append(\"\\t\".repeat(" + indent + ")).append('[');");
+                boolean named = element instanceof Shape.RecordShape(TypeElement el) && this.components.get(el).stream().anyMatch(Component::isName);
+                if (named) {
+                    this.line(depth + 2, "sb.append(element.name());");
+                }
+                this.line(depth + 2, "sb.append(']');");
+                switch (element) {
+                    case Shape.AtomicShape ignoredAtomic -> {
+                        this.line(depth + 2, "sb.append(' ');");
+                        this.line(depth + 2, BINI + ".appendAtomic(element, sb);");
+                    }
+                    case Shape.RecordShape(TypeElement el) -> {
+                        this.line(depth + 2, "sb.append('\\n');");
+                        this.line(depth + 2, "unparse" + this.names.get(el) + "(element, sb, " + indent + " + 1, " + named + ");");
+                    }
+                    case Shape.SealedShape(TypeElement el, List<TypeElement> ignoredSubtypes) -> {
+                        this.line(depth + 2, "sb.append('\\n');");
+                        this.line(depth + 2, "unparse" + this.names.get(el) + "(element, sb, " + indent + " + 1, false);");
+                    }
+                    case Shape.CollectionShape ignoredCollection -> throw new IllegalStateException();
+                    case Shape.OptionalShape ignoredOptional -> throw new IllegalStateException();
+                }
+                this.line(depth + 1, "}");
+                this.line(depth, "}");
+            }
+            case Shape.AtomicShape ignored -> throw new IllegalStateException();
+            case Shape.OptionalShape ignored -> throw new IllegalStateException();
+        }
+    }
+
+    private String readJson(Component cmp, String typeName) {
+        if (cmp.isOptional()) {
+            return "Optional.ofNullable(object.get(" + quote(cmp.name()) + ")).filter(element -> !element.isJsonNull()).map(element -> " + this.readJsonValue(cmp.value(), "element") + ")";
+        }
+        return switch (cmp.shape()) {
+            case Shape.AtomicShape ignored -> this.readJsonValue(cmp.shape(), "required(object, " + quote(cmp.name()) + ", " + quote(typeName) + ")");
+            case Shape.RecordShape ignored -> this.readJsonValue(cmp.shape(), "required(object, " + quote(cmp.name()) + ", " + quote(typeName) + ")");
+            case Shape.SealedShape ignored -> this.readJsonValue(cmp.shape(), "required(object, " + quote(cmp.name()) + ", " + quote(typeName) + ")");
+            case Shape.OptionalShape ignored -> throw new IllegalStateException();
+            case Shape.CollectionShape(boolean set, Shape element) -> {
+                var reader = switch (element) {
+                    case Shape.AtomicShape(Atomic atomic) -> "element -> " + atomic.fromJson.formatted("element");
+                    case Shape.RecordShape(TypeElement el) -> this.className + "::read" + this.names.get(el);
+                    case Shape.SealedShape(TypeElement el, List<TypeElement> ignored) -> this.className + "::read" + this.names.get(el);
+                    case Shape.CollectionShape ignored -> throw new IllegalStateException();
+                    case Shape.OptionalShape ignored -> throw new IllegalStateException();
+                };
+                var list = "readList(object, " + quote(cmp.name()) + ", " + reader + ")";
+                yield set ? "Set.copyOf(" + list + ")" : list;
+            }
+        };
+    }
+
+    private String readJsonValue(Shape shape, String json) {
+        return switch (shape) {
+            case Shape.AtomicShape(Atomic atomic) -> atomic.fromJson.formatted(json);
+            case Shape.RecordShape(TypeElement element) -> "read" + this.names.get(element) + "(" + json + ")";
+            case Shape.SealedShape(TypeElement element, List<TypeElement> ignored) -> "read" + this.names.get(element) + "(" + json + ")";
+            case Shape.CollectionShape ignored -> throw new IllegalStateException();
+            case Shape.OptionalShape ignored -> throw new IllegalStateException();
+        };
+    }
+
+    private void writeSealed(TypeElement type) {
+        var typeName = this.typeName(type);
+        var name = this.names.get(type);
+        // without a discriminator, pick the first subtype whose fields are all there, trying the ones with the most
+        // fields first so that a subtype isn't picked just because it has a subset of another's fields
+        var subtypes = new ArrayList<>(this.subtypes(type));
+        Map<TypeElement, List<String>> required = new LinkedHashMap<>();
+        for (var subtype : subtypes) {
+            required.put(subtype, this.components.get(subtype).stream()
+                    .filter(cmp -> !cmp.isCollection() && !cmp.isOptional() && !cmp.isName())
+                    .map(cmp -> quote(cmp.name()))
+                    .toList());
+        }
+        subtypes.sort(Comparator.comparingInt((TypeElement subtype) -> required.get(subtype).size()).reversed());
+
+        // bini
+        this.line(0, "");
+        this.line(1, "public static " + typeName + " parse" + name + "(List<" + BINI + ".Line> lines, String nameValue) {");
+        this.line(2, "String type = " + BINI + ".discriminator(lines);");
+        this.line(2, "if (type == null) {");
+        this.line(3, "var keys = " + BINI + ".keys(lines);");
+        this.writeStructuralMatch(subtypes, required, "keys", "new IllegalArgumentException(\"Couldn't tell which " + typeName + " this is%s\".formatted(lines.isEmpty() ? \"\" : \" (at line %s)\".formatted(lines.getFirst().number())))");
+        this.line(2, "}");
+        this.line(2, "return switch (type) {");
+        for (var subtype : subtypes) {
+            this.line(3, "case " + quote(this.discriminatorOf(subtype)) + " -> parse" + this.names.get(subtype) + "(lines, nameValue);");
+        }
+        this.line(3, "default -> throw new IllegalArgumentException(\"There's no " + typeName + " called %s%s\".formatted(type, lines.isEmpty() ? \"\" : \" (at line %s)\".formatted(lines.getFirst().number())));");
+        this.line(2, "};");
+        this.line(1, "}");
+
+        this.line(0, "");
+        this.line(1, "public static void unparse" + name + "(" + typeName + " value, StringBuilder sb, int indent, boolean named) {");
+        this.line(2, "switch (value) {");
+        for (var subtype : subtypes) {
+            this.line(3, "case " + this.typeName(subtype) + " v -> {");
+            this.line(4, "sb.append(\"\\t\".repeat(indent)).append(" + BINI + ".DISCRIMINATOR).append(\" = " + this.discriminatorOf(subtype) + "\\n\");");
+            this.line(4, "unparse" + this.names.get(subtype) + "(v, sb, indent, named);");
+            this.line(3, "}");
+        }
+        this.line(2, "}");
+        this.line(1, "}");
+
+        // json
+        this.line(0, "");
+        this.line(1, "public static " + typeName + " read" + name + "(JsonElement json) {");
+        this.line(2, "var object = object(json, " + quote(typeName) + ");");
+        this.line(2, "String type = object.has(" + BINI + ".DISCRIMINATOR) ? object.get(" + BINI + ".DISCRIMINATOR).getAsString() : null;");
+        this.line(2, "if (type == null) {");
+        this.line(3, "var keys = object.keySet();");
+        this.writeStructuralMatch(subtypes, required, "keys", "new JsonParseException(\"Couldn't tell which " + typeName + " this is: \" + json)");
+        this.line(2, "}");
+        this.line(2, "return switch (type) {");
+        for (var subtype : subtypes) {
+            this.line(3, "case " + quote(this.discriminatorOf(subtype)) + " -> read" + this.names.get(subtype) + "(json);");
+        }
+        this.line(3, "default -> throw new JsonParseException(\"There's no " + typeName + " called \" + type);");
+        this.line(2, "};");
+        this.line(1, "}");
+    }
+
+    private void writeStructuralMatch(List<TypeElement> subtypes, Map<TypeElement, List<String>> required, String keys, String failure) {
+        for (int i = 0; i < subtypes.size(); i++) {
+            var subtype = subtypes.get(i);
+            this.line(3, (i == 0 ? "if" : "} else if") + " (" + keys + ".containsAll(List.of(" + String.join(", ", required.get(subtype)) + "))) {");
+            this.line(4, "type = " + quote(this.discriminatorOf(subtype)) + ";");
+        }
+        this.line(3, (subtypes.isEmpty() ? "{" : "} else {"));
+        this.line(4, "throw " + failure + ";");
+        this.line(3, "}");
+    }
+}
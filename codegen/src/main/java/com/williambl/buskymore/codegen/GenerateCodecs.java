@@ -0,0 +1,19 @@
+package com.williambl.buskymore.codegen;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates bini and json parsers for a record, and everything it's made of, at compile time, so that loading it
+ * doesn't need any reflection.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface GenerateCodecs {
+    /**
+     * @return the simple name of the generated class, which goes in the same package as the record
+     */
+    String value();
+}
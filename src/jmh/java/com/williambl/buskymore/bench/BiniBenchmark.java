@@ -0,0 +1,58 @@
+package com.williambl.buskymore.bench;
+
+import com.williambl.buskymore.Bini;
+import com.williambl.buskymore.ConfigCodecs;
+import com.williambl.buskymore.DiscordPostSender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a config with forty mappings, by reflection and with the generated codecs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class BiniBenchmark {
+    private List<String> lines;
+    private DiscordPostSender.Config config;
+
+    @Setup
+    public void setup() {
+        this.lines = Fixtures.read(Fixtures.LARGE_CONFIG).lines().toList();
+        this.config = ConfigCodecs.parseBini(this.lines);
+    }
+
+    @Benchmark
+    public List<Bini.Line> tokenise() {
+        return Bini.tokenise(this.lines);
+    }
+
+    @Benchmark
+    public DiscordPostSender.Config parseReflective() {
+        return new Bini().parse(DiscordPostSender.Config.class, this.lines);
+    }
+
+    @Benchmark
+    public DiscordPostSender.Config parseGenerated() {
+        return ConfigCodecs.parseBini(this.lines);
+    }
+
+    @Benchmark
+    public String unparseGenerated() {
+        return ConfigCodecs.unparseBini(this.config);
+    }
+}
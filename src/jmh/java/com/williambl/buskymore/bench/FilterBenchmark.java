@@ -0,0 +1,85 @@
+package com.williambl.buskymore.bench;
+
+import com.williambl.buskymore.ConfigCodecs;
+import com.williambl.buskymore.Post;
+import com.williambl.buskymore.PostFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running filters over a page of posts: each filter is one of the large config's definitions, so it's linked with
+ * the others as macros, the way {@code DiscordPostSender} does it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+    private static final String SELF = "did:plc:self";
+
+    @Param({"is_nsfw", "is_art", "is_tagged_art", "has_images", "is_good_art"})
+    public String definition;
+
+    private PostFilter filter;
+    private PostFilter.Fisp expression;
+    private PostFilter.Functions functions;
+    private List<PostFilter.FilterContext> contexts;
+
+    @Setup
+    public void setup() {
+        PostFilter.bootstrap();
+        var config = ConfigCodecs.parseBini(Fixtures.read(Fixtures.LARGE_CONFIG).lines().toList());
+        this.functions = PostFilter.FUNCTIONS.derive();
+        for (var definition : config.definitions()) {
+            this.functions.registerMacro(definition.name(), switch (definition.body()) {
+                case PostFilter.Fisp.Array array -> array;
+                case PostFilter.Fisp.Atom atom -> PostFilter.Fisp.arr(atom);
+            });
+        }
+        this.functions.freeze();
+        this.expression = PostFilter.Fisp.arr(PostFilter.Fisp.str(this.definition));
+        this.filter = this.functions.build(this.expression);
+        this.contexts = Fixtures.posts().stream()
+                .map((Post post) -> PostFilter.FilterContext.of(post, SELF))
+                .toList();
+    }
+
+    @Benchmark
+    public int test() {
+        int matches = 0;
+        for (var context : this.contexts) {
+            if (this.filter.test(context)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Links and evaluates the filter afresh for each post, as well as testing it.
+     */
+    @Benchmark
+    public int buildAndTest() {
+        int matches = 0;
+        for (var context : this.contexts) {
+            if (this.functions.build(this.expression).test(context)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,45 @@
+package com.williambl.buskymore.bench;
+
+import com.williambl.buskymore.BskyPostGetter;
+import com.williambl.buskymore.FeedPage;
+import com.williambl.buskymore.Post;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The files in {@code src/jmh/resources/fixtures}: a page of an author feed, and a config with lots of mappings and our
+ * larger filters as definitions.
+ * <p>The feed page is synthetic, not recorded from Bluesky: 50 posts made up to have the fields {@code getAuthorFeed}
+ * gives, with a mix of reposts, facets and embeds. Real pages differ in their text, their field order and how many of
+ * each kind of post they have, so take timings from it as a guide rather than as what a real page costs.</p>
+ */
+final class Fixtures {
+    static final String FEED_PAGE = "author-feed-page.json";
+    static final String LARGE_CONFIG = "large-config.bini";
+
+    private Fixtures() {}
+
+    static String read(String name) {
+        try (InputStream in = Objects.requireNonNull(Fixtures.class.getResourceAsStream("/fixtures/" + name), name)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the text of each item of the feed page, as fetching splits it up
+     */
+    static List<String> feedItems() {
+        return FeedPage.parse(read(FEED_PAGE)).items();
+    }
+
+    static List<Post> posts() {
+        return feedItems().stream().map(BskyPostGetter::parsePost).toList();
+    }
+}
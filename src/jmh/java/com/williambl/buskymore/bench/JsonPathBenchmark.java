@@ -0,0 +1,84 @@
+package com.williambl.buskymore.bench;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.williambl.buskymore.JsonPath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selecting from a whole feed page: from a parsed tree, with a compiled path, and streaming straight from the text.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class JsonPathBenchmark {
+    @Param({
+            "$.feed[0].post.record.text",
+            "$.feed[*].post.uri",
+            "$..facets[*].features[?@.$type == 'app.bsky.richtext.facet#link']",
+            "$.feed[?@.reason].post.author.did"
+    })
+    public String query;
+
+    private String page;
+    private JsonElement document;
+    private JsonPath path;
+    private JsonPath.Compiled compiled;
+
+    @Setup
+    public void setup() {
+        this.page = Fixtures.read(Fixtures.FEED_PAGE);
+        this.document = JsonParser.parseString(this.page);
+        this.path = JsonPath.parse(this.query);
+        this.compiled = this.path.compile();
+    }
+
+    @Benchmark
+    public long select() {
+        return this.path.select(this.document).count();
+    }
+
+    @Benchmark
+    public List<JsonElement> selectCompiled() {
+        List<JsonElement> out = new ArrayList<>();
+        this.compiled.select(this.document, out);
+        return out;
+    }
+
+    @Benchmark
+    public List<JsonElement> selectStreaming() throws IOException {
+        List<JsonElement> out = new ArrayList<>();
+        this.compiled.select(new JsonReader(new StringReader(this.page)), out);
+        return out;
+    }
+
+    /**
+     * Parsing the whole page and then selecting, to compare with {@link #selectStreaming()}.
+     */
+    @Benchmark
+    public List<JsonElement> parseAndSelect() {
+        List<JsonElement> out = new ArrayList<>();
+        this.compiled.select(JsonParser.parseString(this.page), out);
+        return out;
+    }
+}
@@ -0,0 +1,52 @@
+package com.williambl.buskymore.bench;
+
+import com.williambl.buskymore.BskyPostGetter;
+import com.williambl.buskymore.FeedPage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a page of a feed into posts, with and without splitting the page into its items first.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class PostParseBenchmark {
+    private String page;
+    private List<String> items;
+
+    @Setup
+    public void setup() {
+        this.page = Fixtures.read(Fixtures.FEED_PAGE);
+        this.items = Fixtures.feedItems();
+    }
+
+    @Benchmark
+    public void parsePosts(Blackhole bh) {
+        for (var item : this.items) {
+            bh.consume(BskyPostGetter.parsePost(item));
+        }
+    }
+
+    @Benchmark
+    public void parsePage(Blackhole bh) {
+        for (var item : FeedPage.parse(this.page).items()) {
+            bh.consume(BskyPostGetter.parsePost(item));
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.williambl.buskymore.loadtest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.williambl.buskymore.JsonPath;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * A local stand-in for the parts of Bluesky's public API that we use: {@code getAuthorFeed} and {@code getFeed}.
+ * <p>It works in one of three ways. Making up pages, it answers every request with a page of brand new posts by
+ * whoever was asked for. Recording, it passes each request on to the real API and saves what comes back to a
+ * directory, as well as returning it. Replaying, it answers from those recordings: a request which was recorded gets
+ * its recording, and anything else gets a first page picked by who it's for, so that a few real accounts can stand
+ * in for thousands.</p>
+ * <p>Either way, it notes when it first served each post, so that we can tell how long posts take to get to Discord.</p>
+ */
+final class BlueskyStandIn implements AutoCloseable {
+    static final URI REAL_API_URI = URI.create("https://public.api.bsky.app/");
+    private static final List<String> ENDPOINTS = List.of("app.bsky.feed.getAuthorFeed", "app.bsky.feed.getFeed");
+    private static final JsonPath POST_URIS = JsonPath.parse("$.feed[*].post.uri");
+
+    enum Mode { MAKE_UP, RECORD, REPLAY }
+
+    private final HttpServer server;
+    private final Mode mode;
+    private final Path recordings;
+    private final int postsPerPage;
+    private final HttpClient upstream;
+    // endpoint -> recorded first pages, for requests which weren't recorded themselves
+    private final Map<String, List<Path>> firstPages = new HashMap<>();
+    private final Map<String, Long> firstServed = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong nextPost = new AtomicLong();
+
+    /**
+     * @param recordings where recordings are saved to or replayed from; unused when making pages up
+     * @param postsPerPage how many posts each made-up page has
+     */
+    BlueskyStandIn(Mode mode, Path recordings, int postsPerPage) throws IOException {
+        this.mode = mode;
+        this.recordings = recordings;
+        this.postsPerPage = postsPerPage;
+        this.upstream = mode == Mode.RECORD ? HttpClient.newHttpClient() : null;
+        if (mode == Mode.RECORD) {
+            for (var endpoint : ENDPOINTS) {
+                Files.createDirectories(recordings.resolve(endpoint));
+            }
+        } else if (mode == Mode.REPLAY) {
+            for (var endpoint : ENDPOINTS) {
+                var directory = recordings.resolve(endpoint);
+                if (!Files.isDirectory(directory)) {
+                    continue;
+                }
+                try (Stream<Path> files = Files.list(directory)) {
+                    this.firstPages.put(endpoint, files
+                            .filter(file -> !file.getFileName().toString().contains("cursor"))
+                            .sorted()
+                            .toList());
+                }
+            }
+            if (this.firstPages.values().stream().allMatch(List::isEmpty)) {
+                throw new IllegalArgumentException("There aren't any recordings in " + recordings);
+            }
+        }
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        this.server.createContext("/xrpc/", this::handle);
+        this.server.start();
+    }
+
+    URI uri() {
+        return URI.create("http://127.0.0.1:" + this.server.getAddress().getPort() + "/");
+    }
+
+    long requests() {
+        return this.requests.get();
+    }
+
+    /**
+     * @return when the post was first served, as from {@link System#nanoTime()}, or null if it never was
+     */
+    Long firstServed(String postUri) {
+        return this.firstServed.get(postUri);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            this.requests.incrementAndGet();
+            var endpoint = exchange.getRequestURI().getPath().substring("/xrpc/".length());
+            var query = exchange.getRequestURI().getRawQuery();
+            if (!ENDPOINTS.contains(endpoint) || query == null) {
+                respond(exchange, 404, "{\"error\":\"MethodNotImplemented\"}");
+                return;
+            }
+            var params = params(query);
+            String body = switch (this.mode) {
+                case MAKE_UP -> this.makeUpPage(endpoint, params);
+                case RECORD -> this.record(endpoint, query);
+                case REPLAY -> this.replay(endpoint, query, params);
+            };
+            if (body == null) {
+                respond(exchange, 502, "{\"error\":\"UpstreamFailure\"}");
+                return;
+            }
+            long now = System.nanoTime();
+            for (var uri : POST_URIS.select(JsonParser.parseString(body)).toList()) {
+                this.firstServed.putIfAbsent(uri.getAsString(), now);
+            }
+            respond(exchange, 200, body);
+        }
+    }
+
+    private String makeUpPage(String endpoint, Map<String, String> params) {
+        // a feed's posts are all by the feed's owner, which is near enough
+        String did = endpoint.equals("app.bsky.feed.getFeed")
+                ? URI.create(params.getOrDefault("feed", "at://did:plc:nobody")).getAuthority()
+                : params.getOrDefault("actor", "did:plc:nobody");
+        var feed = new JsonArray();
+        // there's nothing more after the first page; there's nothing older than what we've just made up
+        if (!params.containsKey("cursor")) {
+            var now = Instant.now();
+            for (int i = 0; i < this.postsPerPage; i++) {
+                long n = this.nextPost.getAndIncrement();
+                var record = new JsonObject();
+                record.addProperty("$type", "app.bsky.feed.post");
+                record.addProperty("createdAt", now.minusMillis(i).toString());
+                record.addProperty("text", "post number " + n);
+                if (n % 2 == 0) {
+                    var embed = new JsonObject();
+                    embed.addProperty("$type", "app.bsky.embed.images");
+                    embed.add("images", new JsonArray());
+                    record.add("embed", embed);
+                }
+                var author = new JsonObject();
+                author.addProperty("did", did);
+                author.addProperty("handle", "someone.example.com");
+                var post = new JsonObject();
+                post.addProperty("uri", "at://%s/app.bsky.feed.post/%s".formatted(did, Long.toString(n, 32)));
+                post.addProperty("cid", "bafyrei" + n);
+                post.add("author", author);
+                post.add("record", record);
+                post.addProperty("indexedAt", now.toString());
+                var item = new JsonObject();
+                item.add("post", post);
+                feed.add(item);
+            }
+        }
+        var page = new JsonObject();
+        page.add("feed", feed);
+        return page.toString();
+    }
+
+    private String record(String endpoint, String query) throws IOException {
+        var request = HttpRequest.newBuilder(REAL_API_URI.resolve("xrpc/" + endpoint + "?" + query))
+                .header("Accept", "application/json")
+                .header("User-Agent", "buskymore load test recorder")
+                .GET()
+                .build();
+        HttpResponse<String> response;
+        try {
+            response = this.upstream.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch (IOException e) {
+            LoadTest.LOGGER.error("Couldn't reach Bluesky for {}", request.uri(), e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (response.statusCode() != 200) {
+            LoadTest.LOGGER.error("Bluesky answered {} with {}: {}", request.uri(), response.statusCode(), response.body());
+            return null;
+        }
+        Files.writeString(this.recordingPath(endpoint, query), response.body());
+        return response.body();
+    }
+
+    private String replay(String endpoint, String query, Map<String, String> params) throws IOException {
+        var path = this.recordingPath(endpoint, query);
+        if (Files.exists(path)) {
+            return Files.readString(path);
+        }
+        if (params.containsKey("cursor")) {
+            return "{\"feed\":[]}";
+        }
+        var pages = this.firstPages.getOrDefault(endpoint, List.of());
+        if (pages.isEmpty()) {
+            // nothing recorded for this endpoint, so use the other's
+            pages = this.firstPages.values().stream().filter(p -> !p.isEmpty()).findFirst().orElseThrow();
+        }
+        return Files.readString(pages.get(Math.floorMod(query.hashCode(), pages.size())));
+    }
+
+    private Path recordingPath(String endpoint, String query) {
+        return this.recordings.resolve(endpoint).resolve(URLEncoder.encode(query, StandardCharsets.UTF_8) + ".json");
+    }
+
+    private static Map<String, String> params(String query) {
+        Map<String, String> params = new HashMap<>();
+        for (var param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(param.substring(0, eq), StandardCharsets.UTF_8), URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    static void respond(HttpExchange exchange, int status, String body, String... headers) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        for (int i = 0; i < headers.length; i += 2) {
+            exchange.getResponseHeaders().add(headers[i], headers[i + 1]);
+        }
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        var bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        if (this.upstream != null) {
+            this.upstream.close();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.williambl.buskymore.loadtest;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A local stand-in for the parts of Discord's API that we use: sending messages, publishing them and executing
+ * webhooks.
+ * <p>Each channel or webhook has a rate limit bucket, which is reported in the usual headers, and going over it gets
+ * a 429. There's a global limit across everything, too. On top of those it can be slow, and can answer with 429s at
+ * random, like Discord's shared limits do.</p>
+ */
+final class DiscordStandIn implements AutoCloseable {
+    /**
+     * @param latency how long every request takes, at least
+     * @param jitter up to how much longer than that a request takes, picked at random
+     * @param bucketLimit how many requests each channel or webhook can have in each bucketWindow
+     * @param globalLimit how many requests there can be in each second, across everything
+     * @param randomRateLimitChance the chance that any request is rate-limited, whatever its bucket says
+     * @param randomRetryAfter how long the random rate limits last
+     */
+    record Options(Duration latency, Duration jitter, int bucketLimit, Duration bucketWindow, int globalLimit, double randomRateLimitChance, Duration randomRetryAfter) {}
+
+    /**
+     * A message which made it.
+     * @param receivedNanos when, as from {@link System#nanoTime()}
+     */
+    record Delivery(long receivedNanos, String channel, String content) {}
+
+    private final HttpServer server;
+    private final Options options;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Bucket global;
+    private final ConcurrentLinkedQueue<Delivery> deliveries = new ConcurrentLinkedQueue<>();
+    private final AtomicLong nextMessageId = new AtomicLong(1);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+
+    DiscordStandIn(Options options) throws IOException {
+        this.options = options;
+        this.global = new Bucket(options.globalLimit(), Duration.ofSeconds(1).toNanos());
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        this.server.createContext("/api/", this::handle);
+        this.server.start();
+    }
+
+    URI apiUri() {
+        return URI.create("http://127.0.0.1:" + this.server.getAddress().getPort() + "/api/");
+    }
+
+    String webhookUrl(String id) {
+        return this.apiUri().resolve("webhooks/" + id + "/token").toString();
+    }
+
+    List<Delivery> deliveries() {
+        return List.copyOf(this.deliveries);
+    }
+
+    long requests() {
+        return this.requests.sum();
+    }
+
+    long rateLimited() {
+        return this.rateLimited.sum();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            this.requests.increment();
+            var path = exchange.getRequestURI().getPath().substring("/api/".length()).split("/");
+            // channels/{id}/messages, channels/{id}/messages/{id}/crosspost, or webhooks/{id}/{token}
+            String bucketKey;
+            String channel;
+            boolean crosspost = path.length == 5 && path[0].equals("channels") && path[2].equals("messages") && path[4].equals("crosspost");
+            if (path.length == 3 && path[0].equals("channels") && path[2].equals("messages") || crosspost) {
+                channel = path[1];
+                bucketKey = (crosspost ? "crosspost/" : "messages/") + channel;
+            } else if (path.length == 3 && path[0].equals("webhooks")) {
+                channel = "webhook " + path[1];
+                bucketKey = "webhooks/" + path[1] + "/" + path[2];
+            } else {
+                BlueskyStandIn.respond(exchange, 404, "{\"message\":\"404: Not Found\",\"code\":0}");
+                return;
+            }
+            long extra = this.options.jitter().isZero() ? 0 : ThreadLocalRandom.current().nextLong(this.options.jitter().toNanos());
+            try {
+                Thread.sleep(this.options.latency().plusNanos(extra));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (this.global.take(System.nanoTime()) < 0) {
+                this.rateLimit(exchange, this.global.secondsUntilReset(System.nanoTime()), "global", "X-RateLimit-Global", "true");
+                return;
+            }
+            if (ThreadLocalRandom.current().nextDouble() < this.options.randomRateLimitChance()) {
+                this.rateLimit(exchange, this.options.randomRetryAfter().toMillis() / 1000.0, "shared");
+                return;
+            }
+            var bucket = this.buckets.computeIfAbsent(bucketKey, $ -> new Bucket(this.options.bucketLimit(), this.options.bucketWindow().toNanos()));
+            long now = System.nanoTime();
+            int remaining = bucket.take(now);
+            if (remaining < 0) {
+                this.rateLimit(exchange, bucket.secondsUntilReset(now), "user", "X-RateLimit-Bucket", bucket.name);
+                return;
+            }
+            String[] limitHeaders = {
+                    "X-RateLimit-Limit", Integer.toString(this.options.bucketLimit()),
+                    "X-RateLimit-Remaining", Integer.toString(remaining),
+                    "X-RateLimit-Reset-After", Double.toString(bucket.secondsUntilReset(now)),
+                    "X-RateLimit-Bucket", bucket.name
+            };
+
+            var body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            if (crosspost) {
+                BlueskyStandIn.respond(exchange, 200, "{\"id\":\"%s\",\"channel_id\":\"%s\"}".formatted(path[3], channel), limitHeaders);
+                return;
+            }
+            var content = JsonParser.parseString(body).getAsJsonObject().get("content").getAsString();
+            this.deliveries.add(new Delivery(System.nanoTime(), channel, content));
+            if (path[0].equals("webhooks") && !"true".equals(query(exchange, "wait"))) {
+                BlueskyStandIn.respond(exchange, 204, null, limitHeaders);
+                return;
+            }
+            var message = new JsonObject();
+            message.addProperty("id", Long.toString(this.nextMessageId.getAndIncrement()));
+            message.addProperty("channel_id", channel);
+            message.addProperty("content", content);
+            BlueskyStandIn.respond(exchange, 200, message.toString(), limitHeaders);
+        }
+    }
+
+    private void rateLimit(HttpExchange exchange, double retryAfter, String scope, String... headers) throws IOException {
+        this.rateLimited.increment();
+        String[] allHeaders = new String[headers.length + 4];
+        allHeaders[0] = "Retry-After";
+        allHeaders[1] = Double.toString(retryAfter);
+        allHeaders[2] = "X-RateLimit-Scope";
+        allHeaders[3] = scope;
+        System.arraycopy(headers, 0, allHeaders, 4, headers.length);
+        BlueskyStandIn.respond(exchange, 429, "{\"message\":\"You are being rate limited.\",\"retry_after\":%s,\"global\":%s}".formatted(retryAfter, scope.equals("global")), allHeaders);
+    }
+
+    private static String query(HttpExchange exchange, String name) {
+        var query = exchange.getRequestURI().getQuery();
+        if (query == null) {
+            return null;
+        }
+        for (var param : query.split("&")) {
+            if (param.startsWith(name + "=")) {
+                return param.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A fixed window: so many requests, and then none until the window's up.
+     */
+    private static final class Bucket {
+        private static final AtomicLong NEXT_NAME = new AtomicLong();
+        private final String name = Long.toHexString(NEXT_NAME.getAndIncrement());
+        private final int limit;
+        private final long windowNanos;
+        private long windowStart = System.nanoTime();
+        private int used;
+
+        private Bucket(int limit, long windowNanos) {
+            this.limit = limit;
+            this.windowNanos = windowNanos;
+        }
+
+        /**
+         * @return how many requests are left in this window after this one, or -1 if this one is over the limit
+         */
+        private synchronized int take(long now) {
+            if (now - this.windowStart >= this.windowNanos) {
+                this.windowStart = now;
+                this.used = 0;
+            }
+            if (this.used >= this.limit) {
+                return -1;
+            }
+            this.used++;
+            return this.limit - this.used;
+        }
+
+        private synchronized double secondsUntilReset(long now) {
+            return Math.max(0, this.windowStart + this.windowNanos - now) / 1e9;
+        }
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+    }
+}
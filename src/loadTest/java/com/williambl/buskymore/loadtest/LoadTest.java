@@ -0,0 +1,264 @@
+package com.williambl.buskymore.loadtest;
+
+import com.sun.management.OperatingSystemMXBean;
+import com.williambl.buskymore.BskyPostGetter;
+import com.williambl.buskymore.DiscordPostSender;
+import com.williambl.buskymore.Metrics;
+import com.williambl.buskymore.PostFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the whole pipeline against local stand-ins for Bluesky and Discord, and reports how it went: throughput,
+ * latency from a post being served to it reaching Discord, and what it cost in CPU, memory and GC.
+ * <p>Usage: {@code ./gradlew loadTest --args="<options>"}, where the options are</p>
+ * <ul>
+ *     <li>{@code --sources <n>} how many accounts to follow (1000), shared evenly between</li>
+ *     <li>{@code --channels <n>} how many channels (100), one mapping each</li>
+ *     <li>{@code --posts <n>} how many new posts each account has each cycle, when making them up (1)</li>
+ *     <li>{@code --cycles <n>} how many cycles to run (1)</li>
+ *     <li>{@code --filter <fisp>} every source's filter ({@code is_self_retweet})</li>
+ *     <li>{@code --batch <n>} send posts up to n to a message, rather than one each</li>
+ *     <li>{@code --streaming} send each post as soon as it's fetched</li>
+ *     <li>{@code --webhooks <n>} send through n webhooks per channel rather than as the bot</li>
+ *     <li>{@code --outbox} write posts to an outbox before sending them</li>
+ *     <li>{@code --latency <ms>} and {@code --jitter <ms>} how slow Discord is (50 and 25)</li>
+ *     <li>{@code --bucket-limit <n>} and {@code --bucket-window <ms>} each channel's rate limit (5 per 5000)</li>
+ *     <li>{@code --global-limit <n>} the rate limit across everything, per second (50)</li>
+ *     <li>{@code --random-429 <chance>} and {@code --random-retry-after <ms>} random rate limits (0.01 and 1000)</li>
+ *     <li>{@code --record <dir>} fetch from the real Bluesky, saving what it says to dir</li>
+ *     <li>{@code --replay <dir>} answer from what was saved to dir, rather than making posts up</li>
+ *     <li>{@code --actors <did,did,...>} the accounts to follow, rather than made-up ones - for recording</li>
+ *     <li>{@code --metrics-port <port>} serve the usual metrics while the test runs</li>
+ * </ul>
+ * <p>The stand-ins run in the same JVM as the pipeline, so the resource use includes theirs.</p>
+ */
+public class LoadTest {
+    public static final Logger LOGGER = LoggerFactory.getLogger(LoadTest.class);
+    private static final Pattern POST_LINK = Pattern.compile("/profile/([^/\\s]+)/post/([^/\\s)>]+)");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        var options = Options.parse(args);
+        PostFilter.bootstrap();
+        var workDir = Files.createTempDirectory("buskymore-load-test");
+        var blueskyMode = options.record != null ? BlueskyStandIn.Mode.RECORD : options.replay != null ? BlueskyStandIn.Mode.REPLAY : BlueskyStandIn.Mode.MAKE_UP;
+        try (var bluesky = new BlueskyStandIn(blueskyMode, blueskyMode == BlueskyStandIn.Mode.RECORD ? options.record : options.replay, options.posts);
+             var discord = new DiscordStandIn(options.discord)) {
+            var config = makeConfig(options, workDir, bluesky, discord);
+            var metricsServer = options.metricsPort == null ? null : Metrics.serve(options.metricsPort);
+            var sender = new DiscordPostSender(config, Executors.newVirtualThreadPerTaskExecutor());
+
+            var usage = Usage.start();
+            long start = System.nanoTime();
+            for (int cycle = 0; cycle < options.cycles; cycle++) {
+                long cycleStart = System.nanoTime();
+                sender.run();
+                LOGGER.info("Cycle {} took {}ms", cycle + 1, (System.nanoTime() - cycleStart) / 1_000_000);
+            }
+            long elapsed = System.nanoTime() - start;
+            var used = usage.stop();
+            sender.stop();
+            if (metricsServer != null) {
+                metricsServer.stop(0);
+            }
+            report(options, elapsed, used, bluesky, discord);
+        }
+    }
+
+    private static DiscordPostSender.Config makeConfig(Options options, Path workDir, BlueskyStandIn bluesky, DiscordStandIn discord) {
+        var filter = PostFilter.Fisp.parse(options.filter);
+        List<DiscordPostSender.Config.Mapping> mappings = new ArrayList<>();
+        int sources = options.actors == null ? options.sources : options.actors.size();
+        int channels = Math.min(options.channels, sources);
+        for (int channel = 0; channel < channels; channel++) {
+            List<BskyPostGetter.Config.PostSource> postSources = new ArrayList<>();
+            for (int source = channel; source < sources; source += channels) {
+                var did = options.actors == null ? "did:plc:loadtest%07d".formatted(source) : options.actors.get(source);
+                postSources.add(new BskyPostGetter.Config.PostSource.User(did, filter));
+            }
+            var getterConfig = new BskyPostGetter.Config("buskymore load test", 3650, Math.max(options.posts, 100),
+                    workDir.resolve("state-%d.tsv".formatted(channel)).toString(), postSources, Optional.of(bluesky.uri().toString()), Optional.empty());
+            String channelId = Long.toString(100_000_000_000_000_000L + channel);
+            List<DiscordPostSender.Config.WebhookChannel> webhookChannels = List.of();
+            if (options.webhooks > 0) {
+                List<String> urls = new ArrayList<>();
+                for (int i = 0; i < options.webhooks; i++) {
+                    urls.add(discord.webhookUrl(channelId + "-" + i));
+                }
+                webhookChannels = List.of(new DiscordPostSender.Config.WebhookChannel(channelId, urls, Optional.empty()));
+            }
+            mappings.add(new DiscordPostSender.Config.Mapping(
+                    "channel-" + channel,
+                    getterConfig,
+                    options.webhooks > 0 ? List.of() : List.of(channelId),
+                    Optional.empty(),
+                    webhookChannels,
+                    options.batch == null ? Optional.empty() : Optional.of(new DiscordPostSender.Config.Batching(options.batch, 1000)),
+                    Optional.of(options.streaming),
+                    Optional.empty()));
+        }
+        return new DiscordPostSender.Config("token", "https://example.com/load-test", "load-test", mappings, List.of(),
+                options.outbox ? Optional.of(workDir.resolve("outbox").toString()) : Optional.empty(),
+                Optional.empty(), Optional.empty(), Optional.of(discord.apiUri().toString()), Optional.empty());
+    }
+
+    private static void report(Options options, long elapsedNanos, Usage.Used used, BlueskyStandIn bluesky, DiscordStandIn discord) {
+        var deliveries = discord.deliveries();
+        List<Long> latencies = new ArrayList<>();
+        long posts = 0;
+        for (var delivery : deliveries) {
+            var matcher = POST_LINK.matcher(delivery.content());
+            while (matcher.find()) {
+                posts++;
+                var served = bluesky.firstServed("at://%s/app.bsky.feed.post/%s".formatted(matcher.group(1), matcher.group(2)));
+                if (served != null) {
+                    latencies.add(delivery.receivedNanos() - served);
+                }
+            }
+        }
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        double seconds = elapsedNanos / 1e9;
+
+        var sb = new StringBuilder();
+        sb.append("Load test: %d sources, %d channels, %d cycles, in %.2fs%n".formatted(
+                options.actors == null ? options.sources : options.actors.size(), options.channels, options.cycles, seconds));
+        sb.append("  Bluesky:    %d requests (%.1f/s)%n".formatted(bluesky.requests(), bluesky.requests() / seconds));
+        sb.append("  Discord:    %d requests (%.1f/s), %d rate-limited%n".formatted(discord.requests(), discord.requests() / seconds, discord.rateLimited()));
+        sb.append("  Delivered:  %d posts (%.1f/s) in %d messages (%.1f/s)%n".formatted(posts, posts / seconds, deliveries.size(), deliveries.size() / seconds));
+        if (sorted.length > 0) {
+            sb.append("  Latency:    p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n".formatted(
+                    millis(percentile(sorted, 0.5)), millis(percentile(sorted, 0.9)), millis(percentile(sorted, 0.99)),
+                    millis(percentile(sorted, 0.999)), millis(sorted[sorted.length - 1])));
+        }
+        sb.append("  CPU:        %.2fs (%.0f%% of one core)%n".formatted(used.cpuNanos() / 1e9, 100 * used.cpuNanos() / (double) elapsedNanos));
+        sb.append("  Heap:       %d MiB at most%n".formatted(used.peakHeapBytes() >> 20));
+        sb.append("  GC:         %d collections, %dms%n".formatted(used.gcCount(), used.gcMillis()));
+        sb.append("  Threads:    %d platform threads at most%n".formatted(used.peakThreads()));
+        System.out.print(sb);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static String millis(long nanos) {
+        return "%.1fms".formatted(nanos / 1e6);
+    }
+
+    /**
+     * What the JVM has used between {@link #start()} and {@link #stop()}.
+     */
+    private record Usage(long cpuNanos, long gcCount, long gcMillis) {
+        private record Used(long cpuNanos, long peakHeapBytes, long gcCount, long gcMillis, int peakThreads) {}
+
+        private static Usage start() {
+            ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+            ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+            return new Usage(processCpuNanos(), collections(), collectionMillis());
+        }
+
+        private Used stop() {
+            long peakHeap = ManagementFactory.getMemoryPoolMXBeans().stream()
+                    .filter(pool -> pool.getType() == MemoryType.HEAP)
+                    .mapToLong(pool -> pool.getPeakUsage().getUsed())
+                    .sum();
+            return new Used(processCpuNanos() - this.cpuNanos, peakHeap, collections() - this.gcCount, collectionMillis() - this.gcMillis,
+                    ManagementFactory.getThreadMXBean().getPeakThreadCount());
+        }
+
+        private static long processCpuNanos() {
+            return ManagementFactory.getPlatformMXBean(OperatingSystemMXBean.class).getProcessCpuTime();
+        }
+
+        private static long collections() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+        }
+
+        private static long collectionMillis() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+        }
+    }
+
+    private static final class Options {
+        private int sources = 1000;
+        private int channels = 100;
+        private int posts = 1;
+        private int cycles = 1;
+        private String filter = "is_self_retweet";
+        private Integer batch;
+        private boolean streaming;
+        private int webhooks;
+        private boolean outbox;
+        private Path record;
+        private Path replay;
+        private List<String> actors;
+        private Integer metricsPort;
+        private DiscordStandIn.Options discord;
+
+        private static Options parse(String[] args) {
+            var options = new Options();
+            long latency = 50, jitter = 25, bucketWindow = 5000, randomRetryAfter = 1000;
+            int bucketLimit = 5, globalLimit = 50;
+            double random429 = 0.01;
+            for (int i = 0; i < args.length; i++) {
+                var arg = args[i];
+                if (arg.equals("--streaming")) {
+                    options.streaming = true;
+                    continue;
+                } else if (arg.equals("--outbox")) {
+                    options.outbox = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing a value for " + arg);
+                }
+                var value = args[++i];
+                switch (arg) {
+                    case "--sources" -> options.sources = Integer.parseInt(value);
+                    case "--channels" -> options.channels = Integer.parseInt(value);
+                    case "--posts" -> options.posts = Integer.parseInt(value);
+                    case "--cycles" -> options.cycles = Integer.parseInt(value);
+                    case "--filter" -> options.filter = value;
+                    case "--batch" -> options.batch = Integer.parseInt(value);
+                    case "--webhooks" -> options.webhooks = Integer.parseInt(value);
+                    case "--latency" -> latency = Long.parseLong(value);
+                    case "--jitter" -> jitter = Long.parseLong(value);
+                    case "--bucket-limit" -> bucketLimit = Integer.parseInt(value);
+                    case "--bucket-window" -> bucketWindow = Long.parseLong(value);
+                    case "--global-limit" -> globalLimit = Integer.parseInt(value);
+                    case "--random-429" -> random429 = Double.parseDouble(value);
+                    case "--random-retry-after" -> randomRetryAfter = Long.parseLong(value);
+                    case "--record" -> options.record = Path.of(value);
+                    case "--replay" -> options.replay = Path.of(value);
+                    case "--actors" -> options.actors = Arrays.asList(value.split(","));
+                    case "--metrics-port" -> options.metricsPort = Integer.parseInt(value);
+                    default -> throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (options.record != null && options.replay != null) {
+                throw new IllegalArgumentException("Can't record and replay at once");
+            }
+            if (options.record != null && options.actors == null) {
+                throw new IllegalArgumentException("Recording needs real accounts to follow, from --actors");
+            }
+            options.discord = new DiscordStandIn.Options(Duration.ofMillis(latency), Duration.ofMillis(jitter), bucketLimit,
+                    Duration.ofMillis(bucketWindow), globalLimit, random429, Duration.ofMillis(randomRetryAfter));
+            return options;
+        }
+    }
+}
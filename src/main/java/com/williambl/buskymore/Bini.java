@@ -1,5 +1,7 @@
 package com.williambl.buskymore;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.*;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -71,36 +73,283 @@ import java.util.stream.IntStream;
  *   [third]
  *     field1 = c
  * </pre>
+ * <li>
+ * fields which are {@code Optional}s can be left out, as can lists (which are then empty).
+ * </li>
+ * <li>
+ * when a field holds one of several kinds of object (a sealed interface), a `type` field can say which one it is. the
+ * type's name is the subtype's simple name in lowercase. without one, the kind that uses the most of the given fields
+ * is picked:
+ * </li>
+ * <pre>
+ * postSources:
+ *   []
+ *     type    = feed
+ *     userDid = did:plc:abc
+ *     feedKey = cool-posts
+ *     filter  = (true)
+ * </pre>
  * </ul>
+ *
+ * <p>This class works out the shape of records by reflection. Config classes annotated with
+ * {@code @GenerateCodecs} also get generated parsers built from the public helpers here, which don't need any.</p>
  */
 public class Bini {
+    private static final ClassValue<RecordSchema> RECORD_SCHEMAS = new ClassValue<>() {
+        @Override
+        protected RecordSchema computeValue(Class<?> type) {
+            return RecordSchema.of(type);
+        }
+    };
+    private static final ClassValue<Class<?>[]> PERMITTED_SUBCLASSES = new ClassValue<>() {
+        @Override
+        protected Class<?>[] computeValue(Class<?> type) {
+            return type.getPermittedSubclasses();
+        }
+    };
+
     public <T> T parse(Class<T> clazz, List<String> lines) {
-        if (this.isAtomic(clazz)) {
+        if (isAtomic(clazz)) {
             return (T) this.parseAtomic(clazz, lines.getFirst());
         } else {
-            try {
-                return this.parseComposite(clazz, lines, 0, null, null);
-            } catch (InvocationTargetException | IllegalAccessException | InstantiationException e) {
-                throw new RuntimeException("Failed to parse Bini value %s".formatted(String.join("\n", lines)), e);
-            }
+            return this.parseComposite(clazz, tokenise(lines), null, null);
         }
     }
 
     public String unparse(Object value) {
         StringBuilder res = new StringBuilder(512);
-        if (this.isAtomic(value.getClass())) {
-            this.unparseAtomicValue(value, res);
+        if (isAtomic(value.getClass())) {
+            appendAtomic(value, res);
         } else {
+            this.unparseCompositeValue(value, res, 0, null);
+        }
+        return res.toString();
+    }
+
+    /**
+     * The components of a record class, worked out once per class: their names, types and atomicness, a table from
+     * name to slot, and the canonical constructor and accessors as method handles. For {@code Optional} components the
+     * type is what's inside the optional.
+     */
+    private record RecordSchema(Class<?> clazz, String[] names, Type[] types, boolean[] atomic, boolean[] optional, Map<String, Integer> slots, MethodHandle constructor, MethodHandle[] accessors, int nameSlot) {
+        private static RecordSchema of(Class<?> clazz) {
+            RecordComponent[] cmps = clazz.getRecordComponents();
+            String[] names = new String[cmps.length];
+            Type[] types = new Type[cmps.length];
+            boolean[] atomic = new boolean[cmps.length];
+            boolean[] optional = new boolean[cmps.length];
+            Map<String, Integer> slots = new HashMap<>();
+            MethodHandle[] accessors = new MethodHandle[cmps.length];
+            int nameSlot = -1;
+            var lookup = MethodHandles.lookup();
             try {
-                this.unparseCompositeValue(value, res, 0, null);
-            } catch (InvocationTargetException | IllegalAccessException e) {
-                throw new RuntimeException("Failed to unparse Bini value %s".formatted(value), e);
+                for (int i = 0; i < cmps.length; i++) {
+                    var cmp = cmps[i];
+                    names[i] = getName(cmp);
+                    types[i] = cmp.getGenericType();
+                    atomic[i] = isAtomic(cmp.getType());
+                    if (cmp.getType() == Optional.class && types[i] instanceof ParameterizedType paramed) {
+                        optional[i] = true;
+                        types[i] = paramed.getActualTypeArguments()[0];
+                        atomic[i] = types[i] instanceof Class<?> inner && isAtomic(inner);
+                    }
+                    slots.put(names[i], i);
+                    accessors[i] = lookup.unreflect(cmp.getAccessor());
+                    if (cmp.getName().equals("name")) {
+                        nameSlot = i;
+                    }
+                }
+                var constructor = lookup.unreflectConstructor(clazz.getDeclaredConstructor(Arrays.stream(cmps).map(RecordComponent::getType).toArray(Class[]::new)));
+                constructor = constructor.asType(constructor.type().generic()).asSpreader(Object[].class, cmps.length);
+                return new RecordSchema(clazz, names, types, atomic, optional, Map.copyOf(slots), constructor, accessors, nameSlot);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException("This record (%s) doesn't have a constructor???".formatted(clazz.getName()), e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Can't access record %s".formatted(clazz.getName()), e);
             }
         }
-        return res.toString();
+
+        private Object construct(Object[] values) {
+            try {
+                return this.constructor.invokeExact(values);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to construct %s".formatted(this.clazz.getName()), e);
+            }
+        }
+
+        private Object get(Object record, int slot) {
+            try {
+                return this.accessors[slot].invoke(record);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to get %s of %s".formatted(this.names[slot], record), e);
+            }
+        }
+    }
+
+    /**
+     * The name of the field which says which subtype of a sealed interface an object is.
+     */
+    public static final String DISCRIMINATOR = "type";
+
+    /**
+     * A non-blank line of input, with the more-indented lines which follow it as its children.
+     */
+    public record Line(int number, int indent, String content, List<Line> children) {}
+
+    /**
+     * A {@code key = value} or {@code key:} line.
+     */
+    public record Field(Line line, String key, char separator, String value) {
+        /**
+         * Splits a line into a field, or returns null if it doesn't have a separator.
+         */
+        public static Field of(Line line) {
+            var content = line.content();
+            int keyEnd = keyEnd(content);
+            int separator = keyEnd;
+            while (separator < content.length() && Character.isWhitespace(content.charAt(separator))) {
+                separator++;
+            }
+            if (separator >= content.length()) {
+                return null;
+            }
+            char separatorChar = content.charAt(separator);
+            if (separatorChar != '=' && separatorChar != ':') {
+                return null;
+            }
+            return new Field(line, content.substring(0, keyEnd), separatorChar, content.substring(separator + 1));
+        }
+
+        public boolean isAtomic() {
+            return this.separator == '=';
+        }
+
+        public boolean isComposite() {
+            return this.separator == ':';
+        }
+
+        /**
+         * The lines of a composite value. Anything after the colon counts as the first line.
+         */
+        public List<Line> valueLines() {
+            if (this.value.isBlank()) {
+                return this.line.children();
+            }
+            List<Line> valueLines = new ArrayList<>(this.line.children().size() + 1);
+            valueLines.add(new Line(this.line.number(), this.line.indent() + 1, this.value.strip(), List.of()));
+            valueLines.addAll(this.line.children());
+            return valueLines;
+        }
+    }
+
+    /**
+     * Parses one bullet of a list: {@code value} is whatever comes after the bullet on the same line,
+     * {@code children} the lines under it, and {@code name} what's inside the brackets (or null).
+     */
+    @FunctionalInterface
+    public interface ElementParser<E> {
+        E parse(String value, List<Line> children, String name);
+    }
+
+    /**
+     * Splits the input into an indentation tree in one pass.
+     */
+    public static List<Line> tokenise(List<String> lines) {
+        List<Line> roots = new ArrayList<>();
+        Deque<Line> parents = new ArrayDeque<>();
+        for (int lineIdx = 0; lineIdx < lines.size(); lineIdx++) {
+            var text = lines.get(lineIdx);
+            if (text.isBlank()) {
+                continue;
+            }
+            int indent = 0;
+            int contentStart = 0;
+            for (; contentStart < text.length(); contentStart++) {
+                char charAt = text.charAt(contentStart);
+                if (charAt == '\t') {
+                    indent += 4;
+                } else if (charAt == ' ') {
+                    indent += 1;
+                } else {
+                    break;
+                }
+            }
+            var line = new Line(lineIdx + 1, indent, text.substring(contentStart), new ArrayList<>());
+            while (!parents.isEmpty() && parents.peek().indent() >= indent) {
+                parents.pop();
+            }
+            (parents.isEmpty() ? roots : parents.peek().children()).add(line);
+            parents.push(line);
+        }
+        return roots;
+    }
+
+    private static int keyEnd(String content) {
+        int keyEnd = 0;
+        while (keyEnd < content.length()) {
+            char charAt = content.charAt(keyEnd);
+            if (Character.isWhitespace(charAt) || charAt == '=' || charAt == ':') {
+                break;
+            }
+            keyEnd++;
+        }
+        return keyEnd;
+    }
+
+    /**
+     * The keys of all the fields at this level.
+     */
+    public static Set<String> keys(List<Line> lines) {
+        Set<String> keys = new HashSet<>();
+        for (var line : lines) {
+            keys.add(line.content().substring(0, keyEnd(line.content())));
+        }
+        return keys;
+    }
+
+    /**
+     * The value of the {@link #DISCRIMINATOR} field at this level, or null if there isn't one.
+     */
+    public static String discriminator(List<Line> lines) {
+        for (var line : lines) {
+            var field = Field.of(line);
+            if (field != null && field.isAtomic() && field.key().equals(DISCRIMINATOR)) {
+                return field.value().trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the bullets of a list.
+     */
+    public static <E> List<E> parseList(List<Line> lines, ElementParser<E> parser) {
+        List<E> values = new ArrayList<>(lines.size());
+        for (var line : lines) {
+            var content = line.content();
+            // make sure there's actually a bullet there
+            int bulletEndedAt = content.indexOf(']');
+            if (content.charAt(0) != '[' || bulletEndedAt < 0) {
+                throw new IllegalArgumentException("This line should've started with a [] bullet (at line %s): %s".formatted(line.number(), content));
+            }
+            String valueName = bulletEndedAt > 1 ? content.substring(1, bulletEndedAt) : null;
+            values.add(parser.parse(content.substring(bulletEndedAt + 1), line.children(), valueName));
+        }
+        return values;
     }
 
-    private void unparseAtomicValue(Object value, StringBuilder sb) {
+    public static IllegalArgumentException missingFields(String typeName, List<Line> lines, Collection<String> missing) {
+        return new IllegalArgumentException("Couldn't find all the fields in %s%s: missing %s :(".formatted(
+                typeName,
+                lines.isEmpty() ? "" : " (at line %s)".formatted(lines.getFirst().number()),
+                String.join(", ", missing)));
+    }
+
+    public static void appendAtomic(Object value, StringBuilder sb) {
         switch (value) {
             case Number n -> sb.append(n);
             case String s -> {
@@ -130,7 +379,7 @@ public class Bini {
         }
     }
 
-    private void unparseCompositeValue(Object obj, StringBuilder sb, int indent, RecordComponent toIgnore) throws InvocationTargetException, IllegalAccessException {
+    private void unparseCompositeValue(Object obj, StringBuilder sb, int indent, String toIgnore) {
         switch (obj) {
             case List<?> list -> this.unparseList(list, sb, indent);
             case Record record -> this.unparseRecord(record, sb, indent, toIgnore);
@@ -138,26 +387,24 @@ public class Bini {
         }
     }
 
-    private void unparseList(List<?> list, StringBuilder sb, int indent) throws InvocationTargetException, IllegalAccessException {
+    private void unparseList(List<?> list, StringBuilder sb, int indent) {
         for (int i = 0; i < list.size(); i++) {
             var value = list.get(i);
             sb.append("\t".repeat(indent));
             sb.append('[');
-            RecordComponent nameCmp = null;
+            String nameCmp = null;
             var clazz = value.getClass();
             if (clazz.isRecord()) {
-                for (var cmp : clazz.getRecordComponents()) {
-                    if (cmp.getName().equals("name")) {
-                        sb.append(cmp.getAccessor().invoke(value));
-                        nameCmp = cmp;
-                        break;
-                    }
+                var schema = RECORD_SCHEMAS.get(clazz);
+                if (schema.nameSlot() >= 0) {
+                    sb.append(schema.get(value, schema.nameSlot()));
+                    nameCmp = schema.names()[schema.nameSlot()];
                 }
             }
             sb.append(']');
-            if (this.isAtomic(value.getClass())) {
+            if (isAtomic(value.getClass())) {
                 sb.append(' ');
-                this.unparseAtomicValue(value, sb);
+                appendAtomic(value, sb);
             } else {
                 sb.append('\n');
                 this.unparseCompositeValue(value, sb, indent + 1, nameCmp);
@@ -168,52 +415,57 @@ public class Bini {
         }
     }
 
-    private void unparseRecord(Record record, StringBuilder sb, int indent, RecordComponent toIgnore) throws InvocationTargetException, IllegalAccessException {
-        var clazz = record.getClass();
-        RecordComponent[] components = clazz.getRecordComponents();
-        String[] componentNames = new String[components.length];
-        Object[] componentValues = new Object[components.length];
+    private void unparseRecord(Record record, StringBuilder sb, int indent, String toIgnore) {
+        var schema = RECORD_SCHEMAS.get(record.getClass());
+        String[] componentNames = schema.names();
+        Object[] componentValues = new Object[componentNames.length];
         int longestAtomicCmpName = 0;
-        for (int i = 0; i < components.length; i++) {
-            RecordComponent cmp = components[i];
-            if (toIgnore != null && cmp.getName().equals(toIgnore.getName())) {
+        for (int i = 0; i < componentNames.length; i++) {
+            String name = componentNames[i];
+            if (name.equals(toIgnore)) {
                 continue;
             }
-            String name = getName(cmp);
-            componentNames[i] = name;
-            var value = cmp.getAccessor().invoke(record);
+            var value = schema.get(record, i);
+            if (schema.optional()[i]) {
+                // missing optionals are just left out
+                value = ((Optional<?>) value).orElse(null);
+                if (value == null) {
+                    continue;
+                }
+            }
             componentValues[i] = value;
-            if (this.isAtomic(value.getClass())) {
+            if (isAtomic(value.getClass())) {
                 longestAtomicCmpName = Math.max(
                         longestAtomicCmpName,
                         name.length());
             }
         }
-        for (int i = 0; i < components.length; i++) {
-            var cmp = components[i];
-            if (toIgnore != null && cmp.getName().equals(toIgnore.getName())) {
-                continue;
-            }
+        boolean first = true;
+        for (int i = 0; i < componentNames.length; i++) {
             String name = componentNames[i];
             var value = componentValues[i];
+            if (value == null) {
+                continue;
+            }
+            if (!first) {
+                sb.append('\n');
+            }
+            first = false;
             sb.append("\t".repeat(indent));
             sb.append(name);
-            if (this.isAtomic(value.getClass())) {
+            if (isAtomic(value.getClass())) {
                 sb.append(" ".repeat(longestAtomicCmpName + 1 - name.length()));
                 sb.append("= ");
-                this.unparseAtomicValue(value, sb);
+                appendAtomic(value, sb);
             } else {
                 sb.append(':');
                 sb.append('\n');
                 this.unparseCompositeValue(value, sb, indent+1, null);
             }
-            if (i < components.length - 1) {
-                sb.append('\n');
-            }
         }
     }
 
-    private boolean isAtomic(Class<?> clazz) {
+    private static boolean isAtomic(Class<?> clazz) {
         return String.class.isAssignableFrom(clazz)
         || Integer.class.isAssignableFrom(clazz)|| int.class.isAssignableFrom(clazz)
         || Long.class.isAssignableFrom(clazz)|| long.class.isAssignableFrom(clazz)
@@ -223,226 +475,107 @@ public class Bini {
         || PostFilter.Fisp.class.isAssignableFrom(clazz);
     }
 
-    private <T> T parseRecord(List<String> lines, Class<T> clazz, int indent, String nameCmpName, String nameValue) throws InvocationTargetException, InstantiationException, IllegalAccessException {
-        RecordComponent[] cmps = clazz.getRecordComponents();
-        String[] cmpNames = new String[cmps.length];
-        boolean[] cmpAtomicness = new boolean[cmps.length];
-        Object[] values = new Object[cmps.length];
-        for (int i = 0; i < cmps.length; i++) {
-            var cmp = cmps[i];
-            var name = getName(cmp);
-            cmpNames[i] = name;
-            cmpAtomicness[i] = this.isAtomic(cmp.getType());
-            if (name.equals(nameCmpName)) {
-                values[i] = nameValue;
-            }
+    private <T> T parseRecord(List<Line> lines, RecordSchema schema, String nameCmpName, String nameValue) {
+        Object[] values = new Object[schema.names().length];
+        if (nameCmpName != null && schema.slots().get(nameCmpName) instanceof Integer nameSlot) {
+            values[nameSlot] = nameValue;
         }
-        // this is done up here so we're not re-allocating it every line
-        String[] possibleFields = new String[cmps.length];
-        boolean hasFoundFirstActualLine = false;
-        lineLoop:
-        for (int lineIdx = 0; lineIdx < lines.size(); lineIdx++) {
-            var line = lines.get(lineIdx);
-            if (line.isBlank()) {
+        for (var line : lines) {
+            var field = Field.of(line);
+            if (field == null) {
                 continue;
             }
-            int foundIndent = 0;
-            int fieldStartedAt = -1;
-            int foundFieldIdx = -1;
-            int fieldValueStartedAt = -1;
-            charLoop:
-            for (int charIdx = 0; charIdx < line.length(); charIdx++) {
-                char charAt = line.charAt(charIdx);
-                // scenario 1: still going through indentation
-                if (fieldStartedAt < 0 && (charAt == '\t' || charAt == ' ')) {
-                    foundIndent += (charAt == '\t' ? 4 : 1);
-                    continue;
-                }
-                // scenario 2: found the end of indentation, but havent started reading field yet
-                if (fieldStartedAt < 0) {
-                    if (foundIndent < indent) {
-                        break lineLoop;
-                    }
-                    if (foundIndent > indent && hasFoundFirstActualLine) {
-                        continue lineLoop;
-                    }
-                    // if the first line with content is more indented than expected, then we just change the expected indent to match
-                    if (!hasFoundFirstActualLine) {
-                        indent = foundIndent;
-                        hasFoundFirstActualLine = true;
-                    }
-                    fieldStartedAt = charIdx;
-                    System.arraycopy(cmpNames, 0, possibleFields, 0, cmpNames.length);
-                }
-                // scenario 3: we've found the start of the field name, but haven't worked out which field it is yet
-                if (foundFieldIdx < 0) {
-                    boolean anyFieldIsPossible = false;
-                    for (int fieldIdx = 0; fieldIdx < possibleFields.length; fieldIdx++) {
-                        String fieldName = possibleFields[fieldIdx];
-                        if (fieldName == null) {
-                            continue;
-                        }
-                        anyFieldIsPossible = true;
-                        int fieldNameCharIdx = charIdx - fieldStartedAt;
-                        if (fieldNameCharIdx >= fieldName.length()) {
-                            if (Character.isWhitespace(charAt)) {
-                                continue;
-                            } else if ((cmpAtomicness[fieldIdx] && charAt == '=') || (!cmpAtomicness[fieldIdx] && charAt == ':')) {
-                                if (!cmpAtomicness[fieldIdx]) {
-                                    // for non-atomics, we count the rest of the line as an entire initial for the non-atomic parser,
-                                    // so we use this value to split on it.
-                                    // (for atomics, we don't count the field value as starting until we've gone through all the whitespace)
-                                    fieldValueStartedAt = charIdx + 1;
-                                }
-                                foundFieldIdx = fieldIdx;
-                                continue charLoop;
-                            } else {
-                                possibleFields[fieldIdx] = null;
-                                continue;
-                            }
-                        }
-                        if (fieldName.charAt(fieldNameCharIdx) != charAt) {
-                            possibleFields[fieldIdx] = null;
-                        }
-                    }
-                    if (!anyFieldIsPossible) {
-                        continue lineLoop;
-                    }
-                }
-                // scenario 4: we've found a field and matched it and it's atomic, but we haven't found its actual start
-                if (foundFieldIdx >= 0 && fieldValueStartedAt < 0) {
-                    if (Character.isWhitespace(charAt)) {
-                        continue;
-                    } else {
-                        fieldValueStartedAt = charIdx;
-                        break;
-                    }
-                }
-            }
-
+            var slot = schema.slots().get(field.key());
             // we don't know what this field is, ignore it
-            if (foundFieldIdx < 0) {
+            if (slot == null) {
                 continue;
             }
 
             // okay we got the field yay lets actually parse it
-            if (cmpAtomicness[foundFieldIdx]) {
-                values[foundFieldIdx] = this.parseAtomic(cmps[foundFieldIdx].getGenericType(), line.substring(fieldValueStartedAt));
-            } else {
-                lines.set(lineIdx, line.substring(fieldValueStartedAt));
-                List<String> subList = lines.subList(lineIdx, lines.size());
-                values[foundFieldIdx] = this.parseComposite(cmps[foundFieldIdx].getGenericType(), subList, indent + 1, null, null);
+            if (schema.atomic()[slot] && field.isAtomic()) {
+                values[slot] = this.parseAtomic(schema.types()[slot], field.value());
+            } else if (!schema.atomic()[slot] && field.isComposite()) {
+                values[slot] = this.parseComposite(schema.types()[slot], field.valueLines(), null, null);
+            }
+            if (schema.optional()[slot] && values[slot] != null) {
+                values[slot] = Optional.of(values[slot]);
             }
         }
 
         boolean hasAllValues = true;
-        for (int i = 0; i < cmps.length; i++) {
+        for (int i = 0; i < values.length; i++) {
+            // missing collections are just empty
+            if (values[i] == null && schema.optional()[i]) {
+                values[i] = Optional.empty();
+            } else if (values[i] == null && schema.types()[i] instanceof ParameterizedType paramed && paramed.getRawType() instanceof Class<?> raw) {
+                if (List.class.isAssignableFrom(raw)) {
+                    values[i] = List.of();
+                } else if (Set.class.isAssignableFrom(raw)) {
+                    values[i] = Set.of();
+                }
+            }
             if (values[i] == null) {
                 hasAllValues = false;
-                break;
             }
         }
 
         if (!hasAllValues) {
-            throw new IllegalArgumentException("Couldn't find all the fields in %s: missing %s :(".formatted(clazz.getName(), IntStream.range(0, cmps.length).filter(i -> values[i] == null).mapToObj(i -> cmpNames[i]).collect(Collectors.joining(", "))));
+            throw missingFields(schema.clazz().getName(), lines, IntStream.range(0, values.length).filter(i -> values[i] == null).mapToObj(i -> schema.names()[i]).toList());
         }
 
-        Constructor<T> constructor;
-        try {
-            constructor = clazz.getDeclaredConstructor(Arrays.stream(cmps).map(RecordComponent::getType).toArray(Class[]::new));
-        } catch (NoSuchMethodException e) {
-            throw new IllegalStateException("This record (%s) doesn't have a constructor???".formatted(clazz.getName()), e);
-        }
-        return constructor.newInstance(values);
+        return (T) schema.construct(values);
     }
 
-    private <T> T parseComposite(Type type, List<String> lines, int indent, String name, String nameValue) throws InvocationTargetException, InstantiationException, IllegalAccessException {
+    private <T> T parseComposite(Type type, List<Line> lines, String name, String nameValue) {
         if (type instanceof Class<?> clazz) {
             if (Record.class.isAssignableFrom(clazz)) {
-                return (T) this.parseRecord(lines, clazz, indent, name, nameValue);
+                return this.parseRecord(lines, RECORD_SCHEMAS.get(clazz), name, nameValue);
             } else if (clazz.isInterface() && clazz.isSealed()) {
-                var possibilities = clazz.getPermittedSubclasses();
-                List<Exception> errors = new ArrayList<>();
-                for (var possibility : possibilities) {
-                    try {
-                        return this.parseComposite(possibility, lines, indent, name, nameValue);
-                    } catch (Exception e) {
-                        errors.add(e);
-                    }
-                }
-                throw new IllegalArgumentException("Couldn't parse %s: Errors: %s".formatted(type.getTypeName(), errors.stream().map(Throwable::getLocalizedMessage).collect(Collectors.joining("\n"))));
+                return this.parseSealed(clazz, lines, name, nameValue);
             }
         } else if (type instanceof ParameterizedType paramed
                 && paramed.getRawType() instanceof Class<?> clazz
                 && Collection.class.isAssignableFrom(clazz)
                 && paramed.getActualTypeArguments()[0] instanceof Class<?> elementClazz) {
-            return (T) this.parseCollection(lines, clazz, elementClazz, indent);
+            return (T) this.parseCollection(lines, clazz, elementClazz);
         }
         throw new UnsupportedOperationException("I don't know how to parse a %s".formatted(type.getTypeName()));
     }
 
-    private <T> T parseCollection(List<String> lines, Class<T> clazz, Class<?> elementType, int indent) throws InvocationTargetException, InstantiationException, IllegalAccessException {
-        boolean hasFoundFirstActualLine = false;
-        List<Object> values = new ArrayList<>();
-        lineLoop: for (int lineIdx = 0; lineIdx < lines.size(); lineIdx++) {
-            var line = lines.get(lineIdx);
-            if (line.isBlank()) {
-                continue;
-            }
-            int foundIndent = 0;
-            int bulletStartedAt = -1;
-            int bulletEndedAt = -1;
-            String valueName = null;
-            for (int charIdx = 0; charIdx < line.length(); charIdx++) {
-                char charAt = line.charAt(charIdx);
-                // scenario 1: still going through indentation
-                if (bulletStartedAt < 0 && (charAt == '\t' || charAt == ' ')) {
-                    foundIndent += (charAt == '\t' ? 4 : 1);
-                    continue;
-                }
-                // scenario 2: found the end of indentation
-                if (bulletStartedAt < 0) {
-                    if (foundIndent > indent && hasFoundFirstActualLine) {
-                        continue lineLoop;
-                    }
-
-                    if (foundIndent < indent) {
-                        break lineLoop;
-                    }
-
-                    // make sure there's actually a bullet there
-                    if (charAt != '[') {
-                        throw new IllegalArgumentException("This line should've started with a [] bullet: %s".formatted(line));
-                    }
-
-                    // if the first line with content is more indented than expected, then we just change the expected indent to match
-                    if (!hasFoundFirstActualLine) {
-                        indent = foundIndent;
-                        hasFoundFirstActualLine = true;
-                    }
-                    bulletStartedAt = charIdx;
-                    continue;
-                }
-                // scenario 3: going through bullet
-                if (bulletEndedAt < 0) {
-                    if (charAt != ']') {
-                        continue;
-                    }
-                    bulletEndedAt = charIdx;
-                    if (bulletEndedAt - bulletStartedAt > 1) {
-                        valueName = line.substring(bulletStartedAt + 1, bulletEndedAt);
-                    }
+    private <T> T parseSealed(Class<?> clazz, List<Line> lines, String name, String nameValue) {
+        var type = discriminator(lines);
+        if (type != null) {
+            for (var possibility : PERMITTED_SUBCLASSES.get(clazz)) {
+                if (possibility.getSimpleName().toLowerCase(Locale.ROOT).equals(type)) {
+                    return this.parseComposite(possibility, lines, name, nameValue);
                 }
-                // scenario 4: gone through bullet, need to parse an atomic
-                if (this.isAtomic(elementType)) {
-                    values.add(this.parseAtomic(elementType, line.substring(bulletEndedAt + 1)));
-                    continue lineLoop;
-                }
-                // scenario 5: gone through bullet, need to parse a composite
-                values.add(this.parseComposite(elementType, lines.subList(lineIdx + 1, lines.size()), indent + 1, this.getNameComponent(elementType), valueName));
-                continue lineLoop;
+            }
+            throw new IllegalArgumentException("There's no %s called %s (at line %s)".formatted(clazz.getTypeName(), type, lines.getFirst().number()));
+        }
+        // try the subtypes which use the most of the fields given first, so that a subtype isn't picked just because
+        // it has a subset of another's fields
+        Set<String> keys = keys(lines);
+        var possibilities = new ArrayList<>(Arrays.asList(PERMITTED_SUBCLASSES.get(clazz)));
+        possibilities.sort(Comparator.comparingInt((Class<?> possibility) -> possibility.isRecord()
+                ? (int) Arrays.stream(RECORD_SCHEMAS.get(possibility).names()).filter(keys::contains).count()
+                : 0).reversed());
+        List<Exception> errors = new ArrayList<>();
+        for (var possibility : possibilities) {
+            try {
+                return this.parseComposite(possibility, lines, name, nameValue);
+            } catch (Exception e) {
+                errors.add(e);
             }
         }
+        throw new IllegalArgumentException("Couldn't parse %s: Errors: %s".formatted(clazz.getTypeName(), errors.stream().map(Throwable::getLocalizedMessage).collect(Collectors.joining("\n"))));
+    }
+
+    private <T> T parseCollection(List<Line> lines, Class<T> clazz, Class<?> elementType) {
+        boolean elementIsAtomic = isAtomic(elementType);
+        String nameComponent = elementIsAtomic ? null : this.getNameComponent(elementType);
+        List<Object> values = parseList(lines, (value, children, valueName) -> elementIsAtomic
+                ? this.parseAtomic(elementType, value)
+                : this.parseComposite(elementType, children, nameComponent, valueName));
         if (List.class.isAssignableFrom(clazz)) {
             return (T) List.copyOf(values);
         } else if (Set.class.isAssignableFrom(clazz)) {
@@ -454,11 +587,8 @@ public class Bini {
 
     private <T> String getNameComponent(Class<T> elementType) {
         if (elementType.isRecord()) {
-            for (var cmp : elementType.getRecordComponents()) {
-                if (cmp.getName().equals("name")) {
-                    return cmp.getName();
-                }
-            }
+            var schema = RECORD_SCHEMAS.get(elementType);
+            return schema.nameSlot() >= 0 ? schema.names()[schema.nameSlot()] : null;
         }
 
         return null;
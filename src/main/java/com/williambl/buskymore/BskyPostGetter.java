@@ -16,21 +16,40 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
-import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class BskyPostGetter {
     public static final Logger LOGGER = LoggerFactory.getLogger(BskyPostGetter.class);
     private static final Set<String> NOT_EMBEDS = Set.of("app.bsky.embed.external", "app.bsky.embed.record");
-
-    public record Config(String userAgent, int backlogDays, int maxBacklogPosts, String statePath, List<PostSource> postSources) {
+    // how many streamed posts can be waiting for the subscriber before publishing waits for it
+    private static final int STREAM_BUFFER_SIZE = 64;
+    // how long one post source's requests get in all, by default, before it's cancelled
+    private static final Duration DEFAULT_SOURCE_TIMEOUT = Duration.ofMinutes(2);
+    private static final String DEFAULT_API_URI = "https://public.api.bsky.app/";
+    private static final Metrics.Histogram REQUEST_TIME = Metrics.histogram("buskymore_bsky_request_seconds", "How long Bluesky took to give us a page", "source");
+    private static final Metrics.Counter PAGES = Metrics.counter("buskymore_bsky_pages_total", "Pages of posts fetched from Bluesky", "source");
+    private static final Metrics.Counter POSTS_PARSED = Metrics.counter("buskymore_posts_parsed_total", "Posts parsed from Bluesky's responses", "source");
+    private static final Metrics.Counter POSTS_KEPT = Metrics.counter("buskymore_posts_kept_total", "Posts which passed their source's filter", "source");
+    private static final Metrics.Counter POSTS_DROPPED = Metrics.counter("buskymore_posts_dropped_total", "Posts which didn't pass their source's filter", "source");
+
+    // apiUri is where to find Bluesky's API, for testing against something else (https://public.api.bsky.app/ by default)
+    // sourceTimeoutSeconds is how long each post source's requests to Bluesky can take in all, before it's cancelled
+    // (120 by default) - time spent waiting for a streaming subscriber to catch up doesn't count
+    public record Config(String userAgent, int backlogDays, int maxBacklogPosts, String statePath, List<PostSource> postSources, Optional<String> apiUri, Optional<Long> sourceTimeoutSeconds) {
 
         sealed public interface PostSource {
             record User(String userDid, PostFilter.Fisp filter) implements PostSource {
@@ -57,15 +76,48 @@ public class BskyPostGetter {
     private final HttpClient httpClient;
     private final ExecutorService executor;
     private final Config config;
+    private final PostFilter.Functions functions;
     private final Path statePath;
+    private final URI apiUri;
+    private final Map<Config.PostSource, PostFilter> filters = new HashMap<>();
+
+    public BskyPostGetter(Config config, PostFilter.Functions functions, ExecutorService executor) {
+        this(config, functions, executor, HttpClient.newBuilder()
+                .executor(executor)
+                .build(), Map.of());
+    }
 
-    public BskyPostGetter(Config config, ExecutorService executor) {
+    private BskyPostGetter(Config config, PostFilter.Functions functions, ExecutorService executor, HttpClient httpClient, Map<Config.PostSource, PostFilter> previousFilters) {
         this.config = config;
+        this.functions = functions;
         this.executor = executor;
-        this.httpClient = HttpClient.newBuilder()
-                .executor(this.executor)
-                .build();
+        this.httpClient = httpClient;
         this.statePath = Path.of(this.config.statePath);
+        var apiUri = this.config.apiUri.orElse(DEFAULT_API_URI);
+        this.apiUri = URI.create(apiUri.endsWith("/") ? apiUri : apiUri + "/");
+        for (var postSource : this.config.postSources) {
+            var filter = previousFilters.get(postSource);
+            if (filter == null) {
+                filter = functions.build(switch (postSource) {
+                    case Config.PostSource.Feed feed -> feed.filter();
+                    case Config.PostSource.User user -> user.filter();
+                });
+            }
+            this.filters.put(postSource, filter);
+        }
+    }
+
+    /**
+     * Makes a getter for a changed config which shares this one's connections, and only compiles the filters of post
+     * sources which are new or changed. If the functions are different then everything has to be recompiled.
+     * Anything this getter is already running carries on as it was.
+     */
+    public BskyPostGetter reconfigure(Config config, PostFilter.Functions functions) {
+        return new BskyPostGetter(config, functions, this.executor, this.httpClient, functions == this.functions ? this.filters : Map.of());
+    }
+
+    public Config config() {
+        return this.config;
     }
 
     public State readState() throws IOException {
@@ -97,50 +149,102 @@ public class BskyPostGetter {
         }
     }
 
-    public CompletableFuture<Result> run(State state) {
-        return CompletableFuture.supplyAsync(() -> {
-            List<PostStream> postStreams = new ArrayList<>();
-            List<Config.PostSource> postSources = this.config.postSources;
-            Set<Config.PostSource> newSources = new HashSet<>();
-            for (var postSource : postSources) {
-                if (!state.latestPostTimestamps.containsKey(postSource.uniqueKey())) {
-                    newSources.add(postSource);
-                }
-                Instant latestPostTimestamp = state.latestPostTimestamps().getOrDefault(postSource.uniqueKey(), Instant.now().minus(this.config.backlogDays(), ChronoUnit.DAYS));
-                int maxPostCount = newSources.contains(postSource) ? this.config.maxBacklogPosts() : Integer.MAX_VALUE;
-                var filter = PostFilter.FUNCTIONS.build(switch (postSource) {
-                    case Config.PostSource.Feed feed -> feed.filter();
-                    case Config.PostSource.User user -> user.filter();
-                });
+    /**
+     * Fetches from every post source at once, and waits for them all. If any source fails, or its requests take longer
+     * than {@link Config#sourceTimeoutSeconds()}, the others are cancelled and this throws.
+     */
+    public Result run(State state) throws InterruptedException, ExecutionException {
+        List<Post> posts = new ArrayList<>();
+        var newState = this.collect(state, null, posts::addAll);
+        posts.sort(Comparator.comparing(Post::createdAt));
+        return new Result(newState, posts);
+    }
+
+    /**
+     * Like {@link #run}, but rather than collecting every post first, publishes each source's posts as soon as that
+     * source has been fetched. Each source's posts are published oldest first: its pages go from newest to oldest, so
+     * a backlog of more than a page is all fetched before any of it is published. Sources don't wait for each other,
+     * so posts from different sources are interleaved. Publishing waits while the subscriber is behind, which holds
+     * up the source - though that time doesn't count against the source's timeout.
+     *
+     * @return the new state, once every post has been published
+     */
+    public State stream(State state, Flow.Subscriber<? super Post> subscriber) throws InterruptedException, ExecutionException {
+        var publisher = new SubmissionPublisher<Post>(this.executor, STREAM_BUFFER_SIZE);
+        publisher.subscribe(subscriber);
+        try {
+            var newState = this.collect(state, post -> publish(publisher, post), $ -> {});
+            publisher.close();
+            return newState;
+        } catch (Throwable t) {
+            publisher.closeExceptionally(t);
+            throw t;
+        }
+    }
 
-                Function<Post, PostFilter.FilterContext> filterContextFactory = switch (postSource) {
-                    case Config.PostSource.Feed feed -> PostFilter.FilterContext::of;
-                    case Config.PostSource.User user -> p -> PostFilter.FilterContext.of(p, user.userDid());
-                };
+    private static void publish(SubmissionPublisher<Post> publisher, Post post) {
+        // unlike submit, this stops waiting for the subscriber if we're cancelled
+        if (publisher.offer(post, Long.MAX_VALUE, TimeUnit.NANOSECONDS, ($, $$) -> false) < 0) {
+            throw new CancellationException("Stopped publishing posts");
+        }
+    }
 
-                var postStream = (switch (postSource) {
-                    case Config.PostSource.Feed feed -> this.getPosts(feed);
-                    case Config.PostSource.User user -> this.getPosts(user);
-                })
-                        .filter(p -> p.createdAt().isAfter(latestPostTimestamp))
-                        .filter(p -> filter.test(filterContextFactory.apply(p)))
-                        .newerThan(latestPostTimestamp)
-                        .limit(maxPostCount)
-                        .build();
-                postStreams.add(postStream);
+    /**
+     * Fetches from every post source at once, each in its own subtask, and waits for them all.
+     *
+     * @param sink where each post goes as soon as we have it, or null to keep them for {@code collected}
+     * @param collected given each source's kept posts once they've all finished
+     */
+    private State collect(State state, Consumer<Post> sink, Consumer<Collection<Post>> collected) throws InterruptedException, ExecutionException {
+        List<PostStream> postStreams = new ArrayList<>();
+        var timeout = this.config.sourceTimeoutSeconds().map(Duration::ofSeconds).orElse(DEFAULT_SOURCE_TIMEOUT);
+        List<Config.PostSource> postSources = this.config.postSources;
+        Set<Config.PostSource> newSources = new HashSet<>();
+        for (var postSource : postSources) {
+            if (!state.latestPostTimestamps.containsKey(postSource.uniqueKey())) {
+                newSources.add(postSource);
             }
-            Map<String, Instant> latestPostTimestamps = new HashMap<>(state.latestPostTimestamps());
-            List<Post> posts = new ArrayList<>();
-            for (int i = 0; i < postStreams.size(); i++) {
-                var source = postSources.get(i);
-                var stream = postStreams.get(i);
-                posts.addAll(stream.posts());
-                var latest = stream.latest();
-                latestPostTimestamps.compute(source.uniqueKey(), (k, oldLatest) -> oldLatest == null || oldLatest.isBefore(latest) ? latest : oldLatest);
+            Instant latestPostTimestamp = state.latestPostTimestamps().getOrDefault(postSource.uniqueKey(), Instant.now().minus(this.config.backlogDays(), ChronoUnit.DAYS));
+            int maxPostCount = newSources.contains(postSource) ? this.config.maxBacklogPosts() : Integer.MAX_VALUE;
+            var filter = this.filters.get(postSource);
+
+            Function<Post, PostFilter.FilterContext> filterContextFactory = switch (postSource) {
+                case Config.PostSource.Feed feed -> PostFilter.FilterContext::of;
+                case Config.PostSource.User user -> p -> PostFilter.FilterContext.of(p, user.userDid());
+            };
+
+            var postStreamBuilder = (switch (postSource) {
+                case Config.PostSource.Feed feed -> this.getPosts(feed);
+                case Config.PostSource.User user -> this.getPosts(user);
+            })
+                    .filter(p -> p.createdAt().isAfter(latestPostTimestamp))
+                    .filter(p -> evaluate(filter, filterContextFactory.apply(p), postSource.uniqueKey()))
+                    .newerThan(latestPostTimestamp)
+                    .limit(maxPostCount)
+                    .within(timeout);
+            if (sink != null) {
+                postStreamBuilder.to(sink);
+            }
+            postStreams.add(postStreamBuilder.build());
+        }
+        try (var scope = new TaskScope("bsky-fetch", true)) {
+            for (var stream : postStreams) {
+                scope.fork(() -> {
+                    stream.fetch();
+                    return null;
+                });
             }
-            posts.sort(Comparator.comparing(Post::createdAt));
-            return new Result(new State(latestPostTimestamps), posts);
-        }, this.executor);
+            scope.join().throwIfFailed();
+        }
+        Map<String, Instant> latestPostTimestamps = new HashMap<>(state.latestPostTimestamps());
+        for (int i = 0; i < postStreams.size(); i++) {
+            var source = postSources.get(i);
+            var stream = postStreams.get(i);
+            collected.accept(stream.posts());
+            var latest = stream.latest();
+            latestPostTimestamps.compute(source.uniqueKey(), (k, oldLatest) -> oldLatest == null || oldLatest.isBefore(latest) ? latest : oldLatest);
+        }
+        return new State(latestPostTimestamps);
     }
 
     private PostStreamBuilder getPosts(Config.PostSource.Feed feed) {
@@ -152,7 +256,7 @@ public class BskyPostGetter {
                 query.append("&cursor=");
                 query.append(URLEncoder.encode(cursor, StandardCharsets.UTF_8));
             }
-            URI uri = URI.create("https://public.api.bsky.app/xrpc/app.bsky.feed.getFeed" + query);
+            URI uri = this.apiUri.resolve("xrpc/app.bsky.feed.getFeed" + query);
             return HttpRequest.newBuilder(uri)
                     .headers(this.makeHeaders())
                     .GET()
@@ -168,7 +272,7 @@ public class BskyPostGetter {
                 query.append("&cursor=");
                 query.append(URLEncoder.encode(cursor, StandardCharsets.UTF_8));
             }
-            URI uri = URI.create("https://public.api.bsky.app/xrpc/app.bsky.feed.getAuthorFeed" + query);
+            URI uri = this.apiUri.resolve("xrpc/app.bsky.feed.getAuthorFeed" + query);
             return HttpRequest.newBuilder(uri)
                     .headers(this.makeHeaders())
                     .GET()
@@ -176,9 +280,14 @@ public class BskyPostGetter {
         }, user.userDid());
     }
 
-    private static HttpResponse.BodyHandler<Optional<JsonElement>> jsonBodyHandler(URI uri) {
+    private static HttpResponse.BodyHandler<Optional<FeedPage>> jsonBodyHandler(URI uri, JfrEvents.BskyFetchPage event) {
         return MoreBodyHandlers.decoding(responseInfo -> {
-            HttpResponse.BodySubscriber<String> string = HttpResponse.BodyHandlers.ofString().apply(responseInfo);
+            event.status = responseInfo.statusCode();
+            // JSON is always UTF-8
+            HttpResponse.BodySubscriber<String> string = HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(), bytes -> {
+                event.bytes = bytes.length;
+                return new String(bytes, StandardCharsets.UTF_8);
+            });
             if (responseInfo.statusCode() / 100 != 2) {
                 return HttpResponse.BodySubscribers.mapping(
                         string,
@@ -193,7 +302,7 @@ public class BskyPostGetter {
                     s -> {
                         try {
                             LOGGER.trace("From: {}, received {}", uri, s);
-                            return Optional.of(JsonParser.parseString(s));
+                            return Optional.of(FeedPage.parse(s));
                         } catch (JsonParseException e) {
                             LOGGER.error("From: {}, received invalid JSON {}: ", uri, s, e);
                             return Optional.empty();
@@ -211,6 +320,12 @@ public class BskyPostGetter {
     }
 
     private interface PostStream {
+        /**
+         * Fetches page after page, until we have everything we want.
+         *
+         * @throws TimeoutException if the requests for those pages took too long, all together
+         */
+        void fetch() throws IOException, InterruptedException, TimeoutException;
         Collection<Post> posts();
         Instant latest();
     }
@@ -223,11 +338,32 @@ public class BskyPostGetter {
             }
 
             @Override
-            public CompletableFuture<Optional<JsonElement>> getFeed(String cursor) {
+            public Optional<FeedPage> getFeed(String cursor, Duration timeout) throws IOException, InterruptedException, TimeoutException {
                 var request = requestFunc.apply(cursor);
-                var bodyHandler = jsonBodyHandler(request.uri());
-                return BskyPostGetter.this.httpClient.sendAsync(request, bodyHandler)
-                        .thenApply(HttpResponse::body);
+                var event = new JfrEvents.BskyFetchPage();
+                var bodyHandler = jsonBodyHandler(request.uri(), event);
+                long start = System.nanoTime();
+                event.begin();
+                var response = BskyPostGetter.this.httpClient.sendAsync(request, bodyHandler);
+                try {
+                    return response.get(timeout.toNanos(), TimeUnit.NANOSECONDS).body();
+                } catch (ExecutionException e) {
+                    // what send would have thrown
+                    if (e.getCause() instanceof RuntimeException r) {
+                        throw r;
+                    }
+                    throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                } finally {
+                    // stops the request, if it's still going
+                    response.cancel(true);
+                    event.end();
+                    REQUEST_TIME.recordSince(start, name);
+                    if (event.shouldCommit()) {
+                        event.source = name;
+                        event.cursor = cursor;
+                        event.commit();
+                    }
+                }
             }
         };
     }
@@ -235,20 +371,29 @@ public class BskyPostGetter {
     private abstract class PostStreamBuilder implements PostStream {
         private static final int PER_REQUEST_LIMIT = 100;
         private final List<Post> buffer = new ArrayList<>(PER_REQUEST_LIMIT);
+        // each page's kept posts, oldest first, in the order the pages came - newest first
+        private final List<List<Post>> pages = new ArrayList<>();
+        private Consumer<Post> sink = this.buffer::add;
+        private int count = 0;
         private Predicate<Post> predicate = $ -> true;
         private int limit = Integer.MAX_VALUE;
         private Instant newerThanLimit = Instant.MIN;
         private Instant latest = Instant.MIN;
         private Instant oldest = Instant.MAX;
+        private Duration timeout = DEFAULT_SOURCE_TIMEOUT;
+        // how long we've spent waiting for Bluesky, which doesn't include waiting for the sink
+        private long fetchNanos = 0;
         protected String cursor = null;
 
         private boolean built = false;
-        private Supplier<CompletableFuture<Void>> task = null;
-        private CompletableFuture<Void> fut = null;
+        private boolean fetched = false;
 
         public abstract String sourceName();
 
-        public abstract CompletableFuture<Optional<JsonElement>> getFeed(String cursor);
+        /**
+         * @throws TimeoutException if the request takes longer than the timeout
+         */
+        public abstract Optional<FeedPage> getFeed(String cursor, Duration timeout) throws IOException, InterruptedException, TimeoutException;
 
         public PostStreamBuilder limit(int limit) {
             if (this.built) {
@@ -266,6 +411,18 @@ public class BskyPostGetter {
             return this;
         }
 
+        /**
+         * Sends posts to the sink once they've all been fetched, oldest first, instead of keeping them for
+         * {@link #posts()}.
+         */
+        public PostStreamBuilder to(Consumer<Post> sink) {
+            if (this.built) {
+                throw new IllegalStateException("Cannot modify an already-built PostStream!");
+            }
+            this.sink = sink;
+            return this;
+        }
+
         public PostStreamBuilder newerThan(Instant instant) {
             if (this.built) {
                 throw new IllegalStateException("Cannot modify an already-built PostStream!");
@@ -274,99 +431,198 @@ public class BskyPostGetter {
             return this;
         }
 
+        /**
+         * Gives up fetching once the requests for pages have taken this long, all together.
+         */
+        public PostStreamBuilder within(Duration timeout) {
+            if (this.built) {
+                throw new IllegalStateException("Cannot modify an already-built PostStream!");
+            }
+            this.timeout = timeout;
+            return this;
+        }
+
         public PostStream build() {
             this.built = true;
-            this.task = () -> {
-                var responseOpt = this.getFeed(this.cursor).join()
-                        .filter(JsonElement::isJsonObject)
-                        .map(JsonElement::getAsJsonObject);
-                if (responseOpt.isPresent()) {
-                    String oldCursor = this.cursor;
-                    var resObj = responseOpt.get();
-                    if (resObj.has("cursor")) {
-                        JsonElement cursorElement = resObj.get("cursor");
-                        if (cursorElement.isJsonPrimitive()) {
-                            this.cursor = cursorElement.getAsString();
-                        }
-                    }
+            return this;
+        }
 
-                    var feed = resObj.get("feed");
-                    if (!feed.isJsonArray()) {
-                        LOGGER.warn("Got no feed array in response from {}, skipping: {}", this.sourceName(), resObj);
-                        return CompletableFuture.completedFuture(null);
-                    }
+        @Override
+        public void fetch() throws IOException, InterruptedException, TimeoutException {
+            if (!this.built) {
+                throw new IllegalStateException("Cannot fetch a not-yet-built PostStream!");
+            }
+            while (this.fetchPage()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Cancelled fetching from " + this.sourceName());
+                }
+            }
+            for (var page : this.pages.reversed()) {
+                page.forEach(this.sink);
+            }
+            this.pages.clear();
+            this.fetched = true;
+        }
 
-                    int bufferSize = this.buffer.size();
-                    feed.getAsJsonArray().asList().stream()
-                            .filter(JsonObject.class::isInstance)
-                            .map(JsonObject.class::cast)
-                            .filter(j -> j.has("post") && j.get("post").isJsonObject())
-                            .filter(j -> j.getAsJsonObject("post").getAsJsonObject("record").get("$type").getAsString().equals("app.bsky.feed.post"))
-                            .map(BskyPostGetter.this::parsePost)
-                            .filter(Objects::nonNull)
-                            .sorted(Comparator.comparing(Post::createdAt))
-                            .filter(this.predicate)
-                            .limit(this.limit - bufferSize)
-                            .forEach(p -> {
-                                if (p.createdAt().isAfter(this.latest)) {
-                                    this.latest = p.createdAt();
-                                }
-                                if (p.createdAt().isBefore(this.oldest)) {
-                                    this.oldest = p.createdAt();
-                                }
-                                this.buffer.add(p);
-                            });
-                    LOGGER.info("Got {} posts from {} (just chose {}/{})", this.buffer.size(), this.sourceName(), this.buffer.size() - bufferSize, feed.getAsJsonArray().size());
-                    if (this.oldest.isAfter(this.newerThanLimit) && !(this.buffer.size() > this.limit)) {
-                        if (this.cursor != null) {
-                            if (Objects.equals(oldCursor, this.cursor)) {
-                                LOGGER.info("Reached end of feed for {}", this.sourceName());
-                                return CompletableFuture.completedFuture(null);
+        /**
+         * @return whether there's another page we want
+         */
+        private boolean fetchPage() throws IOException, InterruptedException, TimeoutException {
+            var timeLeft = this.timeout.minusNanos(this.fetchNanos);
+            if (!timeLeft.isPositive()) {
+                throw new TimeoutException("Fetching from %s took longer than %s".formatted(this.sourceName(), this.timeout));
+            }
+            Optional<FeedPage> page;
+            long start = System.nanoTime();
+            try {
+                page = this.getFeed(this.cursor, timeLeft);
+            } finally {
+                this.fetchNanos += System.nanoTime() - start;
+            }
+            if (page.isPresent()) {
+                PAGES.inc(this.sourceName());
+                String oldCursor = this.cursor;
+                var feedPage = page.get();
+                if (feedPage.cursor() != null) {
+                    this.cursor = feedPage.cursor();
+                }
+
+                if (feedPage.items() == null) {
+                    LOGGER.warn("Got no feed array in response from {}, skipping", this.sourceName());
+                    return false;
+                }
+
+                int countBefore = this.count;
+                List<Post> kept = new ArrayList<>();
+                feedPage.items().stream()
+                        .map(item -> BskyPostGetter.this.parsePost(item, this.sourceName()))
+                        .filter(Objects::nonNull)
+                        .peek($ -> POSTS_PARSED.inc(this.sourceName()))
+                        .sorted(Comparator.comparing(Post::createdAt))
+                        .filter(p -> {
+                            boolean keep = this.predicate.test(p);
+                            (keep ? POSTS_KEPT : POSTS_DROPPED).inc(this.sourceName());
+                            if (keep) {
+                                p.trace().markFiltered();
                             }
-                            return this.runTask();
-                        } else {
-                            LOGGER.warn("Want to get more from {}, but we don't have a cursor", this.sourceName());
-                            return CompletableFuture.completedFuture(null);
+                            return keep;
+                        })
+                        .limit(this.limit - countBefore)
+                        .forEach(p -> {
+                            if (p.createdAt().isAfter(this.latest)) {
+                                this.latest = p.createdAt();
+                            }
+                            if (p.createdAt().isBefore(this.oldest)) {
+                                this.oldest = p.createdAt();
+                            }
+                            this.count++;
+                            kept.add(p);
+                        });
+                this.pages.add(kept);
+                LOGGER.info("Got {} posts from {} (just chose {}/{})", this.count, this.sourceName(), this.count - countBefore, feedPage.items().size());
+                if (this.oldest.isAfter(this.newerThanLimit) && !(this.count > this.limit)) {
+                    if (this.cursor != null) {
+                        if (Objects.equals(oldCursor, this.cursor)) {
+                            LOGGER.info("Reached end of feed for {}", this.sourceName());
+                            return false;
                         }
+                        return true;
+                    } else {
+                        LOGGER.warn("Want to get more from {}, but we don't have a cursor", this.sourceName());
+                        return false;
                     }
-
-                    LOGGER.info("Got as much as we wanted from {}", this.sourceName());
-                    return CompletableFuture.completedFuture(null);
-                } else {
-                    LOGGER.warn("Got no JSON Object in response from {}, skipping", this.sourceName());
-                    return CompletableFuture.completedFuture(null);
                 }
-            };
 
-            this.fut = this.runTask();
-            return this;
-        }
-
-        private CompletableFuture<Void> runTask() {
-            return CompletableFuture.supplyAsync(this.task, BskyPostGetter.this.executor)
-                    .thenComposeAsync($ -> $, BskyPostGetter.this.executor);
+                LOGGER.info("Got as much as we wanted from {}", this.sourceName());
+                return false;
+            } else {
+                LOGGER.warn("Got no page in response from {}, skipping", this.sourceName());
+                return false;
+            }
         }
 
         @Override
         public Collection<Post> posts() {
-            if (!this.built) {
-                throw new IllegalStateException("Cannot query a not-yet-built PostStream!");
+            if (!this.fetched) {
+                throw new IllegalStateException("Cannot query a not-yet-fetched PostStream!");
             }
-            this.fut.join();
             return this.buffer;
         }
 
         @Override
         public Instant latest() {
-            if (!this.built) {
-                throw new IllegalStateException("Cannot query a not-yet-built PostStream!");
+            if (!this.fetched) {
+                throw new IllegalStateException("Cannot query a not-yet-fetched PostStream!");
             }
-            this.fut.join();
             return this.latest;
         }
     }
 
-    private Post parsePost(JsonObject j) {
+    private static boolean evaluate(PostFilter filter, PostFilter.FilterContext context, String source) {
+        var event = new JfrEvents.FilterEvaluate();
+        event.begin();
+        boolean result = filter.test(context);
+        event.end();
+        if (event.shouldCommit()) {
+            event.source = source;
+            event.uri = context.post().uri().toString();
+            event.result = result;
+            event.commit();
+        }
+        return result;
+    }
+
+    private Post parsePost(String item, String source) {
+        var event = new JfrEvents.PostParse();
+        event.begin();
+        var post = parsePost(item);
+        event.end();
+        if (event.shouldCommit()) {
+            event.source = source;
+            event.uri = post == null ? null : post.uri().toString();
+            event.commit();
+        }
+        return post;
+    }
+
+    /**
+     * Parses one item of a feed page (a {@code app.bsky.feed.defs#feedViewPost}), as it came in the page - see
+     * {@link FeedPage}. The post keeps that text as its JSON.
+     * @return the post, or null if it isn't one or can't be parsed
+     */
+    public static Post parsePost(String item) {
+        JsonObject j;
+        try {
+            if (!(JsonParser.parseString(item) instanceof JsonObject object)) {
+                return null;
+            }
+            j = object;
+        } catch (JsonParseException e) {
+            LOGGER.error("Can't parse a feed item, ignoring it: {}", item, e);
+            return null;
+        }
+        // reposts of things which aren't posts, and anything we can't see
+        if (!(j.get("post") instanceof JsonObject post)
+                || !(post.get("record") instanceof JsonObject record)
+                || !(record.get("$type") instanceof JsonPrimitive type)
+                || !type.getAsString().equals("app.bsky.feed.post")) {
+            return null;
+        }
+        return parsePost(j, item);
+    }
+
+    /**
+     * Like {@link #parsePost(String)}, for an item which has already been parsed. Its JSON has to be written back out
+     * for the post, so this is slower.
+     */
+    public static Post parsePost(JsonObject j) {
+        return parsePost(j, null);
+    }
+
+    /**
+     * @param json the item's text, or null to write it out from the item
+     */
+    private static Post parsePost(JsonObject j, String json) {
         try {
             var post = j.getAsJsonObject("post");
             var author = post.getAsJsonObject("author");
@@ -406,7 +662,7 @@ public class BskyPostGetter {
                     Optional.ofNullable(reason),
                     record.has("embed") && !(NOT_EMBEDS.contains(record.getAsJsonObject("embed").get("$type").getAsString())),
                     Set.copyOf(labels),
-                    j);
+                    json == null ? j.toString() : json);
         } catch (URISyntaxException | JsonParseException e) {
             LOGGER.error("Can't parse a post, ignoring it: {}", j, e);
             return null;
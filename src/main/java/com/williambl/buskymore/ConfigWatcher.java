@@ -0,0 +1,89 @@
+package com.williambl.buskymore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.util.function.Consumer;
+
+/**
+ * Watches a config file, and re-parses it whenever it changes. Configs which fail to parse are logged and ignored,
+ * so a half-saved file never replaces a working config.
+ */
+public class ConfigWatcher implements AutoCloseable {
+    public static final Logger LOGGER = LoggerFactory.getLogger(ConfigWatcher.class);
+    // editors often write a file in a few goes, so wait for it to settle
+    private static final long SETTLE_MILLIS = 200;
+
+    private final Path configPath;
+    private final Consumer<DiscordPostSender.Config> onChange;
+    private final WatchService watchService;
+    private final Thread thread;
+    private DiscordPostSender.Config current;
+
+    public ConfigWatcher(Path configPath, DiscordPostSender.Config current, Consumer<DiscordPostSender.Config> onChange) throws IOException {
+        this.configPath = configPath.toAbsolutePath();
+        this.current = current;
+        this.onChange = onChange;
+        this.watchService = this.configPath.getFileSystem().newWatchService();
+        // we have to watch the directory, since editors often replace the file rather than changing it
+        this.configPath.getParent().register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = Thread.ofVirtual().name("config-watcher").unstarted(this::watch);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                var key = this.watchService.take();
+                boolean changed = false;
+                for (var event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || this.configPath.getFileName().equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    Thread.sleep(SETTLE_MILLIS);
+                    // throw away anything that came in while we waited
+                    for (var extra = this.watchService.poll(); extra != null; extra = this.watchService.poll()) {
+                        extra.pollEvents();
+                        extra.reset();
+                    }
+                    this.reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            LOGGER.debug("Stopped watching {}", this.configPath);
+        }
+    }
+
+    private void reload() {
+        DiscordPostSender.Config config;
+        try {
+            config = Main.loadConfig(this.configPath);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Couldn't reload config from {}, keeping the old one", this.configPath, e);
+            return;
+        }
+        if (config.equals(this.current)) {
+            return;
+        }
+        LOGGER.info("Config at {} changed, reloading", this.configPath);
+        this.current = config;
+        this.onChange.accept(config);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.watchService.close();
+        this.thread.interrupt();
+    }
+}
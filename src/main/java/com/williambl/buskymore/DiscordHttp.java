@@ -0,0 +1,294 @@
+package com.williambl.buskymore;
+
+import com.github.mizosoft.methanol.MoreBodyHandlers;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Sends requests to Discord within its rate limits, retrying them when we get rate-limited anyway.
+ */
+public class DiscordHttp implements AutoCloseable {
+    public static final Logger LOGGER = LoggerFactory.getLogger(DiscordHttp.class);
+    public static final URI DEFAULT_API_URI = URI.create("https://discord.com/api/");
+    private static final Metrics.Histogram REQUEST_TIME = Metrics.histogram("buskymore_discord_request_seconds", "How long Discord took to answer a request", "route");
+    private static final Metrics.Counter RATE_LIMITED = Metrics.counter("buskymore_discord_rate_limited_total", "429s from Discord", "bucket", "scope");
+
+    private final HttpClient httpClient;
+    private final RateLimitedExecutor rateLimitedExecutor;
+    private final RateLimitedExecutor.ConcurrencyLimit concurrencyLimit = new RateLimitedExecutor.ConcurrencyLimit(4, 1, 64);
+    private final URI apiUri;
+    private volatile String token;
+    private volatile String userAgent;
+
+    public DiscordHttp(String token, String userAgent, ExecutorService executor) {
+        this(token, userAgent, DEFAULT_API_URI, executor);
+    }
+
+    /**
+     * @param apiUri where Discord's API is, for when it's somewhere else - like a stand-in for testing
+     */
+    public DiscordHttp(String token, String userAgent, URI apiUri, ExecutorService executor) {
+        this.apiUri = apiUri.getPath().endsWith("/") ? apiUri : URI.create(apiUri + "/");
+        // discord's global limit is 50 a second; within that, the concurrency limit finds how hard we can actually go
+        this.rateLimitedExecutor = new RateLimitedExecutor(40, Duration.ofSeconds(1), 1, this.concurrencyLimit, executor);
+        this.httpClient = HttpClient.newBuilder()
+                .executor(executor)
+                .build();
+        this.token = token;
+        this.userAgent = userAgent;
+        Metrics.gauge("buskymore_discord_queue_depth", "Discord requests waiting to be sent", this.rateLimitedExecutor::queued);
+        Metrics.gauge("buskymore_discord_concurrency_limit", "How many Discord requests we'll make at once", this.concurrencyLimit::limit);
+        Metrics.gauge("buskymore_discord_in_flight", "Discord requests being made right now", this.concurrencyLimit::inFlight);
+    }
+
+    public void setIdentity(String token, String userAgent) {
+        this.token = token;
+        this.userAgent = userAgent;
+    }
+
+    /**
+     * @return the URI of an API endpoint, from its path (like {@code channels/123/messages})
+     */
+    public URI api(String path) {
+        return this.apiUri.resolve(path);
+    }
+
+    /**
+     * @return the limit on how many requests we make at once, which adapts to how Discord is coping
+     */
+    public RateLimitedExecutor.ConcurrencyLimit concurrencyLimit() {
+        return this.concurrencyLimit;
+    }
+
+    /**
+     * @return headers for a request as the bot
+     */
+    public String[] botHeaders() {
+        return new String[] {
+                "User-Agent", this.userAgent,
+                "Content-Type", "application/json",
+                "Accept", "application/json",
+                "Accept-Encoding", "gzip",
+                "Authorization", "Bot "+this.token
+        };
+    }
+
+    /**
+     * @return headers for a request which doesn't need the bot's token, like executing a webhook
+     */
+    public String[] headers() {
+        return new String[] {
+                "User-Agent", this.userAgent,
+                "Content-Type", "application/json",
+                "Accept", "application/json",
+                "Accept-Encoding", "gzip"
+        };
+    }
+
+    /**
+     * Queues a request in a lane of its route.
+     *
+     * @return a future with the response's body, once the request has gone through - or empty if it didn't have one.
+     * It completes exceptionally if Discord didn't accept the request, or we gave up retrying it
+     */
+    public CompletableFuture<Optional<JsonElement>> send(RateLimitedExecutor.Route route, RateLimitedExecutor.Lane lane, HttpRequest request) {
+        var send = new RequestSend(route, lane, request, true);
+        this.rateLimitedExecutor.forRoute(route, lane).execute(send);
+        return send.result;
+    }
+
+    /**
+     * Like {@link #send}, but gives up rather than waiting if the route is rate-limited, for when there's something
+     * else we could do instead. If we're limited before sending, the body is empty; if we get limited sending it, the
+     * future completes exceptionally.
+     */
+    public CompletableFuture<Optional<JsonElement>> trySend(RateLimitedExecutor.Route route, RateLimitedExecutor.Lane lane, HttpRequest request) {
+        if (this.rateLimitedExecutor.isLimited(route)) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        var send = new RequestSend(route, lane, request, false);
+        this.rateLimitedExecutor.forRoute(route, lane).execute(send);
+        return send.result;
+    }
+
+    /**
+     * One request being sent. If we get rate-limited, it goes back to the front of its route's queue, so it keeps its
+     * place ahead of the requests after it on the same route and the route waits out the limit before trying again.
+     */
+    private final class RequestSend implements Runnable {
+        private static final int MAX_ATTEMPTS = 5;
+        private final RateLimitedExecutor.Route route;
+        private final RateLimitedExecutor.Lane lane;
+        private final HttpRequest request;
+        private final boolean retryRateLimited;
+        private final CompletableFuture<Optional<JsonElement>> result = new CompletableFuture<>();
+        private int attempts = 0;
+        private boolean retrying = false;
+
+        private RequestSend(RateLimitedExecutor.Route route, RateLimitedExecutor.Lane lane, HttpRequest request, boolean retryRateLimited) {
+            this.route = route;
+            this.lane = lane;
+            this.request = request;
+            this.retryRateLimited = retryRateLimited;
+        }
+
+        @Override
+        public void run() {
+            // whoever wanted this has cancelled it while it was waiting for its turn
+            if (this.result.isDone()) {
+                return;
+            }
+            this.attempts++;
+            this.retrying = false;
+            HttpResponse<Optional<JsonElement>> response;
+            var event = new JfrEvents.DiscordSend();
+            long start = System.nanoTime();
+            event.begin();
+            try {
+                response = DiscordHttp.this.httpClient.send(this.request, DiscordHttp.this.jsonRateLimitingBodyHandler(this.route, this::retry));
+            } catch (IOException | InterruptedException e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                REQUEST_TIME.recordSince(start, this.route.template());
+                this.commit(event, 0, null);
+                DiscordHttp.this.concurrencyLimit.sample(System.nanoTime() - start, true);
+                this.result.completeExceptionally(e);
+                return;
+            }
+            REQUEST_TIME.recordSince(start, this.route.template());
+            this.commit(event, response.statusCode(), response.headers().firstValue("X-RateLimit-Bucket").orElse(null));
+            DiscordHttp.this.concurrencyLimit.sample(System.nanoTime() - start, response.statusCode() == 429 || response.statusCode() >= 500);
+            var body = response.body();
+            if (this.retrying) {
+                return;
+            }
+            // including a 429 that we're not retrying, or have given up on
+            if (response.statusCode() / 100 != 2) {
+                this.result.completeExceptionally(new IOException("A request for %s got a %d from Discord".formatted(this.route.template(), response.statusCode())));
+            } else {
+                this.result.complete(body);
+            }
+        }
+
+        private void commit(JfrEvents.DiscordSend event, int status, String bucket) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.route = this.route.template();
+                event.channel = this.route.majorParameter();
+                event.status = status;
+                event.bucket = bucket;
+                event.attempt = this.attempts;
+                event.commit();
+            }
+        }
+
+        private void retry() {
+            if (!this.retryRateLimited) {
+                return;
+            }
+            if (this.attempts >= MAX_ATTEMPTS) {
+                LOGGER.error("Giving up on sending to {} after {} attempts", this.route, this.attempts);
+                return;
+            }
+            this.retrying = true;
+            DiscordHttp.this.rateLimitedExecutor.retry(this.route, 1, this.lane, this);
+        }
+    }
+
+    /**
+     * Logs requests by their route, not their URI, which for a webhook has its token in it.
+     */
+    private HttpResponse.BodyHandler<Optional<JsonElement>> jsonRateLimitingBodyHandler(RateLimitedExecutor.Route route, Runnable retry) {
+        return MoreBodyHandlers.decoding(responseInfo -> {
+            HttpResponse.BodySubscriber<String> string = HttpResponse.BodyHandlers.ofString().apply(responseInfo);
+            if (responseInfo.statusCode() == 429) {
+                HttpResponse.BodySubscriber<Optional<JsonElement>> subscriber = HttpResponse.BodySubscribers.mapping(
+                        string,
+                        str -> {
+                            LOGGER.debug("From: {}, we exceeded rate limit.\nWith body: {}", route, str);
+                            return Optional.empty();
+                        });
+                var retryAfterHeader = responseInfo.headers().firstValue("Retry-After");
+                boolean global = responseInfo.headers().firstValue("X-RateLimit-Global").map(Boolean::parseBoolean).orElse(false)
+                        || responseInfo.headers().firstValue("X-RateLimit-Scope").map("global"::equals).orElse(false);
+                RATE_LIMITED.inc(
+                        responseInfo.headers().firstValue("X-RateLimit-Bucket").orElse(route.template()),
+                        responseInfo.headers().firstValue("X-RateLimit-Scope").orElse(global ? "global" : "user"));
+                if (retryAfterHeader.isPresent()) {
+                    try {
+                        double seconds = Double.parseDouble(retryAfterHeader.get());
+                        Instant whenCanRetry = Instant.now().plusMillis((long) (seconds*1000));
+                        this.rateLimitedExecutor.markRateLimited(route, whenCanRetry, global);
+                        retry.run();
+                        LOGGER.warn("We've been rate-limited for {} seconds", seconds);
+                        return subscriber;
+                    } catch (NumberFormatException e) {
+                        this.rateLimitedExecutor.markRateLimited(route, Instant.now().plusSeconds(60), global);
+                        retry.run();
+                        LOGGER.warn("We've been rate-limited for... a non-integer number of seconds? Going to wait 1 minute.", e);
+                        return subscriber;
+                    }
+                } else {
+                    this.rateLimitedExecutor.markRateLimited(route, Instant.now().plusSeconds(60), global);
+                    retry.run();
+                    LOGGER.warn("We've been rate-limited, but they won't tell us how long for :(. Going to wait 1 minute.");
+                    return subscriber;
+                }
+            }
+
+            var remainingHeader = responseInfo.headers().firstValue("X-RateLimit-Remaining");
+            var resetAfterHeader = responseInfo.headers().firstValue("X-RateLimit-Reset-After");
+            if (remainingHeader.isPresent() && resetAfterHeader.isPresent()) {
+                double seconds = Double.parseDouble(resetAfterHeader.get());
+                Duration untilReset = Duration.ofMillis((long) (seconds*1000));
+                int remaining = Integer.parseInt(remainingHeader.get());
+                int limit = responseInfo.headers().firstValue("X-RateLimit-Limit").map(Integer::parseInt).orElse(remaining + 1);
+                var bucket = responseInfo.headers().firstValue("X-RateLimit-Bucket").orElse(null);
+                this.rateLimitedExecutor.updateLimits(route, bucket, limit, remaining, untilReset);
+            }
+            if (responseInfo.statusCode() == 204) {
+                return HttpResponse.BodySubscribers.replacing(Optional.empty());
+            }
+            if (responseInfo.statusCode() / 100 != 2) {
+                return HttpResponse.BodySubscribers.mapping(
+                        string,
+                        str -> {
+                            LOGGER.debug("From: {}, received non-OK status code: {}\nWith body: {}", route, responseInfo.statusCode(), str);
+                            return Optional.empty();//DataResult.error(() -> "Received non-OK status code %s (with body %s)".formatted(responseInfo.statusCode(), str));
+                        });
+            }
+
+            return HttpResponse.BodySubscribers.mapping(
+                    string,
+                    s -> {
+                        try {
+                            LOGGER.debug("From: {}, received {}", route, s);
+                            return Optional.of(JsonParser.parseString(s));
+                        } catch (JsonParseException e) {
+                            LOGGER.error("From: {}, received invalid JSON {}: ", route, s, e);
+                            return Optional.empty();
+                        }
+                    });
+        });
+    }
+
+    @Override
+    public void close() {
+        this.rateLimitedExecutor.close();
+    }
+}
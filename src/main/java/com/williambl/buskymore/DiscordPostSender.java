@@ -1,166 +1,514 @@
 package com.williambl.buskymore;
 
-import com.github.mizosoft.methanol.MoreBodyHandlers;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonParser;
+import com.williambl.buskymore.codegen.GenerateCodecs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 public class DiscordPostSender {
     public static final Logger LOGGER = LoggerFactory.getLogger(DiscordPostSender.class);
-    private static final String SEND_MESSAGE_URI_TEMPLATE = "https://discord.com/api/channels/%s/messages";
-
-    private final String token;
-    private final String userAgent;
-    private final HttpClient httpClient;
-    private final RateLimitedExecutor rateLimitedExecutor;
-    private final Map<BskyPostGetter, Config.Mapping> postGetters = new HashMap<>();
-
-    public record Config(String token, String botOwnerUri, String botVersion, List<Mapping> mappings) {
-        public record Mapping(String name, BskyPostGetter.Config getterConfig, List<String> channelIds) {}
-    }
-    public DiscordPostSender(Config config, ExecutorService executor) {
-        this.rateLimitedExecutor = new RateLimitedExecutor(40, Duration.ofSeconds(1), executor);
-        this.httpClient = HttpClient.newBuilder()
-                .executor(executor)
-                .build();
-        this.token = config.token();
-        this.userAgent = "DiscordBot (%s, %s) buskymore".formatted(config.botOwnerUri(), config.botVersion());
-        for (var mapping : config.mappings) {
-            this.postGetters.put(new BskyPostGetter(mapping.getterConfig(), executor), mapping);
-        }
-    }
-
-    private String[] makeHeaders() {
-        return new String[] {
-                "User-Agent", this.userAgent,
-                "Content-Type", "application/json",
-                "Accept", "application/json",
-                "Accept-Encoding", "gzip",
-                "Authorization", "Bot "+this.token
-        };
-    }
-
-    private CompletableFuture<Void> sendMessage(String channelId, String message) {
-        var payload = new JsonObject();
-        payload.addProperty("content", message);
-        var uri = URI.create(SEND_MESSAGE_URI_TEMPLATE.formatted(channelId));
-        var request = HttpRequest.newBuilder(uri)
-                .headers(this.makeHeaders())
-                .POST(HttpRequest.BodyPublishers.ofString(payload.toString()))
-                .build();
-        return CompletableFuture.runAsync(() -> {
-            //fixme rn, if we wait for ratelimit to go away then we get pushed to back of the queue
-            AtomicReference<CompletableFuture<Void>> future = new AtomicReference<>(CompletableFuture.completedFuture(null));
-            this.httpClient.sendAsync(request, this.jsonRateLimitingBodyHandler(uri, () -> future.set(this.sendMessage(channelId, message))))
-                    .thenCompose($$ -> future.get())
-                    .join();
-        }, this.rateLimitedExecutor);
-    }
-
-    private HttpResponse.BodyHandler<Optional<JsonElement>> jsonRateLimitingBodyHandler(URI uri, Runnable retry) {
-        return MoreBodyHandlers.decoding(responseInfo -> {
-            HttpResponse.BodySubscriber<String> string = HttpResponse.BodyHandlers.ofString().apply(responseInfo);
-            if (responseInfo.statusCode() / 100 != 2) {
-                return HttpResponse.BodySubscribers.mapping(
-                        string,
-                        str -> {
-                            LOGGER.debug("From: {}, received non-OK status code: {}\nWith body: {}", uri, responseInfo.statusCode(), str);
-                            return Optional.empty();//DataResult.error(() -> "Received non-OK status code %s (with body %s)".formatted(responseInfo.statusCode(), str));
-                        });
-            }
-            if (responseInfo.statusCode() == 429) {
-                HttpResponse.BodySubscriber<Optional<JsonElement>> subscriber = HttpResponse.BodySubscribers.mapping(
-                        string,
-                        str -> {
-                            LOGGER.debug("From: {}, we exceeded rate limit.\nWith body: {}", uri, str);
-                            return Optional.empty();
-                        });
-                var retryAfterHeader = responseInfo.headers().firstValue("Retry-After");
-                if (retryAfterHeader.isPresent()) {
-                    try {
-                        double seconds = Double.parseDouble(retryAfterHeader.get());
-                        Instant whenCanRetry = Instant.now().plusMillis((long) (seconds*1000));
-                        this.rateLimitedExecutor.markRateLimited(whenCanRetry);
-                        retry.run();
-                        LOGGER.warn("We've been rate-limited for {} seconds", seconds);
-                        return subscriber;
-                    } catch (NumberFormatException e) {
-                        LOGGER.warn("We've been rate-limited for... a non-integer number of seconds?", e);
-                        return subscriber;
-                    }
-                } else {
-                    this.rateLimitedExecutor.markRateLimited(Instant.now().plusSeconds(60));
-                    retry.run();
-                    LOGGER.warn("We've been rate-limited, but they won't tell us how long for :(. Going to wait 1 minute.");
-                    return subscriber;
+    private static final String MENTION = "@everyone";
+    private static final int MAX_MESSAGE_LENGTH = 2000;
+    // discord only shows embeds for the first few links in a message
+    private static final int MAX_EMBEDS = 5;
+    // posts newer than this go ahead of any backlog
+    private static final Duration FRESH_POST_AGE = Duration.ofMinutes(15);
+    // how long stopping waits for a cancelled cycle to wind down
+    private static final Duration STOP_TIMEOUT = Duration.ofSeconds(10);
+    private static final Metrics.Counter CYCLES = Metrics.counter("buskymore_cycles_total", "Fetch and send cycles started");
+    // posts can be minutes or hours old by the time we see them, so these buckets go from a second to nearly five hours
+    private static final Metrics.Histogram POST_LATENCY = Metrics.histogram("buskymore_post_latency_seconds", "How long after being created a post got to each stage", Metrics.Histogram.bounds(30, 43), "mapping", "stage");
+    private static final Metrics.Histogram STATE_WRITE_TIME = Metrics.histogram("buskymore_state_write_seconds", "How long writing a mapping's state took", "mapping");
+
+    private final DiscordHttp http;
+    private final ExecutorService executor;
+    private final Outbox outbox;
+    private volatile Config config;
+    private volatile PostFilter.Functions functions;
+    private volatile Map<BskyPostGetter, Config.Mapping> postGetters;
+    private final Map<BatchKey, ChannelBatcher> batchers = new ConcurrentHashMap<>();
+    // webhook senders remember whose turn it is, so we keep hold of them
+    private final Map<Config.WebhookChannel, MessageSender.Webhook> webhookSenders = new ConcurrentHashMap<>();
+    // held for the whole of each cycle, so that stopping can wait for the running one to wind down
+    private final ReentrantLock cycleLock = new ReentrantLock();
+    private volatile TaskScope cycle;
+    private volatile boolean stopped = false;
+
+    @GenerateCodecs("ConfigCodecs")
+    // with an outboxPath, fetched posts are written there before being sent, and are sent after a restart if they weren't
+    // with a metricsPort, metrics are served at localhost:<port>/metrics
+    // with a latencySloMillis, posts which take longer than that from being created to being sent are logged
+    // discordApiUri is where to find Discord's API, for testing against something else (https://discord.com/api/ by default)
+    // with a cycleTimeoutSeconds, whatever's left of a cycle after that long is cancelled
+    public record Config(String token, String botOwnerUri, String botVersion, List<Mapping> mappings, List<Definition> definitions, Optional<String> outboxPath, Optional<Integer> metricsPort, Optional<Long> latencySloMillis, Optional<String> discordApiUri, Optional<Long> cycleTimeoutSeconds) {
+        public Config {
+            definitions = definitions == null ? List.of() : definitions;
+        }
+
+        // if there's an announcementChannelId, which the channelIds follow, posts are sent there once and published,
+        // and only sent to the channelIds directly if that doesn't work - which includes going over Discord's limit of
+        // about 10 published messages an hour, after which each post costs one more request than without it
+        // with streaming, each post is sent as soon as it's fetched rather than once everything has been
+        // where mappings share a channel, each gets turns in proportion to its weight (one by default)
+        public record Mapping(String name, BskyPostGetter.Config getterConfig, List<String> channelIds, Optional<String> announcementChannelId, List<WebhookChannel> webhookChannels, Optional<Batching> batching, Optional<Boolean> streaming, Optional<Integer> weight) {}
+        // a channel we send to through its webhooks rather than as the bot, taking turns between them
+        public record WebhookChannel(String name, List<String> urls, Optional<Boolean> waitForMessage) {}
+        // send a channel's posts a few to a message: a message goes once it has maxPosts posts, or maxDelayMillis after its first
+        public record Batching(int maxPosts, long maxDelayMillis) {
+            public Batching {
+                if (maxPosts < 1 || maxDelayMillis < 0) {
+                    throw new IllegalArgumentException("Batches need at least one post and a non-negative delay");
                 }
             }
+        }
+        // a fisp macro which any filter in this config can use, as (name)
+        public record Definition(String name, PostFilter.Fisp body) {}
+    }
+    public DiscordPostSender(Config config, ExecutorService executor) throws IOException {
+        this.http = new DiscordHttp(config.token(), makeUserAgent(config), config.discordApiUri().map(URI::create).orElse(DiscordHttp.DEFAULT_API_URI), executor);
+        this.executor = executor;
+        this.outbox = config.outboxPath().isPresent() ? new Outbox(Path.of(config.outboxPath().get())) : null;
+        this.config = config;
+        this.functions = makeFunctions(config.definitions());
+        Map<BskyPostGetter, Config.Mapping> postGetters = new LinkedHashMap<>();
+        for (var mapping : config.mappings) {
+            postGetters.put(new BskyPostGetter(mapping.getterConfig(), this.functions, executor), mapping);
+        }
+        this.postGetters = postGetters;
+    }
 
-            var remainingHeader = responseInfo.headers().firstValue("X-RateLimit-Remaining");
-            var resetAfterHeader = responseInfo.headers().firstValue("X-RateLimit-Reset-After");
-            if (remainingHeader.isPresent() && resetAfterHeader.isPresent()) {
-                double seconds = Double.parseDouble(resetAfterHeader.get());
-                Duration untilReset = Duration.ofMillis((long) (seconds*1000));
-                int remaining = Integer.parseInt(remainingHeader.get());
-                this.rateLimitedExecutor.updateLimits(remaining, untilReset);
-            }
+    private static String makeUserAgent(Config config) {
+        return "DiscordBot (%s, %s) buskymore".formatted(config.botOwnerUri(), config.botVersion());
+    }
 
-            return HttpResponse.BodySubscribers.mapping(
-                    string,
-                    s -> {
-                        try {
-                            LOGGER.debug("From: {}, received {}", uri, s);
-                            return Optional.of(JsonParser.parseString(s));
-                        } catch (JsonParseException e) {
-                            LOGGER.error("From: {}, received invalid JSON {}: ", uri, s, e);
-                            return Optional.empty();
-                        }
-                    });
-        });
+    static PostFilter.Functions makeFunctions(List<Config.Definition> definitions) {
+        var functions = PostFilter.FUNCTIONS.derive();
+        for (var definition : definitions) {
+            functions.registerMacro(definition.name(), switch (definition.body()) {
+                case PostFilter.Fisp.Array array -> array;
+                case PostFilter.Fisp.Atom atom -> PostFilter.Fisp.arr(atom);
+            });
+        }
+        functions.freeze();
+        return functions;
     }
 
-    public CompletableFuture<Void> run() {
-        List<CompletableFuture<Void>> futures = new ArrayList<>();
+    /**
+     * Switches to a new config, only rebuilding the mappings which were added or changed (matched up by name).
+     * Unchanged mappings keep their getters, and changed ones keep their connections and the filters of unchanged
+     * post sources. Changing the definitions means every filter is recompiled. Cycles which are already running
+     * finish with the config they started with.
+     */
+    public synchronized void reconfigure(Config config) {
+        var functions = config.definitions().equals(this.config.definitions()) ? this.functions : makeFunctions(config.definitions());
+        Map<String, BskyPostGetter> oldGetters = new HashMap<>();
         for (var entry : this.postGetters.entrySet()) {
-            var postGetter = entry.getKey();
-            var mapping = entry.getValue();
+            oldGetters.put(entry.getValue().name(), entry.getKey());
+        }
+        Map<BskyPostGetter, Config.Mapping> postGetters = new LinkedHashMap<>();
+        for (var mapping : config.mappings()) {
+            var oldGetter = oldGetters.remove(mapping.name());
+            BskyPostGetter getter;
+            if (oldGetter == null) {
+                LOGGER.info("Adding mapping {}", mapping.name());
+                getter = new BskyPostGetter(mapping.getterConfig(), functions, this.executor);
+            } else if (functions == this.functions && oldGetter.config().equals(mapping.getterConfig())) {
+                getter = oldGetter;
+            } else {
+                LOGGER.info("Rebuilding mapping {}", mapping.name());
+                getter = oldGetter.reconfigure(mapping.getterConfig(), functions);
+            }
+            postGetters.put(getter, mapping);
+        }
+        for (var removed : oldGetters.keySet()) {
+            LOGGER.info("Removing mapping {}", removed);
+        }
+        if (!config.outboxPath().equals(this.config.outboxPath())) {
+            LOGGER.warn("The outbox path has changed, but the old one will be used until restarting");
+        }
+        if (!config.metricsPort().equals(this.config.metricsPort())) {
+            LOGGER.warn("The metrics port has changed, but the old one will be used until restarting");
+        }
+        if (!config.discordApiUri().equals(this.config.discordApiUri())) {
+            LOGGER.warn("Discord's API URI has changed, but the old one will be used until restarting");
+        }
+        this.http.setIdentity(config.token(), makeUserAgent(config));
+        this.functions = functions;
+        this.postGetters = postGetters;
+        this.config = config;
+        this.pruneSenders(config);
+    }
+
+    /**
+     * Lets go of the webhook senders and batchers for channels which aren't in the config any more. A batcher which
+     * still has posts waiting sends them when its timer goes off, as it would have.
+     */
+    private void pruneSenders(Config config) {
+        Set<Config.WebhookChannel> webhookChannels = new HashSet<>();
+        for (var mapping : config.mappings()) {
+            webhookChannels.addAll(mapping.webhookChannels());
+        }
+        this.webhookSenders.keySet().retainAll(webhookChannels);
+        Set<BatchKey> batched = new HashSet<>();
+        for (var mapping : config.mappings()) {
+            if (mapping.batching().isPresent()) {
+                for (var sender : this.senders(mapping)) {
+                    batched.add(new BatchKey(sender, mapping.batching().get()));
+                }
+            }
+        }
+        this.batchers.keySet().retainAll(batched);
+    }
+
+    /**
+     * Runs one cycle: every mapping at once, each in a subtask of the cycle's scope, and waits until they've sent
+     * everything or been cancelled. Posts in the outbox which failed to send before are tried again alongside them. A
+     * mapping failing doesn't hold up the others, but running out of time (see {@link Config#cycleTimeoutSeconds()})
+     * or {@link #stop() stopping} cancels them all.
+     */
+    public void run() throws InterruptedException {
+        CYCLES.inc();
+        // take a snapshot, so that a reconfigure doesn't change anything under this cycle
+        var postGetters = this.postGetters;
+        var timeout = this.config.cycleTimeoutSeconds();
+        this.cycleLock.lock();
+        try (var scope = new TaskScope("cycle", false)) {
+            // set before checking, so that either this sees stop() or stop() sees this cycle
+            this.cycle = scope;
+            if (this.stopped) {
+                return;
+            }
+            var retries = this.outbox == null ? List.<Outbox.Entry>of() : this.outbox.takeRetries();
+            if (!retries.isEmpty()) {
+                scope.fork(() -> {
+                    LOGGER.info("Trying {} posts from the outbox again", retries.size());
+                    try {
+                        this.sendFromOutbox(retries).get();
+                    } catch (ExecutionException e) {
+                        LOGGER.error("Some posts from the outbox failed to send again", e.getCause());
+                    }
+                    return null;
+                });
+            }
+            for (var entry : postGetters.entrySet()) {
+                scope.fork(() -> {
+                    this.runMapping(entry.getKey(), entry.getValue());
+                    return null;
+                });
+            }
+            if (timeout.isPresent()) {
+                try {
+                    scope.joinUntil(Instant.now().plusSeconds(timeout.get()));
+                } catch (TimeoutException e) {
+                    LOGGER.error("The cycle took longer than {} seconds, so cancelling what's left of it", timeout.get());
+                }
+            } else {
+                scope.join();
+            }
+        } finally {
+            this.cycle = null;
+            this.cycleLock.unlock();
+        }
+    }
+
+    /**
+     * Fetches and sends one mapping's posts, in the mapping's own scope for its post sources. Anything which goes
+     * wrong is logged rather than thrown, so that it's only this mapping which fails.
+     */
+    private void runMapping(BskyPostGetter postGetter, Config.Mapping mapping) throws InterruptedException {
+        try {
             BskyPostGetter.State state;
             try {
                 state = postGetter.readState();
             } catch (IOException e) {
                 LOGGER.error("Failed to read state for {}", mapping.name(), e);
-                continue;
+                return;
+            }
+
+            if (mapping.streaming().orElse(false)) {
+                LOGGER.info("Going to stream posts from {}", mapping.name());
+                var subscriber = new PostSubscriber(mapping);
+                var newState = postGetter.stream(state, subscriber);
+                // as in a normal run, the state is written once the posts are in the outbox, or sent if there isn't one
+                if (this.outbox != null) {
+                    subscriber.received.get();
+                    writeState(postGetter, mapping, newState);
+                    subscriber.sent.get();
+                } else {
+                    subscriber.sent.get();
+                    writeState(postGetter, mapping, newState);
+                }
+                if (subscriber.failed.get() > 0) {
+                    logFailedSends(subscriber.failed.get(), mapping);
+                }
+                return;
             }
 
             LOGGER.info("Going to run post getter {}", mapping.name());
-            futures.add(postGetter.run(state).thenCompose(res -> {
-                LOGGER.info("Collected {} posts from {}", res.posts().size(), mapping.name());
-                return this.sendPosts(res.posts(), mapping.channelIds()).thenAccept($ -> {
-                    try {
-                        LOGGER.info("Writing state for {}", mapping.name());
-                        postGetter.writeState(res.state());
-                    } catch (IOException e) {
-                        LOGGER.error("Failed to write state for {}", mapping.name(), e);
-                    }
-                });
+            var res = postGetter.run(state);
+            LOGGER.info("Collected {} posts from {}", res.posts().size(), mapping.name());
+            var postUris = res.posts().stream().map(Post::uri).toList();
+            // the posts are oldest first, so the fresh ones are all at the end
+            int firstFresh = 0;
+            while (firstFresh < postUris.size() && !isFresh(res.posts().get(firstFresh))) {
+                firstFresh++;
+            }
+            int split = firstFresh;
+            if (this.outbox == null) {
+                awaitSends(this.traced(res.posts(), mapping, () -> {
+                    List<CompletableFuture<Void>> sends = new ArrayList<>(this.sendPosts(postUris.subList(0, split), mapping, false));
+                    sends.addAll(this.sendPosts(postUris.subList(split, postUris.size()), mapping, true));
+                    return sends;
+                }), mapping);
+                writeState(postGetter, mapping, res.state());
+                return;
+            }
+            List<Outbox.Entry> entries;
+            try {
+                entries = this.outbox.append(mapping.name(), postUris);
+            } catch (IOException e) {
+                // without writing the state, so that we fetch these again next time
+                LOGGER.error("Failed to write posts from {} to the outbox", mapping.name(), e);
+                return;
+            }
+            // the posts are safe in the outbox now, so the next cycle can move on without waiting for them to send
+            writeState(postGetter, mapping, res.state());
+            awaitSends(this.traced(res.posts(), mapping, () -> {
+                List<CompletableFuture<Void>> sends = new ArrayList<>(this.sendEntries(entries.subList(0, split), mapping, false));
+                sends.addAll(this.sendEntries(entries.subList(split, entries.size()), mapping, true));
+                return sends;
+            }), mapping);
+        } catch (ExecutionException e) {
+            LOGGER.error("Mapping {} failed", mapping.name(), e.getCause());
+        }
+    }
+
+    /**
+     * Waits for every send to finish, and logs how many failed rather than failing the mapping: with an outbox
+     * they're still in it, and without one we'd rather move on than send the rest again.
+     */
+    private void awaitSends(List<CompletableFuture<Void>> sends, Config.Mapping mapping) throws InterruptedException {
+        try {
+            allOf(sends).get();
+        } catch (ExecutionException e) {
+            long failed = sends.stream().filter(CompletableFuture::isCompletedExceptionally).count();
+            this.logFailedSends(failed, mapping);
+        }
+    }
+
+    private void logFailedSends(long failed, Config.Mapping mapping) {
+        if (this.outbox == null) {
+            LOGGER.error("Failed to send {} posts from {}", failed, mapping.name());
+        } else {
+            LOGGER.error("Failed to send {} posts from {}, which stay in the outbox to be tried again", failed, mapping.name());
+        }
+    }
+
+    /**
+     * Sends the posts which were left in the outbox when we last stopped.
+     */
+    public CompletableFuture<Void> replayOutbox() {
+        if (this.outbox == null || this.outbox.pending().isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        LOGGER.info("Sending {} posts left in the outbox", this.outbox.pending().size());
+        return this.sendFromOutbox(this.outbox.pending());
+    }
+
+    private CompletableFuture<Void> sendFromOutbox(List<Outbox.Entry> entries) {
+        Map<String, List<Outbox.Entry>> byMapping = new LinkedHashMap<>();
+        for (var entry : entries) {
+            byMapping.computeIfAbsent(entry.mapping(), $ -> new ArrayList<>()).add(entry);
+        }
+        var config = this.config;
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (var entry : byMapping.entrySet()) {
+            var mapping = config.mappings().stream().filter(m -> m.name().equals(entry.getKey())).findFirst();
+            if (mapping.isEmpty()) {
+                LOGGER.warn("Dropping {} posts from the outbox for {}, which isn't a mapping any more", entry.getValue().size(), entry.getKey());
+                entry.getValue().forEach(this.outbox::ack);
+                continue;
+            }
+            futures.add(allOf(this.sendEntries(entry.getValue(), mapping.get(), false)));
+        }
+        return allOf(futures);
+    }
+
+    /**
+     * @return a future for each entry, which completes when it's been sent everywhere and acked
+     */
+    private List<CompletableFuture<Void>> sendEntries(List<Outbox.Entry> entries, Config.Mapping mapping, boolean fresh) {
+        var sends = this.sendPosts(entries.stream().map(Outbox.Entry::postUri).toList(), mapping, fresh);
+        List<CompletableFuture<Void>> acks = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            var entry = entries.get(i);
+            // failed posts stay in the outbox, to be tried again next cycle, or when we restart
+            acks.add(sends.get(i).whenComplete(($, e) -> {
+                if (e == null) {
+                    this.outbox.ack(entry);
+                } else {
+                    this.outbox.fail(entry);
+                }
             }));
         }
+        return acks;
+    }
+
+    /**
+     * Marks the posts as enqueued, sends them, and records how long each took to get to each stage once it's sent.
+     *
+     * @param send sends the posts, giving a future for each
+     */
+    private List<CompletableFuture<Void>> traced(List<Post> posts, Config.Mapping mapping, Supplier<List<CompletableFuture<Void>>> send) {
+        for (var post : posts) {
+            post.trace().markEnqueued();
+        }
+        var sends = send.get();
+        for (int i = 0; i < posts.size(); i++) {
+            var post = posts.get(i);
+            sends.get(i).thenRun(() -> this.recordLatency(post, mapping));
+        }
+        return sends;
+    }
+
+    private void recordLatency(Post post, Config.Mapping mapping) {
+        var trace = post.trace();
+        trace.markSent();
+        long seen = sinceCreated(post, trace.seen());
+        long filtered = sinceCreated(post, trace.filtered());
+        long enqueued = sinceCreated(post, trace.enqueued());
+        long sent = sinceCreated(post, trace.sent());
+        POST_LATENCY.record(seen, mapping.name(), "seen");
+        POST_LATENCY.record(filtered, mapping.name(), "filtered");
+        POST_LATENCY.record(enqueued, mapping.name(), "enqueued");
+        POST_LATENCY.record(sent, mapping.name(), "sent");
+        var slo = this.config.latencySloMillis();
+        if (slo.isPresent() && TimeUnit.NANOSECONDS.toMillis(sent) > slo.get()) {
+            LOGGER.warn("Post over latency SLO: mapping={} post={} created={} seen_ms={} filtered_ms={} enqueued_ms={} sent_ms={} slo_ms={}",
+                    mapping.name(), post.uri(), post.createdAt(),
+                    TimeUnit.NANOSECONDS.toMillis(seen), TimeUnit.NANOSECONDS.toMillis(filtered),
+                    TimeUnit.NANOSECONDS.toMillis(enqueued), TimeUnit.NANOSECONDS.toMillis(sent), slo.get());
+        }
+    }
+
+    /**
+     * @return nanoseconds from the post being created to the given time, which is zero if the post's clock is ahead
+     * of ours, and also if the stage was skipped
+     */
+    private static long sinceCreated(Post post, Instant when) {
+        return when == null ? 0 : Math.max(0, Duration.between(post.createdAt(), when).toNanos());
+    }
+
+    /**
+     * Sends posts as a getter streams them out, with up to {@link #MAX_IN_FLIGHT} of them being sent at once. When
+     * that many are waiting on Discord we stop asking for more, and the getter waits until there's room.
+     */
+    private final class PostSubscriber implements Flow.Subscriber<Post> {
+        private static final int MAX_IN_FLIGHT = 64;
+        private final Config.Mapping mapping;
+        // completes once every post has been received, and put in the outbox if there is one
+        private final CompletableFuture<Void> received = new CompletableFuture<>();
+        // completes once every post has been sent
+        private final CompletableFuture<Void> sent = new CompletableFuture<>();
+        // starts at one for the stream itself, which is let go of when it finishes
+        private final AtomicInteger inFlight = new AtomicInteger(1);
+        // posts which couldn't be sent, which don't stop the rest
+        private final AtomicInteger failed = new AtomicInteger();
+        private volatile Throwable failure;
+        private Flow.Subscription subscription;
+        private int count = 0;
+
+        private PostSubscriber(Config.Mapping mapping) {
+            this.mapping = mapping;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(MAX_IN_FLIGHT);
+        }
+
+        @Override
+        public void onNext(Post post) {
+            this.count++;
+            CompletableFuture<Void> send;
+            if (DiscordPostSender.this.outbox == null) {
+                send = DiscordPostSender.this.traced(List.of(post), this.mapping, () -> DiscordPostSender.this.sendPosts(List.of(post.uri()), this.mapping, isFresh(post))).getFirst();
+            } else {
+                List<Outbox.Entry> entries;
+                try {
+                    entries = DiscordPostSender.this.outbox.append(this.mapping.name(), List.of(post.uri()));
+                } catch (IOException e) {
+                    LOGGER.error("Failed to write posts from {} to the outbox", this.mapping.name(), e);
+                    this.subscription.cancel();
+                    this.onError(e);
+                    return;
+                }
+                send = DiscordPostSender.this.traced(List.of(post), this.mapping, () -> DiscordPostSender.this.sendEntries(entries, this.mapping, isFresh(post))).getFirst();
+            }
+            this.inFlight.incrementAndGet();
+            send.whenComplete(($, e) -> {
+                if (e != null) {
+                    this.failed.incrementAndGet();
+                }
+                this.subscription.request(1);
+                this.release();
+            });
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.failure = throwable;
+            this.received.completeExceptionally(throwable);
+            this.release();
+        }
 
+        @Override
+        public void onComplete() {
+            LOGGER.info("Streamed {} posts from {}", this.count, this.mapping.name());
+            this.received.complete(null);
+            this.release();
+        }
+
+        private void release() {
+            if (this.inFlight.decrementAndGet() == 0) {
+                if (this.failure == null) {
+                    this.sent.complete(null);
+                } else {
+                    this.sent.completeExceptionally(this.failure);
+                }
+            }
+        }
+    }
+
+    private static void writeState(BskyPostGetter postGetter, Config.Mapping mapping, BskyPostGetter.State state) {
+        try {
+            LOGGER.info("Writing state for {}", mapping.name());
+            long start = System.nanoTime();
+            postGetter.writeState(state);
+            STATE_WRITE_TIME.recordSince(start, mapping.name());
+        } catch (IOException e) {
+            LOGGER.error("Failed to write state for {}", mapping.name(), e);
+        }
+    }
+
+    private static CompletableFuture<Void> allOf(List<CompletableFuture<Void>> futures) {
         return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
     }
 
@@ -168,20 +516,167 @@ public class DiscordPostSender {
         LOGGER.error("Error", throwable);
     }
 
+    /**
+     * Cancels the cycle that's running, if there is one, and stops any more from starting. Posts which have already
+     * been handed to the rate limiter still go, until the http client is closed.
+     */
     public void stop() {
         LOGGER.info("Stopping");
-        this.rateLimitedExecutor.close();
+        this.stopped = true;
+        var cycle = this.cycle;
+        if (cycle != null) {
+            cycle.shutdown();
+        }
+        try {
+            if (!this.cycleLock.tryLock(STOP_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("The cycle didn't stop within {}", STOP_TIMEOUT);
+            } else {
+                this.cycleLock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.http.close();
+        if (this.outbox != null) {
+            try {
+                this.outbox.close();
+            } catch (IOException e) {
+                LOGGER.error("Failed to close the outbox", e);
+            }
+        }
     }
 
-    private CompletableFuture<Void> sendPosts(List<Post> posts, List<String> channelIds) {
-        List<CompletableFuture<?>> futures = new ArrayList<>();
-        for (var channelId : channelIds) {
-            for (var post : posts) {
-                futures.add(this.sendMessage(channelId, "@everyone " + makeEmbedUrl(post.uri())));
+    /**
+     * @return a future for each post, which completes when it's been sent everywhere
+     */
+    private List<CompletableFuture<Void>> sendPosts(List<URI> postUris, Config.Mapping mapping, boolean fresh) {
+        var lane = new RateLimitedExecutor.Lane(mapping.name(), mapping.weight().orElse(1), fresh);
+        List<List<CompletableFuture<Void>>> sends = new ArrayList<>(postUris.size());
+        for (int i = 0; i < postUris.size(); i++) {
+            sends.add(new ArrayList<>());
+        }
+        for (var sender : this.senders(mapping)) {
+            var batcher = mapping.batching().map(batching -> this.batchers.computeIfAbsent(new BatchKey(sender, batching), ChannelBatcher::new));
+            for (int i = 0; i < postUris.size(); i++) {
+                var line = makeEmbedUrl(postUris.get(i));
+                sends.get(i).add(batcher.isPresent() ? batcher.get().add(line, lane) : sender.send(MENTION + " " + line, lane));
             }
         }
 
-        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+        return sends.stream().map(DiscordPostSender::allOf).toList();
+    }
+
+    private List<MessageSender> senders(Config.Mapping mapping) {
+        List<MessageSender> senders = new ArrayList<>(mapping.channelIds().size() + mapping.webhookChannels().size());
+        List<MessageSender> botSenders = mapping.channelIds().stream()
+                .<MessageSender>map(channelId -> new MessageSender.Bot(this.http, channelId))
+                .toList();
+        if (mapping.announcementChannelId().isPresent()) {
+            senders.add(new MessageSender.Announcement(this.http, mapping.announcementChannelId().get(), botSenders));
+        } else {
+            senders.addAll(botSenders);
+        }
+        for (var webhookChannel : mapping.webhookChannels()) {
+            senders.add(this.webhookSenders.computeIfAbsent(webhookChannel, c -> new MessageSender.Webhook(this.http, c.urls(), c.waitForMessage().orElse(false))));
+        }
+        return senders;
+    }
+
+    private static boolean isFresh(Post post) {
+        return post.createdAt().isAfter(Instant.now().minus(FRESH_POST_AGE));
+    }
+
+    private record BatchKey(MessageSender sender, Config.Batching batching) {}
+
+    /**
+     * Collects the posts for one channel, and sends them as a few messages with one mention between them. Each post's
+     * future completes when the message it ended up in has been sent.
+     * <p>Posts from every lane go into the same batches, so that a channel's posts are batched however many mappings
+     * send to it. Each message waits in the lane of its first post, ahead of the backlog if any post in it is fresh.</p>
+     */
+    private final class ChannelBatcher {
+        private final MessageSender sender;
+        private final Config.Batching batching;
+        private final List<PendingPost> pending = new ArrayList<>();
+        // bumped whenever the pending posts are taken, so that an old timer doesn't flush a newer batch early
+        private long generation = 0;
+
+        private record PendingPost(String line, RateLimitedExecutor.Lane lane, CompletableFuture<Void> sent) {}
+
+        private ChannelBatcher(BatchKey key) {
+            this.sender = key.sender();
+            this.batching = key.batching();
+        }
+
+        private CompletableFuture<Void> add(String line, RateLimitedExecutor.Lane lane) {
+            var sent = new CompletableFuture<Void>();
+            List<PendingPost> batch = null;
+            synchronized (this) {
+                this.pending.add(new PendingPost(line, lane, sent));
+                if (this.pending.size() >= this.batching.maxPosts()) {
+                    batch = this.take();
+                } else if (this.pending.size() == 1) {
+                    long generation = this.generation;
+                    CompletableFuture.delayedExecutor(this.batching.maxDelayMillis(), TimeUnit.MILLISECONDS, DiscordPostSender.this.executor)
+                            .execute(() -> this.flush(generation));
+                }
+            }
+            if (batch != null) {
+                this.send(batch);
+            }
+            return sent;
+        }
+
+        private void flush(long generation) {
+            List<PendingPost> batch;
+            synchronized (this) {
+                if (generation != this.generation || this.pending.isEmpty()) {
+                    return;
+                }
+                batch = this.take();
+            }
+            this.send(batch);
+        }
+
+        private List<PendingPost> take() {
+            this.generation++;
+            var batch = List.copyOf(this.pending);
+            this.pending.clear();
+            return batch;
+        }
+
+        private void send(List<PendingPost> batch) {
+            int maxLines = Math.min(this.batching.maxPosts(), MAX_EMBEDS);
+            StringBuilder message = new StringBuilder(MENTION);
+            List<PendingPost> inMessage = new ArrayList<>();
+            for (var post : batch) {
+                if (!inMessage.isEmpty() && (inMessage.size() >= maxLines || message.length() + 1 + post.line().length() > MAX_MESSAGE_LENGTH)) {
+                    this.sendMessage(message.toString(), inMessage);
+                    message.setLength(MENTION.length());
+                    inMessage = new ArrayList<>();
+                }
+                message.append('\n').append(post.line());
+                inMessage.add(post);
+            }
+            if (!inMessage.isEmpty()) {
+                this.sendMessage(message.toString(), inMessage);
+            }
+        }
+
+        private void sendMessage(String message, List<PendingPost> inMessage) {
+            var first = inMessage.getFirst().lane();
+            boolean priority = inMessage.stream().anyMatch(post -> post.lane().priority());
+            var lane = new RateLimitedExecutor.Lane(first.name(), first.weight(), priority);
+            this.sender.send(message, lane).whenComplete(($, e) -> {
+                for (var post : inMessage) {
+                    if (e == null) {
+                        post.sent().complete(null);
+                    } else {
+                        post.sent().completeExceptionally(e);
+                    }
+                }
+            });
+        }
     }
 
     private static String makeEmbedUrl(URI uri) {
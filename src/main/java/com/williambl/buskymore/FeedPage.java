@@ -0,0 +1,162 @@
+package com.williambl.buskymore;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of a feed ({@code getAuthorFeed}, {@code getFeed}), split into the JSON text of each item without parsing
+ * the items. Each post keeps the text it came in, so its filters' paths can be selected straight from that, rather
+ * than from the post's tree being written back out.
+ *
+ * @param cursor where the next page starts, if there is one
+ * @param items each item of the page's {@code feed}, or null if the page doesn't have a feed array
+ */
+public record FeedPage(String cursor, List<String> items) {
+    /**
+     * Only checks as much of the JSON as it needs to find the items - each item is checked when it's parsed.
+     *
+     * @throws JsonParseException if the page isn't a JSON object
+     */
+    public static FeedPage parse(String json) {
+        var scanner = new Scanner(json);
+        String cursor = null;
+        List<String> items = null;
+        scanner.expect('{');
+        if (!scanner.consume('}')) {
+            do {
+                var key = JsonParser.parseString(scanner.next(scanner.skipString())).getAsString();
+                scanner.expect(':');
+                if (key.equals("feed") && scanner.peek() == '[') {
+                    items = new ArrayList<>();
+                    scanner.expect('[');
+                    if (!scanner.consume(']')) {
+                        do {
+                            items.add(scanner.next(scanner.skipValue()));
+                        } while (scanner.consume(','));
+                        scanner.expect(']');
+                    }
+                } else {
+                    var value = scanner.next(scanner.skipValue());
+                    if (key.equals("cursor") && JsonParser.parseString(value) instanceof JsonPrimitive primitive) {
+                        cursor = primitive.getAsString();
+                    }
+                }
+            } while (scanner.consume(','));
+            scanner.expect('}');
+        }
+        return new FeedPage(cursor, items);
+    }
+
+    /**
+     * Finds where values start and end, by keeping track of strings and brackets and nothing else.
+     */
+    private static final class Scanner {
+        private final String json;
+        private int position;
+
+        private Scanner(String json) {
+            this.json = json;
+        }
+
+        private char peek() {
+            while (this.position < this.json.length() && Character.isWhitespace(this.json.charAt(this.position))) {
+                this.position++;
+            }
+            if (this.position == this.json.length()) {
+                throw new JsonParseException("Unexpected end of page");
+            }
+            return this.json.charAt(this.position);
+        }
+
+        private boolean consume(char c) {
+            if (this.peek() != c) {
+                return false;
+            }
+            this.position++;
+            return true;
+        }
+
+        private void expect(char c) {
+            if (!this.consume(c)) {
+                throw new JsonParseException("Expected %s at %d of the page, but got %s".formatted(c, this.position, this.json.charAt(this.position)));
+            }
+        }
+
+        /**
+         * @return the text from here to the end, and moves past it
+         */
+        private String next(int end) {
+            var text = this.json.substring(this.position, end);
+            this.position = end;
+            return text;
+        }
+
+        /**
+         * @return where the value here ends
+         */
+        private int skipValue() {
+            char first = this.peek();
+            if (first == '"') {
+                return this.skipString();
+            }
+            int i = this.position;
+            if (first == '{' || first == '[') {
+                int depth = 0;
+                do {
+                    char c = this.charAt(i);
+                    if (c == '"') {
+                        i = this.skipString(i);
+                        continue;
+                    }
+                    if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    }
+                    i++;
+                } while (depth > 0);
+                return i;
+            }
+            // a number or a literal
+            while (i < this.json.length() && ",}] \t\r\n".indexOf(this.json.charAt(i)) < 0) {
+                i++;
+            }
+            return i;
+        }
+
+        private int skipString() {
+            if (this.peek() != '"') {
+                throw new JsonParseException("Expected a string at %d of the page".formatted(this.position));
+            }
+            return this.skipString(this.position);
+        }
+
+        /**
+         * @return where the string starting at {@code start} ends
+         */
+        private int skipString(int start) {
+            int i = start + 1;
+            while (true) {
+                char c = this.charAt(i);
+                if (c == '\\') {
+                    i += 2;
+                } else if (c == '"') {
+                    return i + 1;
+                } else {
+                    i++;
+                }
+            }
+        }
+
+        private char charAt(int i) {
+            if (i >= this.json.length()) {
+                throw new JsonParseException("Unexpected end of page");
+            }
+            return this.json.charAt(i);
+        }
+    }
+}
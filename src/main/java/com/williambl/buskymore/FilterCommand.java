@@ -0,0 +1,353 @@
+package com.williambl.buskymore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs filters over posts saved on disk, to see what they match and how quickly before they're deployed. Posts go
+ * through the same {@link BskyPostGetter#parsePost} and {@link PostFilter} as they would when fetched.
+ * <p>Usage: {@code buskymore filter [options] <corpus.jsonl>}, where each line of the corpus is an item of a feed (as
+ * in a page from {@code getAuthorFeed}) or a whole page. The options are</p>
+ * <ul>
+ *     <li>{@code --config <path>} run every post source's filter in this config, with its definitions</li>
+ *     <li>{@code --filter <fisp>} run this filter instead, with the config's definitions if there is one</li>
+ *     <li>{@code --user <did>} whose posts {@code --filter} is for, as with a user post source</li>
+ *     <li>{@code --threads <n>} how many posts to work on at once (one per core by default)</li>
+ *     <li>{@code --no-profile} don't time each function, which slows evaluation down a little</li>
+ * </ul>
+ * <p>The matches are written to stdout, a line each ({@code filter \t post uri}, in the corpus's order), and the
+ * report to stderr.</p>
+ */
+public final class FilterCommand {
+    public static final Logger LOGGER = LoggerFactory.getLogger(FilterCommand.class);
+    private static final int CHUNK_SIZE = 256;
+    private static final Chunk END = new Chunk(-1, List.of());
+
+    private record NamedFilter(String name, PostFilter filter, String userDid) {}
+
+    private record Chunk(long firstLine, List<String> lines) {}
+
+    private record Match(long line, int item, int filter, URI postUri) {}
+
+    private record WorkerResult(long posts, long unparsable, long parseNanos, long[] filterNanos, long[] matchCounts, List<Match> matches) {}
+
+    private FilterCommand() {}
+
+    public static void run(String[] args) throws IOException, InterruptedException {
+        Path configPath = null;
+        String filterText = null;
+        String userDid = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean profile = true;
+        Path corpusPath = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--config" -> configPath = Path.of(args[++i]);
+                case "--filter" -> filterText = args[++i];
+                case "--user" -> userDid = args[++i];
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--no-profile" -> profile = false;
+                default -> corpusPath = Path.of(args[i]);
+            }
+        }
+        if (corpusPath == null || (configPath == null && filterText == null)) {
+            throw new IllegalArgumentException("Usage: buskymore filter [--config <path>] [--filter <fisp>] [--user <did>] [--threads <n>] [--no-profile] <corpus.jsonl>");
+        }
+
+        var config = configPath == null ? null : Main.loadConfig(configPath);
+        var functions = config == null ? PostFilter.FUNCTIONS : DiscordPostSender.makeFunctions(config.definitions());
+        var times = profile ? new FunctionTimes() : null;
+        if (times != null) {
+            functions = functions.wrapped(times::wrap);
+        }
+        List<NamedFilter> filters = new ArrayList<>();
+        if (filterText != null) {
+            filters.add(new NamedFilter("filter", functions.build(PostFilter.Fisp.parse(filterText)), userDid));
+        } else {
+            for (var mapping : config.mappings()) {
+                for (var postSource : mapping.getterConfig().postSources()) {
+                    filters.add(switch (postSource) {
+                        case BskyPostGetter.Config.PostSource.Feed feed -> new NamedFilter(mapping.name() + "/" + feed.uniqueKey(), functions.build(feed.filter()), null);
+                        case BskyPostGetter.Config.PostSource.User user -> new NamedFilter(mapping.name() + "/" + user.uniqueKey(), functions.build(user.filter()), user.userDid());
+                    });
+                }
+            }
+        }
+
+        BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(threads * 4);
+        List<WorkerResult> results = new ArrayList<>();
+        long start = System.nanoTime();
+        try (var pool = Executors.newFixedThreadPool(threads)) {
+            List<Future<WorkerResult>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(pool.submit(() -> work(queue, filters)));
+            }
+            // if a worker fails, stop handing out chunks, rather than waiting forever for it to take them
+            try (var lines = Files.newBufferedReader(corpusPath, StandardCharsets.UTF_8)) {
+                long lineNumber = 0;
+                List<String> chunk = new ArrayList<>(CHUNK_SIZE);
+                boolean handedOver = true;
+                String line;
+                while (handedOver && (line = lines.readLine()) != null) {
+                    chunk.add(line);
+                    if (chunk.size() == CHUNK_SIZE) {
+                        handedOver = offer(queue, new Chunk(lineNumber, chunk), workers);
+                        lineNumber += chunk.size();
+                        chunk = new ArrayList<>(CHUNK_SIZE);
+                    }
+                }
+                if (handedOver) {
+                    offer(queue, new Chunk(lineNumber, chunk), workers);
+                }
+            } finally {
+                for (int i = 0; i < threads && offer(queue, END, workers); i++) {}
+            }
+            for (var worker : workers) {
+                if (worker.state() == Future.State.FAILED) {
+                    // the others might be waiting for chunks which aren't coming
+                    pool.shutdownNow();
+                    throw new IllegalStateException("Failed to evaluate filters", worker.exceptionNow());
+                }
+            }
+            for (var worker : workers) {
+                results.add(worker.get());
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to evaluate filters", e.getCause());
+        }
+        long elapsed = System.nanoTime() - start;
+
+        List<Match> matches = new ArrayList<>();
+        for (var result : results) {
+            matches.addAll(result.matches());
+        }
+        matches.sort(Comparator.comparingLong(Match::line).thenComparingInt(Match::item).thenComparingInt(Match::filter));
+        var out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        for (var match : matches) {
+            out.append(filters.get(match.filter()).name()).append('\t').append(match.postUri().toString()).append('\n');
+        }
+        out.flush();
+        System.err.print(report(filters, results, elapsed, threads, times));
+    }
+
+    private static WorkerResult work(BlockingQueue<Chunk> queue, List<NamedFilter> filters) throws InterruptedException {
+        long posts = 0;
+        long unparsable = 0;
+        long parseNanos = 0;
+        long[] filterNanos = new long[filters.size()];
+        long[] matchCounts = new long[filters.size()];
+        List<Match> matches = new ArrayList<>();
+        for (var chunk = queue.take(); chunk != END; chunk = queue.take()) {
+            for (int l = 0; l < chunk.lines().size(); l++) {
+                var line = chunk.lines().get(l);
+                if (line.isBlank()) {
+                    continue;
+                }
+                long parseStart = System.nanoTime();
+                List<String> items;
+                try {
+                    items = items(line);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Line {} isn't a feed item or a page: {}", chunk.firstLine() + l + 1, e.getMessage());
+                    unparsable++;
+                    continue;
+                }
+                List<Post> parsed = new ArrayList<>(items.size());
+                for (int item = 0; item < items.size(); item++) {
+                    try {
+                        parsed.add(BskyPostGetter.parsePost(items.get(item)));
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Item {} of line {} isn't a post: {}", item, chunk.firstLine() + l + 1, e.toString());
+                        parsed.add(null);
+                    }
+                }
+                parseNanos += System.nanoTime() - parseStart;
+                for (int item = 0; item < parsed.size(); item++) {
+                    var post = parsed.get(item);
+                    if (post == null) {
+                        unparsable++;
+                        continue;
+                    }
+                    int firstMatch = matches.size();
+                    try {
+                        for (int f = 0; f < filters.size(); f++) {
+                            var filter = filters.get(f);
+                            long filterStart = System.nanoTime();
+                            boolean matched = filter.filter().test(filter.userDid() == null
+                                    ? PostFilter.FilterContext.of(post)
+                                    : PostFilter.FilterContext.of(post, filter.userDid()));
+                            filterNanos[f] += System.nanoTime() - filterStart;
+                            if (matched) {
+                                matchCounts[f]++;
+                                matches.add(new Match(chunk.firstLine() + l, item, f, post.uri()));
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        // something about the post which parsePost let through, but the filters can't cope with
+                        LOGGER.warn("Item {} of line {} couldn't be filtered: {}", item, chunk.firstLine() + l + 1, e.toString());
+                        var itemMatches = matches.subList(firstMatch, matches.size());
+                        for (var match : itemMatches) {
+                            matchCounts[match.filter()]--;
+                        }
+                        itemMatches.clear();
+                        unparsable++;
+                        continue;
+                    }
+                    posts++;
+                }
+            }
+        }
+        return new WorkerResult(posts, unparsable, parseNanos, filterNanos, matchCounts, matches);
+    }
+
+    /**
+     * Hands a chunk to the workers, giving up if one of them has failed - the rest might never make room for it.
+     * @return whether the chunk was handed over
+     */
+    private static boolean offer(BlockingQueue<Chunk> queue, Chunk chunk, List<Future<WorkerResult>> workers) throws InterruptedException {
+        while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+            if (workers.stream().anyMatch(worker -> worker.state() == Future.State.FAILED)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the items of a feed page, or just the item if it is one
+     */
+    private static List<String> items(String line) {
+        var page = FeedPage.parse(line);
+        return page.items() == null ? List.of(line) : page.items();
+    }
+
+    private static String report(List<NamedFilter> filters, List<WorkerResult> results, long elapsedNanos, int threads, FunctionTimes times) {
+        long posts = 0;
+        long unparsable = 0;
+        long parseNanos = 0;
+        long[] filterNanos = new long[filters.size()];
+        long[] matchCounts = new long[filters.size()];
+        for (var result : results) {
+            posts += result.posts();
+            unparsable += result.unparsable();
+            parseNanos += result.parseNanos();
+            for (int f = 0; f < filters.size(); f++) {
+                filterNanos[f] += result.filterNanos()[f];
+                matchCounts[f] += result.matchCounts()[f];
+            }
+        }
+        long totalFilterNanos = 0;
+        for (long nanos : filterNanos) {
+            totalFilterNanos += nanos;
+        }
+        double seconds = elapsedNanos / 1e9;
+
+        var sb = new StringBuilder();
+        sb.append("%d filters over %d posts (%d unparsable) in %.2fs on %d threads: %.0f posts/s%s%n".formatted(
+                filters.size(), posts, unparsable, seconds, threads, posts / seconds, times == null ? "" : " (with profiling)"));
+        sb.append("Parsing took %.2fs of the threads' time, filtering %.2fs%n".formatted(parseNanos / 1e9, totalFilterNanos / 1e9));
+        int nameWidth = Math.max(6, filters.stream().mapToInt(f -> f.name().length()).max().orElse(0));
+        sb.append(("%n%-" + nameWidth + "s %10s %12s%n").formatted("Filter", "Matches", "Time/post"));
+        for (int f = 0; f < filters.size(); f++) {
+            sb.append(("%-" + nameWidth + "s %10d %12s%n").formatted(filters.get(f).name(), matchCounts[f], nanos(posts == 0 ? 0 : filterNanos[f] / (double) posts)));
+        }
+        if (times != null) {
+            sb.append("%n%-24s %12s %10s %10s %12s%n".formatted("Function", "Calls", "Total", "Self", "Self/call"));
+            var stats = new ArrayList<>(times.stats.entrySet());
+            stats.sort(Comparator.comparingLong((Map.Entry<String, FunctionTimes.Stats> e) -> e.getValue().selfNanos.sum()).reversed());
+            for (var entry : stats) {
+                var stat = entry.getValue();
+                long calls = stat.calls.sum();
+                if (calls == 0) {
+                    continue;
+                }
+                sb.append("%-24s %12d %9.0fms %9.0fms %12s%n".formatted(entry.getKey(), calls,
+                        stat.totalNanos.sum() / 1e6, stat.selfNanos.sum() / 1e6, nanos(stat.selfNanos.sum() / (double) calls)));
+            }
+            sb.append("(total includes the functions each one calls, self doesn't; macros are counted as what they expand to)%n".formatted());
+        }
+        return sb.toString();
+    }
+
+    private static String nanos(double nanos) {
+        return nanos >= 1000 ? "%.1fus".formatted(nanos / 1000) : "%.0fns".formatted(nanos);
+    }
+
+    /**
+     * How long each function has taken, across all threads: both in total, and by itself, leaving out the functions it
+     * called.
+     */
+    private static final class FunctionTimes {
+        private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+        private final ThreadLocal<Frames> frames = ThreadLocal.withInitial(Frames::new);
+
+        private static final class Stats {
+            private final LongAdder calls = new LongAdder();
+            private final LongAdder totalNanos = new LongAdder();
+            private final LongAdder selfNanos = new LongAdder();
+        }
+
+        /**
+         * For each function being evaluated on a thread, innermost last, how long the functions it has called took.
+         */
+        private static final class Frames {
+            private long[] childNanos = new long[16];
+            private int depth;
+
+            private void push() {
+                if (++this.depth == this.childNanos.length) {
+                    this.childNanos = Arrays.copyOf(this.childNanos, this.childNanos.length * 2);
+                }
+                this.childNanos[this.depth] = 0;
+            }
+
+            /**
+             * @return how long the functions called by the function which just finished took
+             */
+            private long pop(long elapsedNanos) {
+                long children = this.childNanos[this.depth--];
+                this.childNanos[this.depth] += elapsedNanos;
+                return children;
+            }
+        }
+
+        private PostFilter.FispFunc wrap(String name, PostFilter.FispFunc func) {
+            var stats = this.stats.computeIfAbsent(name, $ -> new Stats());
+            return (fisp, functions, context) -> {
+                var frames = this.frames.get();
+                frames.push();
+                long start = System.nanoTime();
+                try {
+                    return func.apply(fisp, functions, context);
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    long children = frames.pop(elapsed);
+                    stats.calls.increment();
+                    stats.totalNanos.add(elapsed);
+                    stats.selfNanos.add(elapsed - children);
+                }
+            };
+        }
+    }
+}
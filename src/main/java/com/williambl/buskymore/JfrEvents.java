@@ -0,0 +1,108 @@
+package com.williambl.buskymore;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder events for each stage of a post's life, so that a recording can line our latency up with GC,
+ * pinning and I/O. They're all off by default: turn them on with e.g.
+ * {@code -XX:StartFlightRecording:+buskymore.DiscordSend#enabled=true}, or in a {@code .jfc} file.
+ */
+public final class JfrEvents {
+    private JfrEvents() {}
+
+    @Name("buskymore.BskyFetchPage")
+    @Label("Bluesky Fetch Page")
+    @Description("Fetching one page of a post source from Bluesky")
+    @Category({"Buskymore", "Bluesky"})
+    @Enabled(false)
+    @Threshold("20 ms")
+    @StackTrace(false)
+    public static final class BskyFetchPage extends Event {
+        @Label("Source")
+        public String source;
+        @Label("Cursor")
+        public String cursor;
+        @Label("Status")
+        public int status;
+        @Label("Size")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("buskymore.PostParse")
+    @Label("Post Parse")
+    @Description("Turning one post from a Bluesky response into a Post")
+    @Category({"Buskymore", "Bluesky"})
+    @Enabled(false)
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static final class PostParse extends Event {
+        @Label("Source")
+        public String source;
+        @Label("Post URI")
+        public String uri;
+    }
+
+    @Name("buskymore.FilterEvaluate")
+    @Label("Filter Evaluate")
+    @Description("Running a post source's filter on one post")
+    @Category({"Buskymore", "Filters"})
+    @Enabled(false)
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static final class FilterEvaluate extends Event {
+        @Label("Source")
+        public String source;
+        @Label("Post URI")
+        public String uri;
+        @Label("Result")
+        public boolean result;
+    }
+
+    @Name("buskymore.DiscordSend")
+    @Label("Discord Send")
+    @Description("One attempt at a request to Discord")
+    @Category({"Buskymore", "Discord"})
+    @Enabled(false)
+    @Threshold("20 ms")
+    @StackTrace(false)
+    public static final class DiscordSend extends Event {
+        @Label("Route")
+        public String route;
+        @Label("Channel")
+        @Description("The route's major parameter: a channel id, or a webhook's id")
+        public String channel;
+        @Label("Status")
+        public int status;
+        @Label("Bucket")
+        public String bucket;
+        @Label("Attempt")
+        public int attempt;
+    }
+
+    @Name("buskymore.RateLimitWait")
+    @Label("Rate Limit Wait")
+    @Description("A task waiting in the rate limiter's queues, from being queued to being run")
+    @Category({"Buskymore", "Discord"})
+    @Enabled(false)
+    @Threshold("10 ms")
+    @StackTrace(false)
+    public static final class RateLimitWait extends Event {
+        @Label("Route")
+        public String route;
+        @Label("Major Parameter")
+        public String majorParameter;
+        @Label("Lane")
+        public String lane;
+        @Label("Priority")
+        public boolean priority;
+    }
+}
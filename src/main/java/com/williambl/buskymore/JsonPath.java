@@ -3,14 +3,47 @@ package com.williambl.buskymore;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
 
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.util.*;
-import java.util.function.IntPredicate;
-import java.util.stream.IntStream;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Stream;
 
-public record JsonPath(List<Segment> segments) {
+public final class JsonPath {
+    private final List<Segment> segments;
+    // compiled the first time this path is used, then kept
+    private volatile Compiled compiled;
+
+    public JsonPath(List<Segment> segments) {
+        this.segments = segments;
+    }
+
+    public List<Segment> segments() {
+        return this.segments;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof JsonPath other && this.segments.equals(other.segments);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.segments.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "JsonPath[segments=" + this.segments + "]";
+    }
+
     public static JsonPath of(Segment... segments) {
         return new JsonPath(Arrays.asList(segments));
     }
@@ -51,85 +84,497 @@ public record JsonPath(List<Segment> segments) {
         return new Selector.SliceSelector(start, end, step);
     }
 
+    public static Selector.FilterSelector filter(FilterExpression expression) {
+        return new Selector.FilterSelector(expression);
+    }
+
+    /**
+     * Parses a JSONPath query, as in <a href="https://www.rfc-editor.org/rfc/rfc9535">RFC 9535</a>, e.g.
+     * {@code $.post.record.facets[?@['$type'] == 'app.bsky.richtext.facet#link']}.
+     * <p>As an extension, member name shorthands ({@code .name}) may also contain {@code $}, so that AT Protocol
+     * {@code $type} fields can be written as {@code @.$type}.</p>
+     * @throws IllegalArgumentException if the query isn't valid
+     */
+    public static JsonPath parse(String query) {
+        return new Parser(query).parseQuery();
+    }
+
     public Stream<JsonElement> select(JsonElement root) {
-        Stream<JsonElement> stream = Stream.of(root);
-        for (var segment : this.segments) {
-            stream = segment.select(stream);
+        List<JsonElement> out = new ArrayList<>();
+        this.compile().select(root, out);
+        return out.stream();
+    }
+
+    /**
+     * Compiles this path into an evaluator, the first time it's called; after that, the same evaluator is returned.
+     * Paths made only of single-name and single-index child segments become direct lookups, everything else is
+     * evaluated segment-by-segment with plain loops.
+     */
+    public Compiled compile() {
+        var compiled = this.compiled;
+        if (compiled == null) {
+            // racing threads might both compile it, but they'd get equivalent evaluators
+            this.compiled = compiled = this.compileNew();
+        }
+        return compiled;
+    }
+
+    private Compiled compileNew() {
+        String[] names = new String[this.segments.size()];
+        int[] indices = new int[this.segments.size()];
+        boolean direct = true;
+        for (int i = 0; i < this.segments.size() && direct; i++) {
+            if (this.segments.get(i) instanceof Segment.ChildSegment(List<Selector> selectors) && selectors.size() == 1) {
+                switch (selectors.getFirst()) {
+                    case Selector.NameSelector(String name) -> names[i] = name;
+                    case Selector.IndexSelector(int index) -> indices[i] = index;
+                    default -> direct = false;
+                }
+            } else {
+                direct = false;
+            }
+        }
+
+        var segments = this.segments.toArray(Segment[]::new);
+        var streaming = new PathSet(List.<Segment[]>of(segments));
+        if (direct) {
+            return new Compiled.DirectLookup(segments, names, indices, streaming);
+        }
+        return new Compiled.Stepwise(segments, streaming);
+    }
+
+    /**
+     * A compiled {@link JsonPath}. Evaluators are immutable, so can be shared between threads.
+     */
+    public sealed interface Compiled {
+        /**
+         * Selects the nodes matched by this path, adding them to {@code out} in order.
+         */
+        void select(JsonElement root, List<JsonElement> out);
+
+        /**
+         * Selects the nodes matched by this path from the next value in {@code reader}, without building a tree for
+         * the whole value. Subtrees which can't match are skipped, and only matched values are materialised.
+         * <p>Matches are the same, and in the same order, as from the tree: paths are streamed for as long as their
+         * segments are single-selector child segments, and the rest is evaluated on the materialised value.</p>
+         */
+        default void select(JsonReader reader, List<JsonElement> out) throws IOException {
+            this.streaming().selectInto(reader, List.of(out));
+        }
+
+        Segment[] segments();
+
+        // this path on its own as a path set, for selecting from a reader
+        PathSet streaming();
+
+        record DirectLookup(Segment[] segments, String[] names, int[] indices, PathSet streaming) implements Compiled {
+            @Override
+            public void select(JsonElement root, List<JsonElement> out) {
+                JsonElement current = root;
+                for (int i = 0; i < this.names.length; i++) {
+                    if (this.names[i] != null) {
+                        if (!(current instanceof JsonObject o) || (current = o.get(this.names[i])) == null) {
+                            return;
+                        }
+                    } else {
+                        if (!(current instanceof JsonArray a) || (current = getIndex(a, this.indices[i])) == null) {
+                            return;
+                        }
+                    }
+                }
+                out.add(current);
+            }
+        }
+
+        record Stepwise(Segment[] segments, PathSet streaming) implements Compiled {
+            @Override
+            public void select(JsonElement root, List<JsonElement> out) {
+                selectFrom(this.segments, 0, root, root, out);
+            }
+        }
+    }
+
+    private static void selectFrom(Segment[] segments, int firstSegment, JsonElement root, JsonElement start, List<JsonElement> out) {
+        if (firstSegment == segments.length) {
+            out.add(start);
+            return;
+        }
+        List<JsonElement> current = new ArrayList<>(4);
+        List<JsonElement> next = new ArrayList<>(4);
+        current.add(start);
+        for (int i = firstSegment; i < segments.length; i++) {
+            // the last segment writes straight into the output
+            var target = i == segments.length - 1 ? out : next;
+            for (int j = 0; j < current.size(); j++) {
+                segments[i].selectInto(root, current.get(j), target);
+            }
+            var tmp = current;
+            current = next;
+            next = tmp;
+            next.clear();
+        }
+    }
+
+    /**
+     * Compiles many paths together, so that they can all be evaluated in one walk over a document.
+     */
+    public static PathSet compileAll(List<JsonPath> paths) {
+        return new PathSet(paths.stream().map(p -> p.segments().toArray(Segment[]::new)).toList());
+    }
+
+    /**
+     * A set of paths merged into a trie by their common prefixes. Selecting with a path set walks the document once,
+     * however many paths there are, and returns the matches for each path in the order the paths were given.
+     * <p>Path sets are immutable, so can be shared between threads.</p>
+     */
+    public static final class PathSet {
+        private final Node[] nodes;
+        private final int size;
+        private final boolean needsRoot;
+
+        private PathSet(List<Segment[]> paths) {
+            List<Node> nodes = new ArrayList<>();
+            var root = new Node(0, null);
+            nodes.add(root);
+            for (int pathId = 0; pathId < paths.size(); pathId++) {
+                var node = root;
+                for (var segment : paths.get(pathId)) {
+                    Node child = null;
+                    for (var existing : node.children) {
+                        if (existing.segment.equals(segment)) {
+                            child = existing;
+                            break;
+                        }
+                    }
+                    if (child == null) {
+                        child = new Node(nodes.size(), segment);
+                        nodes.add(child);
+                        node.children.add(child);
+                    }
+                    node = child;
+                }
+                node.pathIds.add(pathId);
+            }
+            this.nodes = nodes.toArray(Node[]::new);
+            this.size = paths.size();
+            this.needsRoot = nodes.stream().skip(1).anyMatch(n -> n.segment.needsRoot());
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        public List<List<JsonElement>> select(JsonElement root) {
+            var outs = this.makeOutputs();
+            this.selectTree(this.nodes[0], root, root, outs);
+            return outs;
+        }
+
+        /**
+         * Selects from the next value in {@code reader}, without building a tree for the whole value. Subtrees which
+         * no path can match are skipped, and only matched values are materialised.
+         * <p>Each path's matches are the same, and in the same order, as from the tree.</p>
+         */
+        public List<List<JsonElement>> select(JsonReader reader) throws IOException {
+            var outs = this.makeOutputs();
+            this.selectInto(reader, outs);
+            return outs;
+        }
+
+        private void selectInto(JsonReader reader, List<List<JsonElement>> outs) throws IOException {
+            // filters which look at the root need the whole document anyway
+            if (this.needsRoot) {
+                var document = JsonParser.parseReader(reader);
+                this.selectTree(this.nodes[0], document, document, outs);
+                return;
+            }
+            var root = this.nodes[0];
+            int[] terminals = root.pathIds.isEmpty() ? new int[0] : new int[] {0};
+            int[] edges = root.children.stream().mapToInt(n -> n.id).toArray();
+            this.selectStreaming(reader, terminals, terminals.length, edges, edges.length, outs);
+        }
+
+        private List<List<JsonElement>> makeOutputs() {
+            List<List<JsonElement>> outs = new ArrayList<>(this.size);
+            for (int i = 0; i < this.size; i++) {
+                outs.add(new ArrayList<>(2));
+            }
+            return outs;
+        }
+
+        private void selectTree(Node node, JsonElement root, JsonElement element, List<List<JsonElement>> outs) {
+            for (int i = 0; i < node.pathIds.size(); i++) {
+                outs.get(node.pathIds.get(i)).add(element);
+            }
+            for (int i = 0; i < node.children.size(); i++) {
+                this.selectEdge(node.children.get(i), root, element, outs);
+            }
+        }
+
+        private void selectEdge(Node edge, JsonElement root, JsonElement element, List<List<JsonElement>> outs) {
+            List<JsonElement> selected = new ArrayList<>(2);
+            edge.segment.selectInto(root, element, selected);
+            for (int i = 0; i < selected.size(); i++) {
+                this.selectTree(edge, root, selected.get(i), outs);
+            }
+        }
+
+        /**
+         * Evaluates the trie over a token stream as a state machine. {@code terminals} are the nodes which have
+         * been reached at the value under the reader and end a path; {@code edges} are the nodes whose segments are
+         * still to be matched against its children.
+         */
+        private void selectStreaming(JsonReader reader, int[] terminals, int terminalCount, int[] edges, int edgeCount, List<List<JsonElement>> outs) throws IOException {
+            boolean mustMaterialise = terminalCount > 0;
+            for (int i = 0; i < edgeCount && !mustMaterialise; i++) {
+                mustMaterialise = !this.nodes[edges[i]].segment.isStreamable();
+            }
+
+            // once we need the value itself, the rest of the work is done on the tree
+            if (mustMaterialise) {
+                var element = JsonParser.parseReader(reader);
+                for (int i = 0; i < terminalCount; i++) {
+                    var pathIds = this.nodes[terminals[i]].pathIds;
+                    for (int j = 0; j < pathIds.size(); j++) {
+                        outs.get(pathIds.get(j)).add(element);
+                    }
+                }
+                // (nothing here looks at the root, or we wouldn't be streaming)
+                for (int i = 0; i < edgeCount; i++) {
+                    this.selectEdge(this.nodes[edges[i]], element, element, outs);
+                }
+                return;
+            }
+
+            // [0] is the terminal count, [1] is the edge count
+            int[] counts = new int[2];
+            int[] childTerminals = new int[this.nodes.length];
+            int[] childEdges = new int[this.nodes.length];
+            switch (reader.peek()) {
+                case BEGIN_OBJECT -> {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String key = reader.nextName();
+                        this.childStates(edges, edgeCount, key, -1, childTerminals, childEdges, counts);
+                        if (counts[0] == 0 && counts[1] == 0) {
+                            reader.skipValue();
+                        } else {
+                            this.selectStreaming(reader, childTerminals, counts[0], childEdges, counts[1], outs);
+                        }
+                    }
+                    reader.endObject();
+                }
+                case BEGIN_ARRAY -> {
+                    reader.beginArray();
+                    for (int idx = 0; reader.hasNext(); idx++) {
+                        this.childStates(edges, edgeCount, null, idx, childTerminals, childEdges, counts);
+                        if (counts[0] == 0 && counts[1] == 0) {
+                            reader.skipValue();
+                        } else {
+                            this.selectStreaming(reader, childTerminals, counts[0], childEdges, counts[1], outs);
+                        }
+                    }
+                    reader.endArray();
+                }
+                default -> reader.skipValue();
+            }
+        }
+
+        private void childStates(int[] edges, int edgeCount, String key, int idx, int[] childTerminals, int[] childEdges, int[] counts) {
+            counts[0] = 0;
+            counts[1] = 0;
+            for (int i = 0; i < edgeCount; i++) {
+                var edge = this.nodes[edges[i]];
+                if (edge.matches(key, idx)) {
+                    if (!edge.pathIds.isEmpty()) {
+                        counts[0] = addState(childTerminals, counts[0], edge.id);
+                    }
+                    for (int j = 0; j < edge.children.size(); j++) {
+                        counts[1] = addState(childEdges, counts[1], edge.children.get(j).id);
+                    }
+                }
+            }
+        }
+
+        private static int addState(int[] states, int stateCount, int state) {
+            for (int i = 0; i < stateCount; i++) {
+                if (states[i] == state) {
+                    return stateCount;
+                }
+            }
+            states[stateCount] = state;
+            return stateCount + 1;
+        }
+
+        private static final class Node {
+            private final int id;
+            private final Segment segment;
+            private final List<Node> children = new ArrayList<>(2);
+            private final List<Integer> pathIds = new ArrayList<>(1);
+
+            private Node(int id, Segment segment) {
+                this.id = id;
+                this.segment = segment;
+            }
+
+            private boolean matches(String key, int idx) {
+                var selectors = this.segment.selectors();
+                for (int i = 0; i < selectors.size(); i++) {
+                    var selector = selectors.get(i);
+                    if (key != null ? selector.matches(key) : selector.matches(idx)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
         }
-        return stream;
     }
 
     public sealed interface Segment {
         record ChildSegment(List<Selector> selectors) implements Segment {
             @Override
-            public Stream<JsonElement> select(Stream<JsonElement> elements) {
-                return elements
-                        .flatMap(j -> this.selectors.stream().flatMap(sel -> sel.select(j)));
+            public void selectInto(JsonElement root, JsonElement element, List<JsonElement> out) {
+                for (int i = 0; i < this.selectors.size(); i++) {
+                    this.selectors.get(i).selectInto(root, element, out);
+                }
             }
         }
         record DescendantSegment(List<Selector> selectors) implements Segment {
             @Override
-            public Stream<JsonElement> select(Stream<JsonElement> elements) {
-                return elements.flatMap(JsonPath::getDescendentsAndSelf)
-                        .flatMap(j -> this.selectors.stream().flatMap(sel -> sel.select(j)));
+            public void selectInto(JsonElement root, JsonElement element, List<JsonElement> out) {
+                // pre-order walk with an explicit stack, so deep documents can't overflow the call stack
+                ArrayDeque<JsonElement> stack = new ArrayDeque<>();
+                stack.push(element);
+                while (!stack.isEmpty()) {
+                    var node = stack.pop();
+                    for (int i = 0; i < this.selectors.size(); i++) {
+                        this.selectors.get(i).selectInto(root, node, out);
+                    }
+                    if (node instanceof JsonArray arr) {
+                        for (int i = arr.size() - 1; i >= 0; i--) {
+                            stack.push(arr.get(i));
+                        }
+                    } else if (node instanceof JsonObject obj) {
+                        var children = obj.asMap().values().toArray(JsonElement[]::new);
+                        for (int i = children.length - 1; i >= 0; i--) {
+                            stack.push(children[i]);
+                        }
+                    }
+                }
             }
         }
 
-        Stream<JsonElement> select(Stream<JsonElement> elements);
-    }
+        List<Selector> selectors();
 
-    private static Stream<JsonElement> getChildrenOrEmpty(JsonElement e) {
-        if (e instanceof JsonArray arr) {
-            return arr.asList().stream();
-        } else if (e instanceof JsonObject obj) {
-            return obj.asMap().values().stream();
-        } else {
-            return Stream.empty();
+        void selectInto(JsonElement root, JsonElement element, List<JsonElement> out);
+
+        /**
+         * Whether this segment can be matched against a token stream and give the same nodelist as the tree would:
+         * in selector order, with duplicates. Only a child segment with one selector can, since then its matches
+         * come in document order anyway. Descendant segments and multiple selectors are evaluated on the tree.
+         */
+        default boolean isStreamable() {
+            return this instanceof ChildSegment && this.selectors().size() == 1 && this.selectors().getFirst().isStreamable();
         }
-    }
 
-    private static Stream<JsonElement> getDescendentsAndSelf(JsonElement e) {
-        var selfStream = Stream.of(e);
-        if (e instanceof JsonArray arr) {
-            return Stream.concat(selfStream, arr.asList().stream().flatMap(JsonPath::getDescendentsAndSelf));
-        } else if (e instanceof JsonObject obj) {
-            return Stream.concat(selfStream, obj.asMap().values().stream().flatMap(JsonPath::getDescendentsAndSelf));
-        } else {
-            return selfStream;
+        default boolean needsRoot() {
+            for (var selector : this.selectors()) {
+                if (selector.needsRoot()) {
+                    return true;
+                }
+            }
+            return false;
         }
-    }
 
-    private static Stream<JsonElement> getDescendents(JsonElement e) {
-        if (e instanceof JsonArray arr) {
-            return arr.asList().stream().flatMap(JsonPath::getDescendentsAndSelf);
-        } else if (e instanceof JsonObject obj) {
-            return obj.asMap().values().stream().flatMap(JsonPath::getDescendentsAndSelf);
-        } else {
-            return Stream.of(e);
+        /**
+         * @param root the document the elements are in, for filters which refer to it as {@code $}
+         */
+        default Stream<JsonElement> select(JsonElement root, Stream<JsonElement> elements) {
+            return elements.mapMulti((e, downstream) -> {
+                List<JsonElement> out = new ArrayList<>();
+                this.selectInto(root, e, out);
+                out.forEach(downstream);
+            });
         }
+
+        /**
+         * Like {@link #select(JsonElement, Stream)}, for segments which don't refer to the root.
+         *
+         * @throws IllegalStateException if one of this segment's filters refers to the root
+         */
+        default Stream<JsonElement> select(Stream<JsonElement> elements) {
+            if (this.needsRoot()) {
+                throw new IllegalStateException("%s refers to the root, so it can only select with it".formatted(this));
+            }
+            return this.select(null, elements);
+        }
+    }
+
+    // https://www.rfc-editor.org/rfc/rfc9535#section-2.3.3.2-2
+    private static JsonElement getIndex(JsonArray a, int index) {
+        int normalised = index >= 0 ? index : a.size() + index;
+        return normalised >= 0 && normalised < a.size() ? a.get(normalised) : null;
     }
 
     public sealed interface Selector {
         record NameSelector(String name) implements Selector {
             @Override
-            public Stream<JsonElement> select(JsonElement element) {
-                return element instanceof JsonObject o
-                        ? Optional.ofNullable(o.get(this.name)).stream()
-                        : Stream.empty();
+            public void selectInto(JsonElement root, JsonElement element, List<JsonElement> out) {
+                if (element instanceof JsonObject o) {
+                    var value = o.get(this.name);
+                    if (value != null) {
+                        out.add(value);
+                    }
+                }
+            }
+
+            @Override
+            public boolean matches(String key) {
+                return this.name.equals(key);
             }
         }
         record WildcardSelector() implements Selector {
             @Override
-            public Stream<JsonElement> select(JsonElement element) {
-                return getChildrenOrEmpty(element);
+            public void selectInto(JsonElement root, JsonElement element, List<JsonElement> out) {
+                if (element instanceof JsonArray arr) {
+                    for (int i = 0; i < arr.size(); i++) {
+                        out.add(arr.get(i));
+                    }
+                } else if (element instanceof JsonObject obj) {
+                    out.addAll(obj.asMap().values());
+                }
+            }
+
+            @Override
+            public boolean matches(String key) {
+                return true;
+            }
+
+            @Override
+            public boolean matches(int index) {
+                return true;
             }
         }
         record IndexSelector(int index) implements Selector {
             @Override
-            public Stream<JsonElement> select(JsonElement element) {
-                return element instanceof JsonArray a && a.size() > this.index
-                        ? Stream.of(a.get(this.index))
-                        : Stream.empty();
+            public void selectInto(JsonElement root, JsonElement element, List<JsonElement> out) {
+                if (element instanceof JsonArray a) {
+                    var value = getIndex(a, this.index);
+                    if (value != null) {
+                        out.add(value);
+                    }
+                }
+            }
+
+            @Override
+            public boolean isStreamable() {
+                // negative indices need to know how long the array is
+                return this.index >= 0;
+            }
+
+            @Override
+            public boolean matches(int index) {
+                return this.index == index;
             }
         }
         record SliceSelector(OptionalInt start, OptionalInt end, OptionalInt step) implements Selector {
@@ -142,61 +587,908 @@ public record JsonPath(List<Segment> segments) {
             }
 
             // https://www.rfc-editor.org/rfc/rfc9535#section-2.3.4.2.2-5
-            private static int normalise(int idx, SequencedCollection<?> seq) {
-                return idx >= 0 ? idx : seq.size() - idx;
+            private static int normalise(int idx, int size) {
+                return idx >= 0 ? idx : size + idx;
             }
 
             @Override
-            public Stream<JsonElement> select(JsonElement element) {
+            public void selectInto(JsonElement root, JsonElement element, List<JsonElement> out) {
                 // https://www.rfc-editor.org/rfc/rfc9535#section-2.3.4.2.2-12
+                if (!(element instanceof JsonArray a)) {
+                    return;
+                }
 
-                if (element instanceof JsonArray a) {
-                    var list = a.asList();
-
-                    int step = this.step.orElse(1);
-                    int start = this.start.orElseGet(() -> step >= 0 ? 0 : list.size() - 1);
-                    int end = this.end.orElseGet(() -> step >= 0 ? list.size() : -list.size() - 1);
-
-                    if (step == 0) {
-                        return Stream.empty();
-                    }
-
-                    int nStart = normalise(start, list);
-                    int nEnd = normalise(end, list);
-                    // https://www.rfc-editor.org/rfc/rfc9535#section-2.3.4.2.2-8
-                    int lower;
-                    int upper;
-                    // https://www.rfc-editor.org/rfc/rfc9535#section-2.3.4.2.2-10
-                    int initialIdx;
-                    IntPredicate hasNext;
-                    if (step > 0) {
-                        lower = Math.min(Math.max(nStart, 0), list.size());
-                        upper = Math.min(Math.max(nEnd, 0), list.size());
-                        initialIdx = lower;
-                        hasNext = i -> i < upper;
-                    } else {
-                        lower = Math.min(Math.max(nEnd, -1), list.size()-1);
-                        upper = Math.min(Math.max(nStart, -1), list.size()-1);
-                        initialIdx = upper;
-                        hasNext = i -> lower < i;
-                    }
+                int size = a.size();
+                int step = this.step.orElse(1);
+                if (step == 0) {
+                    return;
+                }
+                int start = this.start.orElse(step >= 0 ? 0 : size - 1);
+                int end = this.end.orElse(step >= 0 ? size : -size - 1);
 
-                    // https://www.rfc-editor.org/rfc/rfc9535#section-2.3.4.2.2-10
-                    return IntStream.iterate(initialIdx, hasNext, i -> i + step)
-                            .mapToObj(list::get);
+                int nStart = normalise(start, size);
+                int nEnd = normalise(end, size);
+                // https://www.rfc-editor.org/rfc/rfc9535#section-2.3.4.2.2-8
+                // https://www.rfc-editor.org/rfc/rfc9535#section-2.3.4.2.2-10
+                if (step > 0) {
+                    int lower = Math.min(Math.max(nStart, 0), size);
+                    int upper = Math.min(Math.max(nEnd, 0), size);
+                    for (int i = lower; i < upper; i += step) {
+                        out.add(a.get(i));
+                    }
                 } else {
-                    return Stream.empty();
+                    int lower = Math.min(Math.max(nEnd, -1), size - 1);
+                    int upper = Math.min(Math.max(nStart, -1), size - 1);
+                    for (int i = upper; lower < i; i += step) {
+                        out.add(a.get(i));
+                    }
                 }
             }
+
+            @Override
+            public boolean isStreamable() {
+                // anything counting from the end needs to know how long the array is
+                return this.step.orElse(1) > 0
+                        && this.start.orElse(0) >= 0
+                        && this.end.orElse(0) >= 0;
+            }
+
+            @Override
+            public boolean matches(int index) {
+                int start = this.start.orElse(0);
+                return index >= start
+                        && (this.end.isEmpty() || index < this.end.getAsInt())
+                        && (index - start) % this.step.orElse(1) == 0;
+            }
         }
-        record FilterSelector() implements Selector {
+        record FilterSelector(FilterExpression expression) implements Selector {
+            // https://www.rfc-editor.org/rfc/rfc9535#section-2.3.5.2
             @Override
-            public Stream<JsonElement> select(JsonElement element) {
-                throw new UnsupportedOperationException("Filter selector is not yet implemented");
+            public void selectInto(JsonElement root, JsonElement element, List<JsonElement> out) {
+                if (element instanceof JsonArray arr) {
+                    for (int i = 0; i < arr.size(); i++) {
+                        if (this.expression.test(root, arr.get(i))) {
+                            out.add(arr.get(i));
+                        }
+                    }
+                } else if (element instanceof JsonObject obj) {
+                    for (var child : obj.asMap().values()) {
+                        if (this.expression.test(root, child)) {
+                            out.add(child);
+                        }
+                    }
+                }
             }
+
+            @Override
+            public boolean isStreamable() {
+                return false;
+            }
+        }
+
+        void selectInto(JsonElement root, JsonElement element, List<JsonElement> out);
+
+        /**
+         * @return whether this selector can be evaluated over a token stream just by looking at member names and
+         * array indices, using {@link #matches(String)} and {@link #matches(int)}
+         */
+        default boolean isStreamable() {
+            return true;
+        }
+
+        default boolean matches(String key) {
+            return false;
+        }
+
+        default boolean matches(int index) {
+            return false;
+        }
+
+        /**
+         * @return whether this is a filter which refers to the root, as {@code $}
+         */
+        default boolean needsRoot() {
+            return this instanceof FilterSelector(FilterExpression expression) && expression.needsRoot();
+        }
+
+        /**
+         * @param root the document the element is in, for filters which refer to it as {@code $}
+         */
+        default Stream<JsonElement> select(JsonElement root, JsonElement element) {
+            List<JsonElement> out = new ArrayList<>();
+            this.selectInto(root, element, out);
+            return out.stream();
         }
 
-        Stream<JsonElement> select(JsonElement element);
+        /**
+         * Like {@link #select(JsonElement, JsonElement)}, for selectors which don't refer to the root.
+         *
+         * @throws IllegalStateException if this is a filter which refers to the root
+         */
+        default Stream<JsonElement> select(JsonElement element) {
+            if (this.needsRoot()) {
+                throw new IllegalStateException("%s refers to the root, so it can only select with it".formatted(this));
+            }
+            return this.select(null, element);
+        }
     }
-}
 
+    /**
+     * A filter selector's logical expression.
+     * @see <a href="https://www.rfc-editor.org/rfc/rfc9535#section-2.3.5">RFC 9535 section 2.3.5</a>
+     */
+    public sealed interface FilterExpression {
+        // short-circuits
+        record Or(List<FilterExpression> operands) implements FilterExpression {
+            @Override
+            public boolean test(JsonElement root, JsonElement current) {
+                for (int i = 0; i < this.operands.size(); i++) {
+                    if (this.operands.get(i).test(root, current)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public boolean needsRoot() {
+                return this.operands.stream().anyMatch(FilterExpression::needsRoot);
+            }
+        }
+        // short-circuits
+        record And(List<FilterExpression> operands) implements FilterExpression {
+            @Override
+            public boolean test(JsonElement root, JsonElement current) {
+                for (int i = 0; i < this.operands.size(); i++) {
+                    if (!this.operands.get(i).test(root, current)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public boolean needsRoot() {
+                return this.operands.stream().anyMatch(FilterExpression::needsRoot);
+            }
+        }
+        record Not(FilterExpression operand) implements FilterExpression {
+            @Override
+            public boolean test(JsonElement root, JsonElement current) {
+                return !this.operand.test(root, current);
+            }
+
+            @Override
+            public boolean needsRoot() {
+                return this.operand.needsRoot();
+            }
+        }
+        // https://www.rfc-editor.org/rfc/rfc9535#section-2.3.5.2.1
+        record Exists(Query query) implements FilterExpression {
+            @Override
+            public boolean test(JsonElement root, JsonElement current) {
+                return this.query.exists(root, current);
+            }
+
+            @Override
+            public boolean needsRoot() {
+                return this.query.needsRoot();
+            }
+        }
+        // https://www.rfc-editor.org/rfc/rfc9535#section-2.3.5.2.2
+        record Comparison(Operand left, ComparisonOp op, Operand right) implements FilterExpression {
+            @Override
+            public boolean test(JsonElement root, JsonElement current) {
+                var left = this.left.evaluate(root, current);
+                var right = this.right.evaluate(root, current);
+                return switch (this.op) {
+                    case EQ -> valuesEqual(left, right);
+                    case NE -> !valuesEqual(left, right);
+                    case LT -> valueLessThan(left, right);
+                    case LE -> valueLessThan(left, right) || valuesEqual(left, right);
+                    case GT -> valueLessThan(right, left);
+                    case GE -> valueLessThan(right, left) || valuesEqual(left, right);
+                };
+            }
+
+            @Override
+            public boolean needsRoot() {
+                return this.left.needsRoot() || this.right.needsRoot();
+            }
+        }
+        /**
+         * The {@code match} and {@code search} functions. If the pattern is a literal, it's compiled once up front.
+         * @see <a href="https://www.rfc-editor.org/rfc/rfc9535#section-2.4.6">RFC 9535 section 2.4.6</a>
+         */
+        record RegexMatch(Operand subject, Operand pattern, boolean wholeString, Pattern compiled) implements FilterExpression {
+            public RegexMatch(Operand subject, Operand pattern, boolean wholeString) {
+                this(subject, pattern, wholeString, precompile(pattern));
+            }
+
+            private static Pattern precompile(Operand pattern) {
+                return pattern instanceof Operand.Literal(JsonElement p) && p instanceof JsonPrimitive prim && prim.isString()
+                        ? compileIRegexp(prim.getAsString())
+                        : null;
+            }
+
+            @Override
+            public boolean test(JsonElement root, JsonElement current) {
+                if (!(this.subject.evaluate(root, current) instanceof JsonPrimitive subject) || !subject.isString()) {
+                    return false;
+                }
+                var pattern = this.compiled;
+                if (pattern == null) {
+                    if (!(this.pattern.evaluate(root, current) instanceof JsonPrimitive p) || !p.isString()) {
+                        return false;
+                    }
+                    pattern = compileIRegexp(p.getAsString());
+                    if (pattern == null) {
+                        return false;
+                    }
+                }
+                var matcher = pattern.matcher(subject.getAsString());
+                return this.wholeString ? matcher.matches() : matcher.find();
+            }
+
+            @Override
+            public boolean needsRoot() {
+                return this.subject.needsRoot() || this.pattern.needsRoot();
+            }
+
+            // records compare arrays by identity, and patterns don't have value equality either
+            @Override
+            public boolean equals(Object obj) {
+                return obj instanceof RegexMatch other
+                        && this.subject.equals(other.subject)
+                        && this.pattern.equals(other.pattern)
+                        && this.wholeString == other.wholeString;
+            }
+
+            @Override
+            public int hashCode() {
+                return Objects.hash(this.subject, this.pattern, this.wholeString);
+            }
+        }
+
+        boolean test(JsonElement root, JsonElement current);
+
+        boolean needsRoot();
+    }
+
+    public enum ComparisonOp {
+        EQ, NE, LT, LE, GT, GE
+    }
+
+    /**
+     * Something in a filter expression which evaluates to a single value, or to nothing (null).
+     */
+    public sealed interface Operand {
+        record Literal(JsonElement value) implements Operand {
+            @Override
+            public JsonElement evaluate(JsonElement root, JsonElement current) {
+                return this.value;
+            }
+
+            @Override
+            public boolean needsRoot() {
+                return false;
+            }
+        }
+        // https://www.rfc-editor.org/rfc/rfc9535#section-2.4.4
+        record Length(Operand argument) implements Operand {
+            @Override
+            public JsonElement evaluate(JsonElement root, JsonElement current) {
+                return switch (this.argument.evaluate(root, current)) {
+                    case JsonPrimitive p when p.isString() -> new JsonPrimitive(p.getAsString().codePointCount(0, p.getAsString().length()));
+                    case JsonArray a -> new JsonPrimitive(a.size());
+                    case JsonObject o -> new JsonPrimitive(o.size());
+                    case null, default -> null;
+                };
+            }
+
+            @Override
+            public boolean needsRoot() {
+                return this.argument.needsRoot();
+            }
+        }
+        // https://www.rfc-editor.org/rfc/rfc9535#section-2.4.5
+        record Count(Query argument) implements Operand {
+            @Override
+            public JsonElement evaluate(JsonElement root, JsonElement current) {
+                List<JsonElement> nodes = new ArrayList<>();
+                this.argument.select(root, current, nodes);
+                return new JsonPrimitive(nodes.size());
+            }
+
+            @Override
+            public boolean needsRoot() {
+                return this.argument.needsRoot();
+            }
+        }
+        // https://www.rfc-editor.org/rfc/rfc9535#section-2.4.8
+        record Value(Query argument) implements Operand {
+            @Override
+            public JsonElement evaluate(JsonElement root, JsonElement current) {
+                List<JsonElement> nodes = new ArrayList<>(1);
+                this.argument.select(root, current, nodes);
+                return nodes.size() == 1 ? nodes.getFirst() : null;
+            }
+
+            @Override
+            public boolean needsRoot() {
+                return this.argument.needsRoot();
+            }
+        }
+
+        JsonElement evaluate(JsonElement root, JsonElement current);
+
+        boolean needsRoot();
+    }
+
+    /**
+     * A query inside a filter expression, either relative to the current node ({@code @}) or to the root ({@code $}).
+     * When used as an {@link Operand}, it must be a singular query.
+     */
+    public record Query(boolean absolute, JsonPath path, Compiled compiled) implements Operand {
+        public Query(boolean absolute, JsonPath path) {
+            this(absolute, path, path.compile());
+        }
+
+        public boolean isSingular() {
+            return this.compiled instanceof Compiled.DirectLookup;
+        }
+
+        public void select(JsonElement root, JsonElement current, List<JsonElement> out) {
+            this.compiled.select(this.absolute ? root : current, out);
+        }
+
+        public boolean exists(JsonElement root, JsonElement current) {
+            List<JsonElement> out = new ArrayList<>(1);
+            this.select(root, current, out);
+            return !out.isEmpty();
+        }
+
+        @Override
+        public JsonElement evaluate(JsonElement root, JsonElement current) {
+            List<JsonElement> out = new ArrayList<>(1);
+            this.select(root, current, out);
+            return out.isEmpty() ? null : out.getFirst();
+        }
+
+        @Override
+        public boolean needsRoot() {
+            return this.absolute || this.path.segments().stream().anyMatch(Segment::needsRoot);
+        }
+
+        // the compiled form is derived from the path
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Query other && this.absolute == other.absolute && this.path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.absolute, this.path);
+        }
+    }
+
+    // https://www.rfc-editor.org/rfc/rfc9535#section-2.3.5.2.2
+    private static boolean valuesEqual(JsonElement left, JsonElement right) {
+        if (left == null || right == null) {
+            return left == right;
+        }
+        if (left instanceof JsonPrimitive l && right instanceof JsonPrimitive r && l.isNumber() && r.isNumber()) {
+            return l.getAsBigDecimal().compareTo(r.getAsBigDecimal()) == 0;
+        }
+        if (left instanceof JsonArray l && right instanceof JsonArray r) {
+            if (l.size() != r.size()) {
+                return false;
+            }
+            for (int i = 0; i < l.size(); i++) {
+                if (!valuesEqual(l.get(i), r.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (left instanceof JsonObject l && right instanceof JsonObject r) {
+            if (l.size() != r.size()) {
+                return false;
+            }
+            for (var entry : l.entrySet()) {
+                if (!valuesEqual(entry.getValue(), r.get(entry.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return left.equals(right);
+    }
+
+    private static boolean valueLessThan(JsonElement left, JsonElement right) {
+        if (left instanceof JsonPrimitive l && right instanceof JsonPrimitive r) {
+            if (l.isNumber() && r.isNumber()) {
+                return l.getAsBigDecimal().compareTo(r.getAsBigDecimal()) < 0;
+            }
+            if (l.isString() && r.isString()) {
+                return compareCodePoints(l.getAsString(), r.getAsString()) < 0;
+            }
+        }
+        return false;
+    }
+
+    private static int compareCodePoints(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Boolean.compare(i < a.length(), j < b.length());
+    }
+
+    /**
+     * Compiles an I-Regexp (RFC 9485) into a Java pattern, or returns null if it isn't valid.
+     */
+    private static Pattern compileIRegexp(String iRegexp) {
+        // the only difference that matters here: '.' outside a character class matches anything but \n and \r
+        var sb = new StringBuilder(iRegexp.length() + 8);
+        boolean inClass = false;
+        for (int i = 0; i < iRegexp.length(); i++) {
+            char c = iRegexp.charAt(i);
+            if (c == '\\' && i + 1 < iRegexp.length()) {
+                sb.append(c).append(iRegexp.charAt(++i));
+            } else if (c == '[') {
+                inClass = true;
+                sb.append(c);
+            } else if (c == ']') {
+                inClass = false;
+                sb.append(c);
+            } else if (c == '.' && !inClass) {
+                sb.append("[^\\n\\r]");
+            } else {
+                sb.append(c);
+            }
+        }
+        try {
+            return Pattern.compile(sb.toString());
+        } catch (PatternSyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Recursive-descent parser for RFC 9535 queries.
+     */
+    private static final class Parser {
+        private final String input;
+        private int cursor = 0;
+
+        private Parser(String input) {
+            this.input = input;
+        }
+
+        private JsonPath parseQuery() {
+            this.expect('$');
+            var path = this.parseSegments();
+            if (this.cursor != this.input.length()) {
+                throw this.error("Unexpected '%s'".formatted(this.input.charAt(this.cursor)));
+            }
+            return path;
+        }
+
+        private JsonPath parseSegments() {
+            List<Segment> segments = new ArrayList<>();
+            while (true) {
+                int beforeBlanks = this.cursor;
+                this.skipBlanks();
+                if (this.startsWith("..")) {
+                    this.cursor += 2;
+                    segments.add(new Segment.DescendantSegment(this.parseSegmentSelectors(true)));
+                } else if (this.peek() == '.') {
+                    this.cursor++;
+                    segments.add(new Segment.ChildSegment(this.parseSegmentSelectors(false)));
+                } else if (this.peek() == '[') {
+                    segments.add(new Segment.ChildSegment(this.parseBracketedSelection()));
+                } else {
+                    this.cursor = beforeBlanks;
+                    return new JsonPath(List.copyOf(segments));
+                }
+            }
+        }
+
+        private List<Selector> parseSegmentSelectors(boolean descendant) {
+            if (descendant && this.peek() == '[') {
+                return this.parseBracketedSelection();
+            }
+            if (this.peek() == '*') {
+                this.cursor++;
+                return List.of(all());
+            }
+            return List.of(name(this.parseMemberNameShorthand()));
+        }
+
+        private String parseMemberNameShorthand() {
+            int start = this.cursor;
+            while (this.cursor < this.input.length()) {
+                char c = this.input.charAt(this.cursor);
+                boolean isNameFirst = Character.isLetter(c) || c == '_' || c == '$' || c >= 0x80;
+                if (isNameFirst || (this.cursor > start && (Character.isDigit(c)))) {
+                    this.cursor++;
+                } else {
+                    break;
+                }
+            }
+            if (this.cursor == start) {
+                throw this.error("Expected a member name");
+            }
+            return this.input.substring(start, this.cursor);
+        }
+
+        private List<Selector> parseBracketedSelection() {
+            this.expect('[');
+            List<Selector> selectors = new ArrayList<>();
+            do {
+                this.skipBlanks();
+                selectors.add(this.parseSelector());
+                this.skipBlanks();
+            } while (this.consume(','));
+            this.expect(']');
+            return List.copyOf(selectors);
+        }
+
+        private Selector parseSelector() {
+            char c = this.peek();
+            if (c == '\'' || c == '"') {
+                return name(this.parseStringLiteral());
+            } else if (c == '*') {
+                this.cursor++;
+                return all();
+            } else if (c == '?') {
+                this.cursor++;
+                this.skipBlanks();
+                return filter(this.parseLogicalOr());
+            }
+            // index or slice
+            Integer start = this.peek() == ':' ? null : this.parseInt();
+            this.skipBlanks();
+            if (!this.consume(':')) {
+                if (start == null) {
+                    throw this.error("Expected a selector");
+                }
+                return idx(start);
+            }
+            this.skipBlanks();
+            Integer end = this.peek() == '-' || Character.isDigit(this.peek()) ? this.parseInt() : null;
+            this.skipBlanks();
+            Integer step = null;
+            if (this.consume(':')) {
+                this.skipBlanks();
+                step = this.peek() == '-' || Character.isDigit(this.peek()) ? this.parseInt() : null;
+            }
+            return slice(start, end, step);
+        }
+
+        private FilterExpression parseLogicalOr() {
+            List<FilterExpression> operands = new ArrayList<>();
+            operands.add(this.parseLogicalAnd());
+            this.skipBlanks();
+            while (this.startsWith("||")) {
+                this.cursor += 2;
+                this.skipBlanks();
+                operands.add(this.parseLogicalAnd());
+                this.skipBlanks();
+            }
+            return operands.size() == 1 ? operands.getFirst() : new FilterExpression.Or(List.copyOf(operands));
+        }
+
+        private FilterExpression parseLogicalAnd() {
+            List<FilterExpression> operands = new ArrayList<>();
+            operands.add(this.parseBasicExpression());
+            this.skipBlanks();
+            while (this.startsWith("&&")) {
+                this.cursor += 2;
+                this.skipBlanks();
+                operands.add(this.parseBasicExpression());
+                this.skipBlanks();
+            }
+            return operands.size() == 1 ? operands.getFirst() : new FilterExpression.And(List.copyOf(operands));
+        }
+
+        private FilterExpression parseBasicExpression() {
+            if (this.peek() == '!') {
+                this.cursor++;
+                this.skipBlanks();
+                if (this.peek() == '(') {
+                    return new FilterExpression.Not(this.parseParenExpression());
+                }
+                return new FilterExpression.Not(this.parseTestExpression());
+            }
+            if (this.peek() == '(') {
+                return this.parseParenExpression();
+            }
+
+            int start = this.cursor;
+            var comparable = this.parseComparableOrTest();
+            this.skipBlanks();
+            var op = this.parseComparisonOp();
+            if (op == null) {
+                return switch (comparable) {
+                    case FilterExpression test -> test;
+                    case Query query -> new FilterExpression.Exists(query);
+                    default -> throw this.errorAt(start, "Expected a test or comparison");
+                };
+            }
+            if (!(comparable instanceof Operand left)) {
+                throw this.errorAt(start, "Can't compare the result of a logical function");
+            }
+            this.skipBlanks();
+            int rightStart = this.cursor;
+            if (!(this.parseComparableOrTest() instanceof Operand right)) {
+                throw this.errorAt(rightStart, "Can't compare the result of a logical function");
+            }
+            this.checkComparable(left, start);
+            this.checkComparable(right, rightStart);
+            return new FilterExpression.Comparison(left, op, right);
+        }
+
+        private FilterExpression parseParenExpression() {
+            this.expect('(');
+            this.skipBlanks();
+            var expression = this.parseLogicalOr();
+            this.skipBlanks();
+            this.expect(')');
+            return expression;
+        }
+
+        private FilterExpression parseTestExpression() {
+            int start = this.cursor;
+            return switch (this.parseComparableOrTest()) {
+                case FilterExpression test -> test;
+                case Query query -> new FilterExpression.Exists(query);
+                default -> throw this.errorAt(start, "Expected a query or logical function");
+            };
+        }
+
+        private void checkComparable(Operand operand, int position) {
+            if (operand instanceof Query query && !query.isSingular()) {
+                throw this.errorAt(position, "Only singular queries can be compared");
+            }
+        }
+
+        private ComparisonOp parseComparisonOp() {
+            if (this.startsWith("==")) {
+                this.cursor += 2;
+                return ComparisonOp.EQ;
+            } else if (this.startsWith("!=")) {
+                this.cursor += 2;
+                return ComparisonOp.NE;
+            } else if (this.startsWith("<=")) {
+                this.cursor += 2;
+                return ComparisonOp.LE;
+            } else if (this.startsWith(">=")) {
+                this.cursor += 2;
+                return ComparisonOp.GE;
+            } else if (this.peek() == '<') {
+                this.cursor++;
+                return ComparisonOp.LT;
+            } else if (this.peek() == '>') {
+                this.cursor++;
+                return ComparisonOp.GT;
+            }
+            return null;
+        }
+
+        /**
+         * @return an {@link Operand} (literal, query or value function), or a {@link FilterExpression} (logical function)
+         */
+        private Object parseComparableOrTest() {
+            char c = this.peek();
+            if (c == '@' || c == '$') {
+                this.cursor++;
+                return new Query(c == '$', this.parseSegments());
+            } else if (c == '\'' || c == '"') {
+                return new Operand.Literal(new JsonPrimitive(this.parseStringLiteral()));
+            } else if (c == '-' || Character.isDigit(c)) {
+                return new Operand.Literal(new JsonPrimitive(this.parseNumber()));
+            } else if (this.startsWithWord("true")) {
+                this.cursor += 4;
+                return new Operand.Literal(new JsonPrimitive(true));
+            } else if (this.startsWithWord("false")) {
+                this.cursor += 5;
+                return new Operand.Literal(new JsonPrimitive(false));
+            } else if (this.startsWithWord("null")) {
+                this.cursor += 4;
+                return new Operand.Literal(JsonNull.INSTANCE);
+            } else if (Character.isLowerCase(c)) {
+                return this.parseFunction();
+            }
+            throw this.error("Expected a literal, query or function");
+        }
+
+        // https://www.rfc-editor.org/rfc/rfc9535#section-2.4
+        private Object parseFunction() {
+            int start = this.cursor;
+            while (this.cursor < this.input.length()
+                    && (Character.isLowerCase(this.peek()) || Character.isDigit(this.peek()) || this.peek() == '_')) {
+                this.cursor++;
+            }
+            var name = this.input.substring(start, this.cursor);
+            this.expect('(');
+            List<Object> args = new ArrayList<>();
+            this.skipBlanks();
+            if (this.peek() != ')') {
+                do {
+                    this.skipBlanks();
+                    args.add(this.peek() == '!' || this.peek() == '(' ? this.parseLogicalOr() : this.parseComparableOrTest());
+                    this.skipBlanks();
+                } while (this.consume(','));
+            }
+            this.expect(')');
+            return switch (name) {
+                case "length" -> new Operand.Length(this.valueArgument(name, args, 1, 0, start));
+                case "count" -> new Operand.Count(this.nodesArgument(name, args, 1, 0, start));
+                case "value" -> new Operand.Value(this.nodesArgument(name, args, 1, 0, start));
+                case "match" -> new FilterExpression.RegexMatch(this.valueArgument(name, args, 2, 0, start), this.valueArgument(name, args, 2, 1, start), true);
+                case "search" -> new FilterExpression.RegexMatch(this.valueArgument(name, args, 2, 0, start), this.valueArgument(name, args, 2, 1, start), false);
+                default -> throw this.errorAt(start, "Unknown function %s".formatted(name));
+            };
+        }
+
+        private Operand valueArgument(String function, List<Object> args, int arity, int idx, int position) {
+            if (args.size() != arity) {
+                throw this.errorAt(position, "%s takes %s argument(s), but got %s".formatted(function, arity, args.size()));
+            }
+            if (!(args.get(idx) instanceof Operand operand)) {
+                throw this.errorAt(position, "Argument %s of %s must be a value".formatted(idx + 1, function));
+            }
+            this.checkComparable(operand, position);
+            return operand;
+        }
+
+        private Query nodesArgument(String function, List<Object> args, int arity, int idx, int position) {
+            if (args.size() != arity) {
+                throw this.errorAt(position, "%s takes %s argument(s), but got %s".formatted(function, arity, args.size()));
+            }
+            if (!(args.get(idx) instanceof Query query)) {
+                throw this.errorAt(position, "Argument %s of %s must be a query".formatted(idx + 1, function));
+            }
+            return query;
+        }
+
+        private String parseStringLiteral() {
+            char quote = this.peek();
+            this.cursor++;
+            var sb = new StringBuilder();
+            while (true) {
+                if (this.cursor >= this.input.length()) {
+                    throw this.error("Unterminated string");
+                }
+                char c = this.input.charAt(this.cursor++);
+                if (c == quote) {
+                    return sb.toString();
+                } else if (c == '\\') {
+                    if (this.cursor >= this.input.length()) {
+                        throw this.error("Unterminated string");
+                    }
+                    char escaped = this.input.charAt(this.cursor++);
+                    switch (escaped) {
+                        case 'b' -> sb.append('\b');
+                        case 'f' -> sb.append('\f');
+                        case 'n' -> sb.append('\n');
+                        case 'r' -> sb.append('\r');
+                        case 't' -> sb.append('\t');
+                        case '/', '\\', '\'', '"' -> sb.append(escaped);
+                        case 'u' -> {
+                            if (this.cursor + 4 > this.input.length()) {
+                                throw this.error("Incomplete unicode escape");
+                            }
+                            try {
+                                sb.append((char) Integer.parseInt(this.input.substring(this.cursor, this.cursor + 4), 16));
+                            } catch (NumberFormatException e) {
+                                throw this.error("Invalid unicode escape");
+                            }
+                            this.cursor += 4;
+                        }
+                        default -> throw this.error("Invalid escape \\%s".formatted(escaped));
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+
+        private int parseInt() {
+            int start = this.cursor;
+            this.consume('-');
+            while (Character.isDigit(this.peek())) {
+                this.cursor++;
+            }
+            try {
+                return Integer.parseInt(this.input.substring(start, this.cursor));
+            } catch (NumberFormatException e) {
+                throw this.errorAt(start, "Expected an integer");
+            }
+        }
+
+        private BigDecimal parseNumber() {
+            int start = this.cursor;
+            this.consume('-');
+            while (Character.isDigit(this.peek())) {
+                this.cursor++;
+            }
+            if (this.peek() == '.') {
+                this.cursor++;
+                while (Character.isDigit(this.peek())) {
+                    this.cursor++;
+                }
+            }
+            if (this.peek() == 'e' || this.peek() == 'E') {
+                this.cursor++;
+                if (this.peek() == '+' || this.peek() == '-') {
+                    this.cursor++;
+                }
+                while (Character.isDigit(this.peek())) {
+                    this.cursor++;
+                }
+            }
+            try {
+                return new BigDecimal(this.input.substring(start, this.cursor));
+            } catch (NumberFormatException e) {
+                throw this.errorAt(start, "Expected a number");
+            }
+        }
+
+        private char peek() {
+            return this.cursor < this.input.length() ? this.input.charAt(this.cursor) : '\0';
+        }
+
+        private boolean startsWith(String s) {
+            return this.input.startsWith(s, this.cursor);
+        }
+
+        private boolean startsWithWord(String word) {
+            int end = this.cursor + word.length();
+            return this.startsWith(word) && (end >= this.input.length() || !Character.isLetterOrDigit(this.input.charAt(end)) && this.input.charAt(end) != '_' && this.input.charAt(end) != '(');
+        }
+
+        private boolean consume(char c) {
+            if (this.peek() == c) {
+                this.cursor++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!this.consume(c)) {
+                throw this.error("Expected '%s'".formatted(c));
+            }
+        }
+
+        // https://www.rfc-editor.org/rfc/rfc9535#section-2.1.1-5
+        private void skipBlanks() {
+            while (this.cursor < this.input.length()) {
+                char c = this.input.charAt(this.cursor);
+                if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                    this.cursor++;
+                } else {
+                    break;
+                }
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return this.errorAt(this.cursor, message);
+        }
+
+        private IllegalArgumentException errorAt(int position, String message) {
+            return new IllegalArgumentException("Invalid JSONPath query %s at position %s: %s".formatted(this.input, position, message));
+        }
+    }
+}
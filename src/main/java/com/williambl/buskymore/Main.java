@@ -3,78 +3,76 @@ package com.williambl.buskymore;
 import com.google.gson.*;
 
 import java.io.IOException;
-import java.lang.reflect.Type;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.concurrent.Executors;
 
 public class Main {
-    public static void main(String[] args) throws IOException {
+    /**
+     * Usage: {@code buskymore [--watch <seconds>] [config path]}. Without {@code --watch} this runs one cycle and
+     * exits. With it, this runs a cycle every so many seconds, and picks up changes to the config as they happen.
+     * <p>{@code buskymore filter ...} runs filters over posts on disk instead - see {@link FilterCommand}.</p>
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
         PostFilter.bootstrap();
-        Path configPath;
-        if (args.length == 0) {
-            configPath = Path.of("./buskymore.bini");
+        if (args.length > 0 && args[0].equals("filter")) {
+            FilterCommand.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        Path configPath = Path.of("./buskymore.bini");
+        Duration watchInterval = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--watch") && i + 1 < args.length) {
+                watchInterval = Duration.ofSeconds(Long.parseLong(args[++i]));
+            } else {
+                configPath = Path.of(args[i]);
+            }
+        }
+        var config = loadConfig(configPath);
+        var metricsServer = config.metricsPort().isPresent() ? Metrics.serve(config.metricsPort().get()) : null;
+        var sender = new DiscordPostSender(config, Executors.newVirtualThreadPerTaskExecutor());
+        // anything left over from last time goes alongside the new posts
+        var replay = sender.replayOutbox().exceptionally(e -> {
+            sender.fail(e);
+            return null;
+        });
+        if (watchInterval == null) {
+            runCycle(sender);
+            replay.join();
         } else {
-            configPath = Path.of(args[0]);
+            // on ctrl-c, the running cycle is cancelled and wound down rather than cut off part way through
+            Runtime.getRuntime().addShutdownHook(Thread.ofPlatform().name("shutdown").unstarted(sender::stop));
+            try (var watcher = new ConfigWatcher(configPath, config, sender::reconfigure)) {
+                watcher.start();
+                while (true) {
+                    runCycle(sender);
+                    Thread.sleep(watchInterval);
+                }
+            }
+        }
+        sender.stop();
+        if (metricsServer != null) {
+            metricsServer.stop(0);
+        }
+    }
+
+    private static void runCycle(DiscordPostSender sender) throws InterruptedException {
+        try {
+            sender.run();
+        } catch (RuntimeException e) {
+            sender.fail(e);
         }
-        DiscordPostSender.Config config;
+    }
+
+    public static DiscordPostSender.Config loadConfig(Path configPath) throws IOException {
         if (configPath.getFileName().toString().endsWith(".json")) {
             var configString = Files.readString(configPath);
-            var gson = makeGson();
-            config = gson.fromJson(configString, DiscordPostSender.Config.class);
+            return ConfigCodecs.readJson(JsonParser.parseString(configString));
         } else {
             var configLines = Files.readAllLines(configPath);
-            var bini = new Bini();
-            config = bini.parse(DiscordPostSender.Config.class, configLines);
+            return ConfigCodecs.parseBini(configLines);
         }
-        var sender = new DiscordPostSender(config, Executors.newVirtualThreadPerTaskExecutor());
-        sender.run()
-                .exceptionally(e -> {
-                    sender.fail(e);
-                    return null;
-                })
-                .thenRun(sender::stop)
-                .join();
-    }
-
-    private static Gson makeGson() {
-        return new GsonBuilder()
-                .setStrictness(Strictness.LENIENT)
-                .registerTypeAdapter(BskyPostGetter.Config.PostSource.class, new JsonDeserializer<BskyPostGetter.Config.PostSource>() {
-                    private static final Type[] types = new Type[] {BskyPostGetter.Config.PostSource.User.class, BskyPostGetter.Config.PostSource.Feed.class};
-                    @Override
-                    public BskyPostGetter.Config.PostSource deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-                        JsonParseException exception = new JsonParseException("Could not deserialise post source :(");
-                        for (var clazz : types) {
-                            try {
-                                return context.deserialize(json, clazz);
-                            } catch (JsonParseException e) {
-                                exception = e;
-                            }
-                        }
-                        throw exception;
-                    }
-                })
-                .registerTypeAdapter(PostFilter.Fisp.class, new JsonDeserializer<PostFilter.Fisp>() {
-                    @Override
-                    public PostFilter.Fisp deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-                        if (json.isJsonArray()) {
-                            List<PostFilter.Fisp> contents = new ArrayList<>();
-                            for (JsonElement jsonElement : json.getAsJsonArray()) {
-                                contents.add(context.deserialize(jsonElement, PostFilter.Fisp.class));
-                            }
-                            return new PostFilter.Fisp.Array(List.copyOf(contents));
-                        } else if (json instanceof JsonPrimitive prim && prim.isString()) {
-                            return new PostFilter.Fisp.Str(prim.getAsString());
-                        } else if (json instanceof JsonPrimitive prim && prim.isBoolean()) {
-                            return new PostFilter.Fisp.Bool(prim.getAsBoolean());
-                        } else {
-                            return new PostFilter.Fisp.Str(json.toString());
-                        }
-                    }
-                })
-                .create();
     }
 }
@@ -0,0 +1,153 @@
+package com.williambl.buskymore;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Somewhere we can send messages to - a channel, reached one way or another.
+ */
+public interface MessageSender {
+    Logger LOGGER = LoggerFactory.getLogger(MessageSender.class);
+
+    /**
+     * @param lane which lane of the rate limiter's queues the message waits in
+     * @return a future which completes once the message has been sent, or completes exceptionally if it couldn't be
+     */
+    CompletableFuture<Void> send(String content, RateLimitedExecutor.Lane lane);
+
+    private static HttpRequest.BodyPublisher contentBody(String content) {
+        var payload = new JsonObject();
+        payload.addProperty("content", content);
+        return HttpRequest.BodyPublishers.ofString(payload.toString());
+    }
+
+    /**
+     * @return the message that was made, if it was
+     */
+    private static CompletableFuture<Optional<JsonElement>> sendAsBot(DiscordHttp http, String channelId, String content, RateLimitedExecutor.Lane lane) {
+        var request = HttpRequest.newBuilder(http.api(Bot.SEND_MESSAGE_PATH_TEMPLATE.formatted(channelId)))
+                .headers(http.botHeaders())
+                .POST(contentBody(content))
+                .build();
+        return http.send(new RateLimitedExecutor.Route(Bot.SEND_MESSAGE_ROUTE, channelId), lane, request);
+    }
+
+    /**
+     * Sends as the bot, to a channel it's in.
+     */
+    record Bot(DiscordHttp http, String channelId) implements MessageSender {
+        private static final String SEND_MESSAGE_PATH_TEMPLATE = "channels/%s/messages";
+        private static final String SEND_MESSAGE_ROUTE = "channels/{channel.id}/messages";
+
+        @Override
+        public CompletableFuture<Void> send(String content, RateLimitedExecutor.Lane lane) {
+            return sendAsBot(this.http, this.channelId, content, lane).thenAccept($ -> {});
+        }
+    }
+
+    /**
+     * Sends once, to an announcement channel, and then publishes the message so that Discord delivers it to every
+     * channel following that one. If we couldn't send or publish it - the channel isn't an announcement channel, or
+     * we've used up its publishing limit - we send to each of the fallback channels ourselves instead.
+     * <p>Discord only lets a channel publish about 10 messages an hour. Up to that, a post costs two requests however
+     * many channels follow; past it, a post to N channels costs N+1, one more than sending to them directly would,
+     * since it still goes to the announcement channel first. So this only pays off for channels which post less
+     * often than that.</p>
+     */
+    record Announcement(DiscordHttp http, String channelId, List<MessageSender> fallback) implements MessageSender {
+        private static final String CROSSPOST_PATH_TEMPLATE = "channels/%s/messages/%s/crosspost";
+        private static final String CROSSPOST_ROUTE = "channels/{channel.id}/messages/{message.id}/crosspost";
+
+        @Override
+        public CompletableFuture<Void> send(String content, RateLimitedExecutor.Lane lane) {
+            return sendAsBot(this.http, this.channelId, content, lane)
+                    .handle((message, e) -> e == null ? message : Optional.<JsonElement>empty())
+                    .thenCompose(message -> message
+                            .filter(JsonElement::isJsonObject)
+                            .map(m -> m.getAsJsonObject().get("id"))
+                            .map(id -> this.crosspost(id.getAsString(), lane))
+                            .orElseGet(() -> CompletableFuture.completedFuture(false)))
+                    .thenCompose(published -> {
+                        if (published) {
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        LOGGER.warn("Couldn't publish a message in {}, sending it to {} channels directly", this.channelId, this.fallback.size());
+                        return CompletableFuture.allOf(this.fallback.stream()
+                                .map(sender -> sender.send(content, lane))
+                                .toArray(CompletableFuture[]::new));
+                    });
+        }
+
+        private CompletableFuture<Boolean> crosspost(String messageId, RateLimitedExecutor.Lane lane) {
+            var request = HttpRequest.newBuilder(this.http.api(CROSSPOST_PATH_TEMPLATE.formatted(this.channelId, messageId)))
+                    .headers(this.http.botHeaders())
+                    .POST(HttpRequest.BodyPublishers.noBody())
+                    .build();
+            // don't wait around if we're out of publishes - sending directly is quicker
+            return this.http.trySend(new RateLimitedExecutor.Route(CROSSPOST_ROUTE, this.channelId), lane, request)
+                    .thenApply(Optional::isPresent)
+                    .exceptionally($ -> false);
+        }
+    }
+
+    /**
+     * Sends through a channel's webhooks, taking turns between them. Webhooks have their own rate limits, separate from
+     * the bot's and from each other's, so more webhooks means more throughput - but messages going through different
+     * webhooks can arrive out of order.
+     * <p>Unless {@code wait} is set we don't wait for Discord to say that the message has been made, which is
+     * quicker, but we won't hear about it if it fails after being accepted.</p>
+     */
+    final class Webhook implements MessageSender {
+        private static final String EXECUTE_WEBHOOK_ROUTE = "webhooks/{webhook.id}/{webhook.token}";
+        private final DiscordHttp http;
+        private final List<URI> uris;
+        private final List<RateLimitedExecutor.Route> routes;
+        private final AtomicInteger next = new AtomicInteger();
+
+        public Webhook(DiscordHttp http, List<String> webhookUrls, boolean wait) {
+            if (webhookUrls.isEmpty()) {
+                throw new IllegalArgumentException("A webhook sender needs at least one webhook");
+            }
+            this.http = http;
+            this.uris = webhookUrls.stream()
+                    .map(url -> URI.create(url + (url.contains("?") ? "&" : "?") + "wait=" + wait))
+                    .toList();
+            // the webhook's id is the major parameter. Not its token, which is a secret and routes end up in logs and recordings
+            this.routes = this.uris.stream()
+                    .map(uri -> new RateLimitedExecutor.Route(EXECUTE_WEBHOOK_ROUTE, webhookId(uri)))
+                    .toList();
+        }
+
+        /**
+         * @return the id from a webhook's URL, like {@code https://discord.com/api/webhooks/<id>/<token>}
+         */
+        private static String webhookId(URI uri) {
+            var segments = uri.getPath().split("/");
+            for (int i = 0; i < segments.length - 1; i++) {
+                if (segments[i].equals("webhooks")) {
+                    return segments[i + 1];
+                }
+            }
+            throw new IllegalArgumentException("Not a webhook URL: %s".formatted(uri.getPath().replaceAll("[^/]+$", "...")));
+        }
+
+        @Override
+        public CompletableFuture<Void> send(String content, RateLimitedExecutor.Lane lane) {
+            int idx = Math.floorMod(this.next.getAndIncrement(), this.uris.size());
+            var request = HttpRequest.newBuilder(this.uris.get(idx))
+                    .headers(this.http.headers())
+                    .POST(contentBody(content))
+                    .build();
+            return this.http.send(this.routes.get(idx), lane, request).thenAccept($ -> {});
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.williambl.buskymore;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters, gauges and histograms, served in the Prometheus text format.
+ * <p>Metrics are registered once by name, and given their label values each time they're used. Histograms have
+ * log-linear buckets, like an HDR histogram: four to each power of two, so neighbouring buckets are never more than
+ * 25% apart. By default they go from 65µs to a bit over two minutes.</p>
+ */
+public final class Metrics {
+    public static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+    private static final Map<String, Metric> METRICS = new ConcurrentSkipListMap<>();
+
+    private Metrics() {}
+
+    public static Counter counter(String name, String help, String... labelNames) {
+        return register(new Counter(name, help, labelNames));
+    }
+
+    public static Histogram histogram(String name, String help, String... labelNames) {
+        return register(new Histogram(name, help, Histogram.DEFAULT_BOUNDS, labelNames));
+    }
+
+    /**
+     * Registers a histogram with its own buckets, for things which don't fit the default range - see
+     * {@link Histogram#bounds(int, int)}.
+     */
+    public static Histogram histogram(String name, String help, long[] bounds, String... labelNames) {
+        return register(new Histogram(name, help, bounds, labelNames));
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge which already has this name.
+     */
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        METRICS.put(name, new Gauge(name, help, value));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <M extends Metric> M register(M metric) {
+        var existing = METRICS.putIfAbsent(metric.name, metric);
+        if (existing == null) {
+            return metric;
+        }
+        if (existing.getClass() != metric.getClass() || !Arrays.equals(existing.labelNames, metric.labelNames)
+                || existing instanceof Histogram histogram && !Arrays.equals(histogram.bounds, ((Histogram) metric).bounds)) {
+            throw new IllegalArgumentException("Metric %s is already registered differently".formatted(metric.name));
+        }
+        return (M) existing;
+    }
+
+    /**
+     * @return every metric, in the Prometheus text format
+     */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder();
+        for (var metric : METRICS.values()) {
+            sb.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            sb.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+            metric.write(sb);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Serves the metrics at {@code /metrics} on the given port, on localhost only.
+     */
+    public static HttpServer serve(int port) throws IOException {
+        var server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                var body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        });
+        server.start();
+        LOGGER.info("Serving metrics on port {}", server.getAddress().getPort());
+        return server;
+    }
+
+    private static sealed abstract class Metric permits Counter, Gauge, Histogram {
+        protected final String name;
+        protected final String help;
+        protected final String[] labelNames;
+
+        private Metric(String name, String help, String[] labelNames) {
+            this.name = name;
+            this.help = help;
+            this.labelNames = labelNames;
+        }
+
+        protected List<String> labelValues(String[] labelValues) {
+            if (labelValues.length != this.labelNames.length) {
+                throw new IllegalArgumentException("Metric %s needs labels %s".formatted(this.name, Arrays.toString(this.labelNames)));
+            }
+            return List.of(labelValues);
+        }
+
+        protected void appendLabels(StringBuilder sb, List<String> labelValues, String extraName, String extraValue) {
+            if (labelValues.isEmpty() && extraName == null) {
+                return;
+            }
+            sb.append('{');
+            for (int i = 0; i < labelValues.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                appendLabel(sb, this.labelNames[i], labelValues.get(i));
+            }
+            if (extraName != null) {
+                if (!labelValues.isEmpty()) {
+                    sb.append(',');
+                }
+                appendLabel(sb, extraName, extraValue);
+            }
+            sb.append('}');
+        }
+
+        private static void appendLabel(StringBuilder sb, String name, String value) {
+            sb.append(name).append("=\"");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '\\' -> sb.append("\\\\");
+                    case '"' -> sb.append("\\\"");
+                    case '\n' -> sb.append("\\n");
+                    default -> sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+
+        protected abstract String type();
+
+        protected abstract void write(StringBuilder sb);
+    }
+
+    public static final class Counter extends Metric {
+        private final Map<List<String>, LongAdder> children = new ConcurrentHashMap<>();
+
+        private Counter(String name, String help, String[] labelNames) {
+            super(name, help, labelNames);
+        }
+
+        public void inc(String... labelValues) {
+            this.add(1, labelValues);
+        }
+
+        public void add(long amount, String... labelValues) {
+            this.children.computeIfAbsent(this.labelValues(labelValues), $ -> new LongAdder()).add(amount);
+        }
+
+        @Override
+        protected String type() {
+            return "counter";
+        }
+
+        @Override
+        protected void write(StringBuilder sb) {
+            for (var child : this.children.entrySet()) {
+                sb.append(this.name);
+                this.appendLabels(sb, child.getKey(), null, null);
+                sb.append(' ').append(child.getValue().sum()).append('\n');
+            }
+        }
+    }
+
+    private static final class Gauge extends Metric {
+        private final DoubleSupplier value;
+
+        private Gauge(String name, String help, DoubleSupplier value) {
+            super(name, help, new String[0]);
+            this.value = value;
+        }
+
+        @Override
+        protected String type() {
+            return "gauge";
+        }
+
+        @Override
+        protected void write(StringBuilder sb) {
+            sb.append(this.name).append(' ').append(this.value.getAsDouble()).append('\n');
+        }
+    }
+
+    public static final class Histogram extends Metric {
+        private static final long[] DEFAULT_BOUNDS = bounds(16, 36);
+
+        // the upper bound of each bucket, in nanoseconds; there's one more bucket after these, for everything else
+        private final long[] bounds;
+        private final Map<List<String>, Child> children = new ConcurrentHashMap<>();
+
+        private record Child(LongAdder[] buckets, LongAdder sum) {
+            private Child(int bucketCount) {
+                this(new LongAdder[bucketCount], new LongAdder());
+                for (int i = 0; i < this.buckets.length; i++) {
+                    this.buckets[i] = new LongAdder();
+                }
+            }
+        }
+
+        /**
+         * @return log-linear bucket bounds, four to each power of two, from 2^firstPower to 2^(lastPower+1) nanoseconds
+         */
+        public static long[] bounds(int firstPower, int lastPower) {
+            long[] bounds = new long[1 + (lastPower - firstPower + 1) * 4];
+            bounds[0] = 1L << firstPower;
+            int i = 1;
+            for (int power = firstPower; power <= lastPower; power++) {
+                for (int quarter = 5; quarter <= 8; quarter++) {
+                    bounds[i++] = (1L << (power - 2)) * quarter;
+                }
+            }
+            return bounds;
+        }
+
+        private Histogram(String name, String help, long[] bounds, String[] labelNames) {
+            super(name, help, labelNames);
+            this.bounds = bounds.clone();
+        }
+
+        public void record(long nanos, String... labelValues) {
+            var child = this.children.computeIfAbsent(this.labelValues(labelValues), $ -> new Child(this.bounds.length + 1));
+            int idx = Arrays.binarySearch(this.bounds, nanos);
+            child.buckets()[idx >= 0 ? idx : -idx - 1].increment();
+            child.sum().add(nanos);
+        }
+
+        /**
+         * Records the time since {@code startNanos}, as from {@link System#nanoTime()}.
+         */
+        public void recordSince(long startNanos, String... labelValues) {
+            this.record(System.nanoTime() - startNanos, labelValues);
+        }
+
+        @Override
+        protected String type() {
+            return "histogram";
+        }
+
+        @Override
+        protected void write(StringBuilder sb) {
+            for (var child : this.children.entrySet()) {
+                long count = 0;
+                var buckets = child.getValue().buckets();
+                for (int i = 0; i < buckets.length; i++) {
+                    count += buckets[i].sum();
+                    sb.append(this.name).append("_bucket");
+                    this.appendLabels(sb, child.getKey(), "le", i < this.bounds.length ? Double.toString(this.bounds[i] / 1e9) : "+Inf");
+                    sb.append(' ').append(count).append('\n');
+                }
+                sb.append(this.name).append("_sum");
+                this.appendLabels(sb, child.getKey(), null, null);
+                sb.append(' ').append(child.getValue().sum().sum() / 1e9).append('\n');
+                sb.append(this.name).append("_count");
+                this.appendLabels(sb, child.getKey(), null, null);
+                sb.append(' ').append(count).append('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.williambl.buskymore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Posts which have been fetched but not yet sent, kept on disk so that they survive a restart.
+ * <p>Entries are appended to segment files, a line each ({@code offset \t mapping \t post uri}), and are acked once
+ * they've been sent. Acks can come in any order: the ack file holds the offset below which every entry has been
+ * acked, and segments wholly below it are deleted, while acks above it are appended to the ack log. When an outbox is
+ * opened, every entry from that offset on which isn't in the ack log is pending again - so a post might be sent twice
+ * if we stop at the wrong moment, but never zero times.</p>
+ * <p>Entries which fail to send are handed out again by {@link #takeRetries()}, until they've failed
+ * {@link #MAX_ATTEMPTS} times. Then they're written to the dead letter file and acked, so that one post which can never
+ * be sent doesn't keep every segment after it around forever.</p>
+ * <p>Appending and acking hold a lock while they write, which is a {@link ReentrantLock} rather than
+ * {@code synchronized} so that virtual threads waiting on the disk don't pin their carriers.</p>
+ */
+public class Outbox implements AutoCloseable {
+    public static final Logger LOGGER = LoggerFactory.getLogger(Outbox.class);
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String ACK_FILE = "acked";
+    private static final String ACK_LOG_FILE = "acks";
+    private static final String DEAD_LETTER_FILE = "dead-letters";
+    public static final int MAX_ATTEMPTS = 5;
+    private static final long DEFAULT_MAX_SEGMENT_BYTES = 1 << 20;
+
+    public record Entry(long offset, String mapping, URI postUri) {}
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final List<Entry> pending;
+    // acked, but with an unacked entry somewhere below them
+    private final TreeSet<Long> ackedAhead = new TreeSet<>();
+    // how many times each entry has failed to send, for those which haven't been acked yet
+    private final Map<Long, Integer> attempts = new HashMap<>();
+    private final List<Entry> retries = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private long ackOffset;
+    private long nextOffset;
+    private FileChannel segment;
+    private FileChannel ackLog;
+
+    public Outbox(Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    public Outbox(Path directory, long maxSegmentBytes) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.ackOffset = this.readAckOffset();
+        for (long offset : this.readAckLog()) {
+            if (offset >= this.ackOffset) {
+                this.ackedAhead.add(offset);
+            }
+        }
+        while (this.ackedAhead.remove(this.ackOffset)) {
+            this.ackOffset++;
+        }
+        List<Entry> pending = new ArrayList<>();
+        long nextOffset = this.ackOffset;
+        for (var segment : this.segments()) {
+            for (var entry : readSegment(segment)) {
+                nextOffset = Math.max(nextOffset, entry.offset() + 1);
+                if (entry.offset() >= this.ackOffset && !this.ackedAhead.contains(entry.offset())) {
+                    pending.add(entry);
+                }
+            }
+        }
+        this.pending = List.copyOf(pending);
+        this.nextOffset = nextOffset;
+        this.writeAckOffset();
+        this.deleteAckedSegments();
+        // start the ack log again with only what it needs, which also drops a line that was cut off
+        var temp = this.directory.resolve(ACK_LOG_FILE + ".tmp");
+        Files.write(temp, this.ackedAhead.stream().map(offset -> offset + "\n").toList());
+        Files.move(temp, this.directory.resolve(ACK_LOG_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.ackLog = FileChannel.open(this.directory.resolve(ACK_LOG_FILE), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        // always start a new segment, so we never append after a line that was cut off
+        this.roll();
+    }
+
+    /**
+     * @return the entries which hadn't been acked when this outbox was opened
+     */
+    public List<Entry> pending() {
+        return this.pending;
+    }
+
+    /**
+     * Writes the posts to disk, and doesn't return until they're there.
+     */
+    public List<Entry> append(String mapping, List<URI> postUris) throws IOException {
+        if (mapping.contains("\t") || mapping.contains("\n")) {
+            throw new IllegalArgumentException("Mapping names can't contain tabs or newlines");
+        }
+        this.lock.lock();
+        try {
+            List<Entry> entries = new ArrayList<>(postUris.size());
+            StringBuilder sb = new StringBuilder();
+            for (var postUri : postUris) {
+                var entry = new Entry(this.nextOffset++, mapping, postUri);
+                entries.add(entry);
+                sb.append(entry.offset()).append('\t').append(entry.mapping()).append('\t').append(entry.postUri()).append('\n');
+            }
+            var buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                this.segment.write(buffer);
+            }
+            this.segment.force(false);
+            if (this.segment.size() >= this.maxSegmentBytes) {
+                this.roll();
+            }
+            return entries;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Marks an entry as sent. Failing to record that is logged rather than thrown, since the worst that can happen is
+     * the entry being sent again.
+     */
+    public void ack(Entry entry) {
+        this.lock.lock();
+        try {
+            this.attempts.remove(entry.offset());
+            if (entry.offset() < this.ackOffset || !this.ackedAhead.add(entry.offset())) {
+                return;
+            }
+            long ackOffset = this.ackOffset;
+            while (this.ackedAhead.remove(ackOffset)) {
+                ackOffset++;
+            }
+            if (ackOffset == this.ackOffset) {
+                // there's an unacked entry below this one, so remember this one separately
+                var buffer = ByteBuffer.wrap((entry.offset() + "\n").getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    this.ackLog.write(buffer);
+                }
+                return;
+            }
+            this.ackOffset = ackOffset;
+            this.writeAckOffset();
+            if (this.ackedAhead.isEmpty()) {
+                // everything in the ack log is below the ack offset now
+                this.ackLog.truncate(0);
+            }
+            this.deleteAckedSegments();
+        } catch (IOException e) {
+            LOGGER.error("Failed to write the outbox's acks", e);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Marks an entry as having failed to send. It's handed out by {@link #takeRetries()} to be tried again, unless it's
+     * failed {@link #MAX_ATTEMPTS} times since this outbox was opened, in which case it's given up on: it's written to
+     * the dead letter file, and acked.
+     *
+     * @return whether the entry was given up on
+     */
+    public boolean fail(Entry entry) {
+        this.lock.lock();
+        try {
+            if (entry.offset() < this.ackOffset || this.ackedAhead.contains(entry.offset())) {
+                return false;
+            }
+            int attempts = this.attempts.merge(entry.offset(), 1, Integer::sum);
+            if (attempts < MAX_ATTEMPTS) {
+                this.retries.add(entry);
+                return false;
+            }
+            LOGGER.error("Giving up on sending {} from {} after {} attempts, see {}", entry.postUri(), entry.mapping(), attempts, this.directory.resolve(DEAD_LETTER_FILE));
+            try {
+                Files.writeString(this.directory.resolve(DEAD_LETTER_FILE), "%d\t%s\t%s\n".formatted(entry.offset(), entry.mapping(), entry.postUri()),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                LOGGER.error("Failed to write {} to the dead letter file", entry.postUri(), e);
+            }
+            this.ack(entry);
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the entries which have failed to send since this was last called, to be tried again
+     */
+    public List<Entry> takeRetries() {
+        this.lock.lock();
+        try {
+            var retries = List.copyOf(this.retries);
+            this.retries.clear();
+            return retries;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void writeAckOffset() throws IOException {
+        var temp = this.directory.resolve(ACK_FILE + ".tmp");
+        Files.writeString(temp, Long.toString(this.ackOffset));
+        Files.move(temp, this.directory.resolve(ACK_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long readAckOffset() throws IOException {
+        var ackFile = this.directory.resolve(ACK_FILE);
+        if (!Files.exists(ackFile)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(Files.readString(ackFile).strip());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid outbox ack offset in " + ackFile, e);
+        }
+    }
+
+    private List<Long> readAckLog() throws IOException {
+        var ackLog = this.directory.resolve(ACK_LOG_FILE);
+        if (!Files.exists(ackLog)) {
+            return List.of();
+        }
+        var lines = Files.readString(ackLog).split("\n", -1);
+        List<Long> offsets = new ArrayList<>(lines.length);
+        // as with segments, the last piece is either empty or a line we didn't finish writing
+        for (int i = 0; i < lines.length - 1; i++) {
+            try {
+                offsets.add(Long.parseLong(lines[i]));
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Skipping invalid outbox ack in {}: {}", ackLog, lines[i]);
+            }
+        }
+        return offsets;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            return files
+                    .filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static long segmentStart(Path segment) {
+        var name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static List<Entry> readSegment(Path segment) throws IOException {
+        var lines = Files.readString(segment).split("\n", -1);
+        List<Entry> entries = new ArrayList<>(lines.length);
+        // the last piece is either empty or a line we didn't finish writing
+        for (int i = 0; i < lines.length - 1; i++) {
+            var parts = lines[i].split("\t");
+            if (parts.length != 3) {
+                LOGGER.warn("Skipping invalid outbox line in {}: {}", segment, lines[i]);
+                continue;
+            }
+            try {
+                entries.add(new Entry(Long.parseLong(parts[0]), parts[1], URI.create(parts[2])));
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Skipping invalid outbox line in {}: {}", segment, lines[i], e);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Deletes every segment which is followed by one starting at or below the ack offset - its entries are all acked.
+     */
+    private void deleteAckedSegments() throws IOException {
+        var segments = this.segments();
+        for (int i = 0; i < segments.size() - 1; i++) {
+            if (segmentStart(segments.get(i + 1)) > this.ackOffset) {
+                break;
+            }
+            Files.delete(segments.get(i));
+        }
+    }
+
+    private void roll() throws IOException {
+        if (this.segment != null) {
+            this.segment.close();
+        }
+        var path = this.directory.resolve("%020d%s".formatted(this.nextOffset, SEGMENT_SUFFIX));
+        // if there's already a segment here, it can only hold a line that was cut off
+        this.segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.lock.lock();
+        try {
+            this.segment.close();
+            this.ackLog.close();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
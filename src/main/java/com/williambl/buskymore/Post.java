@@ -1,15 +1,57 @@
 package com.williambl.buskymore;
 
-import com.google.gson.JsonObject;
-
 import java.net.URI;
 import java.time.Instant;
 import java.util.Optional;
 import java.util.Set;
 
-public record Post(URI uri, String authorDid, String text, Instant createdAt, Optional<String> reason, boolean hasEmbeds, Set<String> labels, JsonObject json) {
+public record Post(URI uri, String authorDid, String text, Instant createdAt, Optional<String> reason, boolean hasEmbeds, Set<String> labels, String json, Trace trace) {
+    public Post(URI uri, String authorDid, String text, Instant createdAt, Optional<String> reason, boolean hasEmbeds, Set<String> labels, String json) {
+        this(uri, authorDid, text, createdAt, reason, hasEmbeds, labels, json, new Trace());
+    }
+
     @Override
     public String toString() {
         return "%s [created %s]%s @%s embed:%s text:%s labels:%s".formatted(this.uri, this.createdAt, this.reason.map(rs -> " reason: " + rs).orElse(""), this.authorDid, this.hasEmbeds, this.text, String.join(", ", this.labels));
     }
+
+    /**
+     * When a post got to each stage on its way to Discord: seen when it's parsed from a page, filtered once it's
+     * passed its source's filter, enqueued when it's handed to the senders, and sent once every sender has sent it.
+     * Stages it hasn't got to yet are null.
+     */
+    public static final class Trace {
+        private final Instant seen = Instant.now();
+        private volatile Instant filtered;
+        private volatile Instant enqueued;
+        private volatile Instant sent;
+
+        public Instant seen() {
+            return this.seen;
+        }
+
+        public Instant filtered() {
+            return this.filtered;
+        }
+
+        public Instant enqueued() {
+            return this.enqueued;
+        }
+
+        public Instant sent() {
+            return this.sent;
+        }
+
+        public void markFiltered() {
+            this.filtered = Instant.now();
+        }
+
+        public void markEnqueued() {
+            this.enqueued = Instant.now();
+        }
+
+        public void markSent() {
+            this.sent = Instant.now();
+        }
+    }
 }
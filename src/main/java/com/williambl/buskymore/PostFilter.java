@@ -1,8 +1,14 @@
 package com.williambl.buskymore;
 
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.IntStream;
@@ -214,9 +220,21 @@ public interface PostFilter extends Predicate<PostFilter.FilterContext> {
             private final double doubleValue;
             private final boolean canBeInteger;
             private final int integerValue;
+            // set when this atom is the head of an expression linked against a frozen registry
+            private final Functions linkedTo;
+            private final int slot;
+            // what a preparing function worked out from its arguments when it was linked, if anything
+            private final Object prepared;
 
             public Atom(String value) {
+                this(value, null, -1, null);
+            }
+
+            private Atom(String value, Functions linkedTo, int slot, Object prepared) {
                 this.value = value;
+                this.linkedTo = linkedTo;
+                this.slot = slot;
+                this.prepared = prepared;
                 if (value.equals("true") || value.equals("false")) {
                     this.canBeBoolean = true;
                     this.booleanValue = value.equals("true");
@@ -250,6 +268,10 @@ public interface PostFilter extends Predicate<PostFilter.FilterContext> {
                 return this.value;
             }
 
+            private Atom linked(Functions functions, int slot, Object prepared) {
+                return new Atom(this.value, functions, slot, prepared);
+            }
+
             public boolean canBeBoolean() {
                 return this.canBeBoolean;
             }
@@ -349,6 +371,13 @@ public interface PostFilter extends Predicate<PostFilter.FilterContext> {
     interface FilterContext {
         Post post();
 
+        /**
+         * @return the matches for an {@code extract} expression, if they were worked out ahead of time, or null
+         */
+        default List<JsonElement> extracted(Array extractExpression) {
+            return null;
+        }
+
         interface WithUser {
             String userDid();
         }
@@ -393,39 +422,261 @@ public interface PostFilter extends Predicate<PostFilter.FilterContext> {
         static FispFunc transf(ToArray transformer) {
             return (fisp, functions, context) -> functions.eval(new Array(transformer.apply(fisp, functions, context)), context);
         }
-        static FispFunc replace(Array newExp) {
-            return (fisp, functions, context) -> functions.eval(newExp, context);
-        }
         static FispFunc of(ToArray transformer) {
             return (fisp, functions, context) -> new Array(transformer.apply(fisp, functions, context));
         }
+
+        /**
+         * A function which works something out from its arguments once, when it's linked, rather than every time
+         * it's evaluated - e.g. compiling a constant regex.
+         */
+        interface Preparing<T> extends FispFunc {
+            /**
+             * @param linked the expression, with its arguments linked
+             * @return what's worked out from the arguments, or null if it depends on the post
+             */
+            T prepare(Array linked);
+
+            /**
+             * @param prepared what was worked out when this was linked, or null if it wasn't
+             */
+            Fisp apply(Array fisp, T prepared, Functions functions, FilterContext context);
+
+            @Override
+            @SuppressWarnings("unchecked")
+            default Fisp apply(Array fisp, Functions functions, FilterContext context) {
+                var prepared = fisp.values.getFirst() instanceof Atom head ? (T) head.prepared : null;
+                return this.apply(fisp, prepared, functions, context);
+            }
+        }
     }
 
+    /**
+     * A registry of fisp functions and macros.
+     * <p>Functions and macros are registered while the registry is being set up, then it is {@link #freeze() frozen}.
+     * Once frozen it can't be changed, and expressions can be {@link #link(Fisp) linked} against it: macros are expanded
+     * and every function name is resolved to a slot, so evaluating a linked expression never has to look a name up.</p>
+     */
     final class Functions {
-        private final Map<String, FispFunc> filterTypes = new HashMap<>();
+        private final Map<String, Integer> slotsByName;
+        private final Map<String, Array> macros;
+        private final Map<String, Fisp> expandedMacros = new HashMap<>();
+        private FispFunc[] slots;
+        // the name each function was registered under, by slot
+        private String[] names;
+        // if this registry's functions are wrapped, the functions they wrap
+        private FispFunc[] unwrapped;
+        private int size;
+        private boolean frozen = false;
+
+        public Functions() {
+            this(new HashMap<>(), new HashMap<>(), new FispFunc[16], new String[16], 0);
+        }
+
+        private Functions(Map<String, Integer> slotsByName, Map<String, Array> macros, FispFunc[] slots, String[] names, int size) {
+            this.slotsByName = slotsByName;
+            this.macros = macros;
+            this.slots = slots;
+            this.names = names;
+            this.size = size;
+        }
 
         public void register(String name, FispFunc fispFunc, String... aliases) {
-            this.filterTypes.put(name, fispFunc);
+            this.checkNotFrozen();
+            if (this.size == this.slots.length) {
+                this.slots = Arrays.copyOf(this.slots, this.slots.length * 2);
+                this.names = Arrays.copyOf(this.names, this.slots.length);
+            }
+            int slot = this.size++;
+            this.slots[slot] = fispFunc;
+            this.names[slot] = name;
+            this.slotsByName.put(name, slot);
+            this.macros.remove(name);
+            for (String alias : aliases) {
+                this.slotsByName.put(alias, slot);
+                this.macros.remove(alias);
+            }
+        }
+
+        /**
+         * Registers a macro: wherever {@code (name)} appears in an expression, it is replaced with {@code expansion}
+         * when the expression is linked.
+         */
+        public void registerMacro(String name, Array expansion, String... aliases) {
+            this.checkNotFrozen();
+            this.macros.put(name, expansion);
+            this.slotsByName.remove(name);
             for (String alias : aliases) {
-                this.filterTypes.put(alias, fispFunc);
+                this.macros.put(alias, expansion);
+                this.slotsByName.remove(alias);
+            }
+        }
+
+        /**
+         * Freezes this registry, expanding every macro once. After this, nothing more can be registered.
+         */
+        public Functions freeze() {
+            if (this.frozen) {
+                return this;
+            }
+            this.slots = Arrays.copyOf(this.slots, this.size);
+            this.names = Arrays.copyOf(this.names, this.size);
+            for (var name : this.macros.keySet()) {
+                this.expandMacro(name, new ArrayDeque<>());
+            }
+            this.frozen = true;
+            return this;
+        }
+
+        /**
+         * @return a new, unfrozen registry with all the functions and macros in this one, for adding more to
+         */
+        public Functions derive() {
+            return new Functions(new HashMap<>(this.slotsByName), new HashMap<>(this.macros), Arrays.copyOf(this.slots, Math.max(this.size, 1)), Arrays.copyOf(this.names, Math.max(this.size, 1)), this.size);
+        }
+
+        /**
+         * Makes a frozen copy of this registry with every function wrapped, e.g. to time it. Expressions linked
+         * against the copy are evaluated the same way as they would be against this registry, other than the wrapping.
+         *
+         * @param wrapper given the name each function was registered under, and the function
+         */
+        public Functions wrapped(BiFunction<String, FispFunc, FispFunc> wrapper) {
+            if (!this.frozen) {
+                throw new IllegalStateException("Cannot wrap a function registry that isn't frozen yet!");
+            }
+            var slots = new FispFunc[this.size];
+            for (int i = 0; i < this.size; i++) {
+                slots[i] = wrapper.apply(this.names[i], this.slots[i]);
+            }
+            var wrapped = new Functions(new HashMap<>(this.slotsByName), new HashMap<>(this.macros), slots, this.names, this.size);
+            wrapped.unwrapped = this.unwrapped == null ? this.slots : this.unwrapped;
+            return wrapped.freeze();
+        }
+
+        public boolean isFrozen() {
+            return this.frozen;
+        }
+
+        private void checkNotFrozen() {
+            if (this.frozen) {
+                throw new IllegalStateException("Cannot modify a frozen function registry!");
             }
         }
 
         private boolean has(String funcName) {
-            return this.filterTypes.containsKey(funcName);
+            return this.slotsByName.containsKey(funcName);
         }
 
         public FispFunc get(String name) {
-            var type = this.filterTypes.get(name);
-            if (type == null) {
+            var slot = this.slotsByName.get(name);
+            if (slot == null) {
                 throw new NoSuchElementException("No such filter type %s".formatted(name));
             }
 
-            return type;
+            return this.slots[slot];
+        }
+
+        public FispFunc get(Atom name) {
+            if (name.linkedTo == this) {
+                return this.slots[name.slot];
+            }
+
+            return this.get(name.value());
         }
 
         public Optional<FispFunc> maybeGet(String name) {
-            return Optional.ofNullable(this.filterTypes.get(name));
+            return Optional.ofNullable(this.slotsByName.get(name)).map(slot -> this.slots[slot]);
+        }
+
+        /**
+         * @return the function in a slot, as it was registered - even if it's been {@link #wrapped wrapped}
+         */
+        private FispFunc unwrapped(int slot) {
+            return (this.unwrapped == null ? this.slots : this.unwrapped)[slot];
+        }
+
+        /**
+         * @return whether the name is {@code extract}, or an alias of it
+         */
+        private boolean isExtract(String name) {
+            var slot = this.slotsByName.get(name);
+            return slot != null && this.unwrapped(slot) == EXTRACT;
+        }
+
+        /**
+         * Expands macros in and resolves function names in an expression, so that it can be evaluated without any
+         * further lookups.
+         *
+         * @throws IllegalArgumentException if the expression calls something which is neither a function nor a macro
+         */
+        public Fisp link(Fisp fisp) {
+            if (!this.frozen) {
+                throw new IllegalStateException("Cannot link against a function registry that isn't frozen yet!");
+            }
+            return this.link(fisp, new ArrayDeque<>());
+        }
+
+        private Fisp link(Fisp fisp, Deque<String> expanding) {
+            return switch (fisp) {
+                case Array a when !a.values.isEmpty() && a.values.getFirst() instanceof Atom head -> {
+                    if (this.macros.containsKey(head.value())) {
+                        if (a.values.size() > 1) {
+                            throw new IllegalArgumentException("Macro %s doesn't take any arguments, but got %s".formatted(head.value(), print(a)));
+                        }
+                        yield this.expandMacro(head.value(), expanding);
+                    }
+                    var slot = this.slotsByName.get(head.value());
+                    if (slot == null) {
+                        throw new IllegalArgumentException("No such filter type %s, in %s".formatted(head.value(), print(a)));
+                    }
+                    boolean extract = this.isExtract(head.value());
+                    List<Fisp> linked = new ArrayList<>(a.values.size());
+                    linked.add(head.linked(this, slot, null));
+                    for (int i = 1; i < a.values.size(); i++) {
+                        // what follows . or .. in an extract is selectors, not a call
+                        boolean selectors = extract && a.values.get(i - 1) instanceof Atom previous
+                                && (previous.value().equals(".") || previous.value().equals(".."));
+                        linked.add(selectors ? this.linkSelectors(a.values.get(i), expanding) : this.link(a.values.get(i), expanding));
+                    }
+                    if (this.unwrapped(slot) instanceof FispFunc.Preparing<?> preparing) {
+                        var prepared = preparing.prepare(new Array(linked));
+                        if (prepared != null) {
+                            linked.set(0, head.linked(this, slot, prepared));
+                        }
+                    }
+                    yield new Array(List.copyOf(linked));
+                }
+                case Array a -> new Array(a.values.stream().map(v -> this.link(v, expanding)).toList());
+                case Atom a -> a;
+            };
+        }
+
+        /**
+         * Links the names in an {@code extract}'s selectors, as in {@code (name <expression>)}, and leaves the rest.
+         */
+        private Fisp linkSelectors(Fisp selectors, Deque<String> expanding) {
+            return switch (selectors) {
+                case Array(List<Fisp> values) when values.size() == 2 && values.getFirst().equals(str("name")) ->
+                        arr(values.getFirst(), this.link(values.get(1), expanding));
+                case Array(List<Fisp> values) -> new Array(values.stream().map(v -> this.linkSelectors(v, expanding)).toList());
+                case Atom a -> a;
+            };
+        }
+
+        private Fisp expandMacro(String name, Deque<String> expanding) {
+            var expanded = this.expandedMacros.get(name);
+            if (expanded != null) {
+                return expanded;
+            }
+            if (expanding.contains(name)) {
+                throw new IllegalArgumentException("Macro %s is defined in terms of itself (via %s)".formatted(name, String.join(" -> ", expanding)));
+            }
+            expanding.push(name);
+            expanded = this.link(this.macros.get(name), expanding);
+            expanding.pop();
+            this.expandedMacros.put(name, expanded);
+            return expanded;
         }
 
         public boolean evalToBool(Fisp fisp, FilterContext context) {
@@ -439,9 +690,11 @@ public interface PostFilter extends Predicate<PostFilter.FilterContext> {
         public Atom evalToAtom(Fisp fisp, FilterContext context) {
             return switch (fisp) {
                 case Array a when a.values.getFirst() instanceof Atom funcName -> {
-                    var type = this.get(funcName.value());
+                    var type = this.get(funcName);
                     yield switch (type.apply(a, this, context)) {
-                        case Array array -> this.evalToAtom(array, context);
+                        // arrays returned by functions are data (e.g. from extract), not more expressions
+                        case Array array when array.values.size() == 1 && array.values.getFirst() instanceof Atom only -> only;
+                        case Array array -> atom(isTruthy(array));
                         case Atom atom -> atom;
                     };
                 }
@@ -454,7 +707,7 @@ public interface PostFilter extends Predicate<PostFilter.FilterContext> {
         public Fisp eval(Fisp fisp, FilterContext context) {
             return switch (fisp) {
                 case Array a when a.values.getFirst() instanceof Atom atom -> {
-                    var type = this.get(atom.value());
+                    var type = this.get(atom);
                     yield  type.apply(a, this, context);
                 }
                 default -> fisp;
@@ -462,11 +715,147 @@ public interface PostFilter extends Predicate<PostFilter.FilterContext> {
         }
 
         public PostFilter build(Fisp fisp) {
-            return filterContext -> isTruthy(this.eval(fisp, filterContext));
+            var linked = this.link(fisp);
+            var extractions = Extractions.collect(linked, this);
+            if (extractions.isEmpty()) {
+                return filterContext -> isTruthy(this.eval(linked, filterContext));
+            }
+            return filterContext -> isTruthy(this.eval(linked, extractions.wrap(filterContext)));
         }
     }
 
+    /**
+     * All the {@code extract} expressions with constant paths in a linked filter, compiled into one path set. The
+     * first {@code extract} evaluated for a post selects every path in one walk over the post's JSON, and the rest
+     * reuse those results.
+     */
+    final class Extractions {
+        private final Map<Array, Integer> indices;
+        private final JsonPath.PathSet paths;
+
+        private Extractions(Map<Array, Integer> indices, JsonPath.PathSet paths) {
+            this.indices = indices;
+            this.paths = paths;
+        }
+
+        static Extractions collect(Fisp linked, Functions functions) {
+            Map<Array, Integer> indices = new IdentityHashMap<>();
+            List<JsonPath> paths = new ArrayList<>();
+            collect(linked, functions, indices, paths);
+            return new Extractions(indices, JsonPath.compileAll(paths));
+        }
+
+        private static void collect(Fisp fisp, Functions functions, Map<Array, Integer> indices, List<JsonPath> paths) {
+            if (!(fisp instanceof Array a)) {
+                return;
+            }
+            // the path was worked out when the extract was linked - paths which depend on the post weren't, and are left
+            // to be worked out when they're evaluated
+            if (!a.values.isEmpty()
+                    && a.values.getFirst() instanceof Atom head
+                    && head.linkedTo == functions
+                    && functions.isExtract(head.value())
+                    && head.prepared instanceof JsonPath path
+                    && !indices.containsKey(a)) {
+                indices.put(a, paths.size());
+                paths.add(path);
+            }
+            for (var value : a.values) {
+                collect(value, functions, indices, paths);
+            }
+        }
+
+        public boolean isEmpty() {
+            return this.indices.isEmpty();
+        }
+
+        public FilterContext wrap(FilterContext context) {
+            return context instanceof FilterContext.WithUser
+                    ? new ExtractingWithUser(context, this)
+                    : new Extracting(context, this);
+        }
+
+        private static class Extracting implements FilterContext {
+            private final FilterContext context;
+            private final Extractions extractions;
+            private List<List<JsonElement>> results;
+
+            private Extracting(FilterContext context, Extractions extractions) {
+                this.context = context;
+                this.extractions = extractions;
+            }
+
+            @Override
+            public Post post() {
+                return this.context.post();
+            }
+
+            @Override
+            public List<JsonElement> extracted(Array extractExpression) {
+                var idx = this.extractions.indices.get(extractExpression);
+                if (idx == null) {
+                    return null;
+                }
+                if (this.results == null) {
+                    try (var reader = new JsonReader(new StringReader(this.post().json()))) {
+                        this.results = this.extractions.paths.select(reader);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Couldn't read JSON of post %s".formatted(this.post().uri()), e);
+                    }
+                }
+                return this.results.get(idx);
+            }
+        }
+
+        private static final class ExtractingWithUser extends Extracting implements FilterContext.WithUser {
+            private ExtractingWithUser(FilterContext context, Extractions extractions) {
+                super(context, extractions);
+            }
+
+            @Override
+            public String userDid() {
+                return ((FilterContext.WithUser) super.context).userDid();
+            }
+        }
+    }
+
+    FispFunc EXTRACT = new FispFunc.Preparing<JsonPath>() {
+        /**
+         * Compiles the path once, if it doesn't depend on the post.
+         */
+        @Override
+        public JsonPath prepare(Array linked) {
+            var path = makeJsonPathFromFisp(linked, f -> f instanceof Atom atom ? atom : null);
+            if (path != null) {
+                path.compile();
+            }
+            return path;
+        }
+
+        @Override
+        public Fisp apply(Array fisp, JsonPath path, Functions functions, FilterContext context) {
+            var matches = context.extracted(fisp);
+            if (matches == null) {
+                var compiled = (path != null ? path : makeJsonPathFromFisp(fisp, f -> functions.evalToAtom(f, context))).compile();
+                matches = new ArrayList<>();
+                try (var reader = new JsonReader(new StringReader(context.post().json()))) {
+                    compiled.select(reader, matches);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Couldn't read JSON of post %s".formatted(context.post().uri()), e);
+                }
+            }
+            List<Fisp> result = new ArrayList<>(matches.size());
+            for (var match : matches) {
+                result.add(Fisp.fromJson(match));
+            }
+            return new Array(result);
+        }
+    };
+
     static void bootstrap() {
+        if (FUNCTIONS.isFrozen()) {
+            return;
+        }
         FUNCTIONS.register("all_of", FispFunc.filter((fisp, functions, ctx) ->
                         fisp.argStream().allMatch(f -> functions.evalToBool(f, ctx))),
                 "all", "and");
@@ -476,29 +865,7 @@ public interface PostFilter extends Predicate<PostFilter.FilterContext> {
         FUNCTIONS.register("not", FispFunc.filter((fisp, functions, ctx) ->
                         !functions.evalToBool(fisp.argument(), ctx)),
                 "!");
-        FUNCTIONS.register("extract", FispFunc.of((fisp, functions, context) -> {
-            List<JsonPath.Segment> segments = new ArrayList<>();
-            for (Iterator<Fisp> iterator = fisp.arguments().iterator(); iterator.hasNext(); ) {
-                var unevaledArg = iterator.next();
-                var evaledArg = functions.evalToAtom(unevaledArg, context);
-                if (segments.isEmpty() && evaledArg.value().equals("$")) {
-                    continue;
-                }
-                if (evaledArg.value().equals(".")) {
-                    Fisp next = iterator.next();
-                    List<JsonPath.Selector> selectors = makeJsonPathSelectorsFromFisp(next, functions, context);
-                    segments.add(new JsonPath.Segment.ChildSegment(selectors));
-                } else if (evaledArg.value().equals("..")) {
-                    Fisp next = iterator.next();
-                    List<JsonPath.Selector> selectors = makeJsonPathSelectorsFromFisp(next, functions, context);
-                    segments.add(new JsonPath.Segment.ChildSegment(selectors));
-                } else {
-                    //TODO think about errors.
-                    continue;
-                }
-            }
-            return new JsonPath(segments).select(context.post().json()).map(Fisp::fromJson).toList();
-        }));
+        FUNCTIONS.register("extract", EXTRACT);
         FUNCTIONS.register("has_embed", FispFunc.postFilter(p -> p.post().hasEmbeds()));
         FUNCTIONS.register("reason_is", FispFunc.filter((fisp, functions, context) ->
                 context.post().reason().filter(r ->
@@ -506,52 +873,126 @@ public interface PostFilter extends Predicate<PostFilter.FilterContext> {
                                         .map(a -> functions.evalToString(a, context))
                                         .anyMatch(r::equals))
                         .isPresent()));
-        FUNCTIONS.register("is_retweet", FispFunc.replace(
-                arr(str("reason_is"), str("app.bsky.feed.defs#reasonRepost"))));
+        FUNCTIONS.registerMacro("is_retweet",
+                arr(str("reason_is"), str("app.bsky.feed.defs#reasonRepost")));
         FUNCTIONS.register("author_is", FispFunc.filter((fisp, functions, context) ->
                 Optional.of(context.post().authorDid()).filter(r ->
                                 fisp.argStream()
                                         .map(a -> functions.evalToString(a, context))
                                         .anyMatch(r::equals))
                         .isPresent()));
-        FUNCTIONS.register("is_authored_by_self", FispFunc.transf((fisp, functions, context) ->
-                List.of(str("author_is"), context instanceof FilterContext.WithUser wu ? str(wu.userDid()) : str(""))));
-        FUNCTIONS.register("is_self_retweet", FispFunc.replace(
-                parse("either (not is_retweet) (is_authored_by_self)")));
+        FUNCTIONS.register("is_authored_by_self", FispFunc.postFilter(context ->
+                context instanceof FilterContext.WithUser wu && context.post().authorDid().equals(wu.userDid())));
+        FUNCTIONS.registerMacro("is_self_retweet",
+                parse("either (not (is_retweet)) (is_authored_by_self)"));
         FUNCTIONS.register("labels_contains", FispFunc.filter((fisp, functions, context) ->
                 context.post().labels().stream().anyMatch(r ->
                         fisp.argStream()
                                 .map(a -> functions.evalToString(a, context))
                                 .anyMatch(r::equals))));
-        FUNCTIONS.register("contains_regex", FispFunc.filter((fisp, functions, ctx) -> {
-            var arg = functions.evalToString(fisp.argument(), ctx);
-            var pattern = Pattern.compile(arg);
-            return pattern.matcher(ctx.post().text()).find(0);
-        }));
+        FUNCTIONS.register("contains_regex", new FispFunc.Preparing<Pattern>() {
+            /**
+             * Compiles the regex once, if it's constant.
+             *
+             * @throws java.util.regex.PatternSyntaxException if it's constant but not a valid regex
+             */
+            @Override
+            public Pattern prepare(Array linked) {
+                return linked.argument() instanceof Atom regex ? Pattern.compile(regex.value()) : null;
+            }
+
+            @Override
+            public Fisp apply(Array fisp, Pattern pattern, Functions functions, FilterContext ctx) {
+                if (pattern == null) {
+                    pattern = Pattern.compile(functions.evalToString(fisp.argument(), ctx));
+                }
+                return atom(pattern.matcher(ctx.post().text()).find(0));
+            }
+        });
+        FUNCTIONS.freeze();
     }
 
-    Pattern SLICE_PATTERN = Pattern.compile("(-?\\d+)?:(-?\\d+)?:(-?\\d+)?");
+    Pattern SLICE_PATTERN = Pattern.compile("(-?\\d+)?:(-?\\d+)?(?::(-?\\d+)?)?");
+
+    /**
+     * Makes a path from the arguments of an {@code extract} expression.
+     * @param evaluator evaluates an argument to an atom, or returns null if it can't
+     * @return the path, or null if the evaluator couldn't evaluate one of the arguments
+     */
+    static JsonPath makeJsonPathFromFisp(Array fisp, Function<Fisp, Atom> evaluator) {
+        // a single argument can be a whole RFC 9535 query, e.g. (extract "$..facets[?@.$type == 'app.bsky.richtext.facet#link']")
+        if (fisp.arguments().size() == 1) {
+            var query = evaluator.apply(fisp.argument());
+            if (query == null) {
+                return null;
+            }
+            if (query.value().startsWith("$") && query.value().length() > 1) {
+                return JsonPath.parse(query.value());
+            }
+        }
+        List<JsonPath.Segment> segments = new ArrayList<>();
+        for (Iterator<Fisp> iterator = fisp.arguments().iterator(); iterator.hasNext(); ) {
+            var unevaledArg = iterator.next();
+            var evaledArg = evaluator.apply(unevaledArg);
+            if (evaledArg == null) {
+                return null;
+            }
+            if (segments.isEmpty() && evaledArg.value().equals("$")) {
+                continue;
+            }
+            if (evaledArg.value().equals(".")) {
+                Fisp next = iterator.next();
+                List<JsonPath.Selector> selectors = makeJsonPathSelectorsFromFisp(next, evaluator);
+                if (selectors == null) {
+                    return null;
+                }
+                segments.add(new JsonPath.Segment.ChildSegment(selectors));
+            } else if (evaledArg.value().equals("..")) {
+                Fisp next = iterator.next();
+                List<JsonPath.Selector> selectors = makeJsonPathSelectorsFromFisp(next, evaluator);
+                if (selectors == null) {
+                    return null;
+                }
+                segments.add(new JsonPath.Segment.DescendantSegment(selectors));
+            } else {
+                //TODO think about errors.
+                continue;
+            }
+        }
+        return new JsonPath(segments);
+    }
 
-    static List<JsonPath.Selector> makeJsonPathSelectorsFromFisp(Fisp next, Functions functions, FilterContext ctx) {
+    static List<JsonPath.Selector> makeJsonPathSelectorsFromFisp(Fisp next, Function<Fisp, Atom> evaluator) {
         return switch (next) {
             case Atom a when a.value.equals("*") -> List.of(JsonPath.all());
             case Atom a when a.canBeInteger() -> List.of(JsonPath.idx(a.asInteger()));
             case Atom a -> {
                 var matcher = SLICE_PATTERN.matcher(a.value());
-                if (matcher.find()) {
+                if (matcher.matches()) {
                     yield List.of(JsonPath.slice(
-                            matcher.group(1).isEmpty() ? null : Integer.parseInt(matcher.group(1)),
-                            matcher.group(2).isEmpty() ? null : Integer.parseInt(matcher.group(2)),
-                            matcher.group(3).isEmpty() ? null : Integer.parseInt(matcher.group(3))
+                            matcher.group(1) == null ? null : Integer.parseInt(matcher.group(1)),
+                            matcher.group(2) == null ? null : Integer.parseInt(matcher.group(2)),
+                            matcher.group(3) == null ? null : Integer.parseInt(matcher.group(3))
                     ));
                 } else {
                     yield List.of(JsonPath.name(a.value()));
                 }
             }
-            case Array(List<Fisp> values) when values.size() == 2 && values.getFirst().equals(str("name")) ->
-                    List.of(JsonPath.name(functions.evalToString(values.get(1), ctx)));
-            case Array(List<Fisp> values) ->
-                    values.stream().flatMap(v -> makeJsonPathSelectorsFromFisp(v, functions, ctx).stream()).toList();
+            case Array(List<Fisp> values) when values.size() == 2 && values.getFirst().equals(str("name")) -> {
+                var name = evaluator.apply(values.get(1));
+                yield name == null ? null : List.of(JsonPath.name(name.value()));
+            }
+            case Array(List<Fisp> values) -> {
+                List<JsonPath.Selector> selectors = new ArrayList<>();
+                for (var value : values) {
+                    var valueSelectors = makeJsonPathSelectorsFromFisp(value, evaluator);
+                    if (valueSelectors == null) {
+                        yield null;
+                    }
+                    selectors.addAll(valueSelectors);
+                }
+                yield selectors;
+            }
         };
     }
 }
@@ -5,86 +5,530 @@ import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Runs tasks at no more than a global rate, and within the per-route limits that Discord tells us about.
+ * <p>Each route (e.g. one channel's messages) has its own queue, which runs one task at a time. Different routes run
+ * in parallel. Within a route, tasks are queued in lanes: each lane's tasks happen in order, priority tasks go before
+ * everything else, and the rest take turns by deficit round-robin, so that a lane with weight two gets twice the
+ * turns of a lane with weight one, and a lane with a long backlog doesn't hold up the others. Discord groups routes into buckets which share a limit, and
+ * tells us which bucket a route is in with {@code X-RateLimit-Bucket} - until then, each route is its own bucket.</p>
+ * <p>The global rate is a GCRA: each task has a cost, and we keep the time at which the next task of cost one would
+ * be allowed if we weren't allowing any burst. A dispatcher thread hands ready tasks to the task executor, and
+ * otherwise sleeps until the next permit, the next bucket reset, or the next task being queued.</p>
+ * <p>Optionally, a {@link ConcurrencyLimit} caps how many tasks run at once, finding its own level from how the
+ * tasks say they went.</p>
+ */
 public class RateLimitedExecutor implements Executor, AutoCloseable {
     public static final Logger LOGGER = LoggerFactory.getLogger(RateLimitedExecutor.class);
+    private static final Route DEFAULT_ROUTE = new Route("", "");
+    private static final Metrics.Histogram QUEUE_WAIT = Metrics.histogram("buskymore_queue_wait_seconds", "How long tasks waited to be run", "route");
+    public static final Lane DEFAULT_LANE = new Lane("", 1, false);
 
-    private final ScheduledExecutorService scheduler;
+    private final Thread dispatcher;
     private final Executor taskExecutor;
-    private final ConcurrentLinkedDeque<Runnable> taskQueue = new ConcurrentLinkedDeque<>();
-    private CompletableFuture<Void> lastTask = CompletableFuture.completedFuture(null);
-    private Instant rateLimitedUntil;
-    private TimeWithUnit extraDelay = null;
+    private final long emissionIntervalNanos;
+    private final long burstToleranceNanos;
+    private final ConcurrencyLimit concurrencyLimit;
+    // the GCRA's theoretical arrival time; only the dispatcher touches it
+    private long theoreticalArrival = System.nanoTime();
+    private volatile boolean closed = false;
+    private final Map<Route, RouteQueue> queues = new ConcurrentHashMap<>();
+    // route template -> bucket hash, as discovered from responses
+    private final Map<String, String> bucketsByRoute = new ConcurrentHashMap<>();
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<RouteQueue> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile Instant globallyLimitedUntil;
 
     public RateLimitedExecutor(long maxTasksPer, Duration duration, Executor taskExecutor) {
-        this.scheduler = Executors.newSingleThreadScheduledExecutor();
-        var durationBetweenTasks = duration.dividedBy(maxTasksPer);
-        TimeWithUnit delay = this.getDelay(durationBetweenTasks);
-        this.scheduler.scheduleWithFixedDelay(this::consumeTask, 0, delay.duration(), delay.unit());
+        this(maxTasksPer, duration, 1, taskExecutor);
+    }
+
+    /**
+     * @param burst how many tasks' worth of cost can go at once after being idle
+     */
+    public RateLimitedExecutor(long maxTasksPer, Duration duration, int burst, Executor taskExecutor) {
+        this(maxTasksPer, duration, burst, null, taskExecutor);
+    }
+
+    /**
+     * @param concurrencyLimit how many tasks can run at once, or null for no limit
+     */
+    public RateLimitedExecutor(long maxTasksPer, Duration duration, int burst, ConcurrencyLimit concurrencyLimit, Executor taskExecutor) {
+        if (maxTasksPer <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("maxTasksPer and burst have to be positive");
+        }
+        this.emissionIntervalNanos = duration.toNanos() / maxTasksPer;
+        this.burstToleranceNanos = (burst - 1) * this.emissionIntervalNanos;
         this.taskExecutor = taskExecutor;
+        this.concurrencyLimit = concurrencyLimit;
+        this.dispatcher = Thread.ofPlatform().name("rate-limited-executor").daemon().start(this::dispatch);
     }
 
-    private record TimeWithUnit(long duration, TimeUnit unit) { }
+    /**
+     * A route, like {@code channels/{channel.id}/messages}, with the value of its major parameter (the channel id).
+     * Discord's limits are per bucket and major parameter.
+     */
+    public record Route(String template, String majorParameter) {}
 
-    private TimeWithUnit getDelay(Duration durationBetweenTasks) {
-        long delay;
-        TimeUnit unit;
-        if (durationBetweenTasks.getSeconds() < 1000) {
-            unit = TimeUnit.MILLISECONDS;
-            delay = durationBetweenTasks.toMillis();
-        } else {
-            unit = TimeUnit.SECONDS;
-            delay = durationBetweenTasks.getSeconds();
+    /**
+     * Who a task is for (e.g. which mapping), and how much of a route's turns they should get.
+     *
+     * @param priority whether this task should go ahead of all the non-priority ones, whichever lane they're in
+     */
+    public record Lane(String name, int weight, boolean priority) {
+        public Lane {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Lane weights have to be positive");
+            }
+        }
+    }
+
+    private record Task(Runnable runnable, int cost, Lane lane, long queuedAt, JfrEvents.RateLimitWait waitEvent) {
+        private Task(Runnable runnable, int cost, Lane lane) {
+            this(runnable, cost, lane, System.nanoTime(), new JfrEvents.RateLimitWait());
+            this.waitEvent.begin();
         }
-        return new TimeWithUnit(delay, unit);
     }
 
-    public void updateLimits(int remaining, Duration untilReset) {
-        this.extraDelay = this.getDelay(untilReset.dividedBy(remaining));
+    /**
+     * An AIMD limit on how many tasks run at once. While things go well and we're using most of the limit, it goes up
+     * by one with each task; when a task is rate-limited or fails, it's halved, and when a task is much slower than
+     * usual it's cut a little. It's cut at most once per usual task time, since one overload tends to hit all the
+     * tasks running at once.
+     */
+    public static final class ConcurrencyLimit {
+        private static final double BACKOFF = 0.5;
+        private static final double LATENCY_BACKOFF = 0.9;
+        // a task this many times slower than usual counts as a latency spike
+        private static final double LATENCY_SPIKE = 2.0;
+        // how much each task's latency counts towards the usual latency
+        private static final double LATENCY_SMOOTHING = 0.1;
+        private final int min;
+        private final int max;
+        private double limit;
+        private int inFlight = 0;
+        private double usualLatencyNanos = 0;
+        private long lastDecrease = System.nanoTime();
+
+        public ConcurrencyLimit(int initial, int min, int max) {
+            if (min <= 0 || initial < min || initial > max) {
+                throw new IllegalArgumentException("Concurrency limits need 0 < min <= initial <= max");
+            }
+            this.min = min;
+            this.max = max;
+            this.limit = initial;
+        }
+
+        private synchronized boolean tryAcquire() {
+            if (this.inFlight >= (int) this.limit) {
+                return false;
+            }
+            this.inFlight++;
+            return true;
+        }
+
+        private synchronized void release() {
+            this.inFlight--;
+        }
+
+        /**
+         * Tells the limit how a task went.
+         *
+         * @param overloaded whether the task was rate-limited or failed in a way that suggests we're going too fast
+         */
+        public synchronized void sample(long latencyNanos, boolean overloaded) {
+            boolean spike = this.usualLatencyNanos > 0 && latencyNanos > this.usualLatencyNanos * LATENCY_SPIKE;
+            if (overloaded || spike) {
+                long now = System.nanoTime();
+                if (now - this.lastDecrease >= this.usualLatencyNanos) {
+                    this.lastDecrease = now;
+                    this.limit = Math.max(this.min, this.limit * (overloaded ? BACKOFF : LATENCY_BACKOFF));
+                    LOGGER.debug("Cut concurrency limit to {}", this.limit());
+                }
+            } else if (this.inFlight * 2 >= this.limit) {
+                // only go up if the limit is what's holding us back
+                this.limit = Math.min(this.max, this.limit + 1);
+            }
+            if (!overloaded) {
+                this.usualLatencyNanos = this.usualLatencyNanos == 0 ? latencyNanos : this.usualLatencyNanos + LATENCY_SMOOTHING * (latencyNanos - this.usualLatencyNanos);
+            }
+        }
+
+        public synchronized int limit() {
+            return (int) this.limit;
+        }
+
+        public synchronized int inFlight() {
+            return this.inFlight;
+        }
     }
 
-    public void markRateLimited(Instant until) {
-        this.rateLimitedUntil = until;
+    private static final class LaneQueue {
+        private final Deque<Task> tasks = new ArrayDeque<>();
+        private int weight = 1;
+        private long deficit = 0;
+        // whether this lane has had its quantum for its current turn
+        private boolean inTurn = false;
+        private boolean active = false;
     }
 
-    private void consumeTask() {
-        if (!this.lastTask.isDone()) {
-            return;
+    /**
+     * What we know of one bucket's limit. Until we've heard from Discord, we let one task through at a time.
+     */
+    private static final class Bucket {
+        private int limit = 1;
+        private int remaining = 1;
+        private Instant resetAt = null;
+        // the longest we've been told a reset is away, or null if we've never been told of any limits
+        private Duration window = null;
+
+        /**
+         * @return 0 if we got a permit, otherwise how many nanoseconds until the bucket resets
+         */
+        private synchronized long tryAcquire(Instant now) {
+            if (this.resetAt != null && !now.isBefore(this.resetAt)) {
+                this.remaining = this.limit;
+                this.resetAt = null;
+            }
+            // a new window starts with its first request. The response will tell us when it really resets, but in
+            // case it doesn't, we assume the window is as long as the longest we've seen
+            if (this.resetAt == null && this.window != null) {
+                this.resetAt = now.plus(this.window);
+            }
+            if (this.remaining > 0) {
+                this.remaining--;
+                return 0;
+            }
+            // if we've never been told of any limits, the route's queue still only runs one task at a time
+            return this.resetAt == null ? 0 : Math.max(1, Duration.between(now, this.resetAt).toNanos());
         }
 
-        if (this.rateLimitedUntil != null) {
-            if (Instant.now().isBefore(this.rateLimitedUntil)) {
-                return;
+        private synchronized void update(int limit, int remaining, Duration untilReset) {
+            this.limit = Math.max(limit, 1);
+            this.remaining = remaining;
+            this.resetAt = Instant.now().plus(untilReset);
+            if (this.window == null || untilReset.compareTo(this.window) > 0) {
+                this.window = untilReset;
             }
-            this.rateLimitedUntil = null;
         }
 
-        var task = this.taskQueue.poll();
-        if (task == null) {
-            return;
+        private synchronized boolean isExhausted(Instant now) {
+            return this.remaining <= 0 && this.resetAt != null && now.isBefore(this.resetAt);
+        }
+
+        private synchronized void exhaust(Instant until) {
+            this.remaining = 0;
+            this.resetAt = until;
+        }
+    }
+
+    private final class RouteQueue {
+        private final Route route;
+        // retries keep their place at the very front
+        private final Deque<Task> retries = new ArrayDeque<>();
+        private final Deque<Task> priority = new ArrayDeque<>();
+        private final Map<String, LaneQueue> lanes = new HashMap<>();
+        // lanes with tasks, in the order they take their turns; the first is the one whose turn it is
+        private final Deque<LaneQueue> active = new ArrayDeque<>();
+        // whether we're in the ready queue, or have a task running
+        private boolean scheduled = false;
+
+        private RouteQueue(Route route) {
+            this.route = route;
+        }
+
+        private void add(Task task, boolean first) {
+            RateLimitedExecutor.this.queued.incrementAndGet();
+            boolean wasScheduled;
+            synchronized (this) {
+                if (first) {
+                    this.retries.addFirst(task);
+                } else if (task.lane().priority()) {
+                    this.priority.addLast(task);
+                } else {
+                    var lane = this.lanes.computeIfAbsent(task.lane().name(), $ -> new LaneQueue());
+                    lane.weight = task.lane().weight();
+                    lane.tasks.addLast(task);
+                    if (!lane.active) {
+                        lane.active = true;
+                        this.active.addLast(lane);
+                    }
+                }
+                wasScheduled = this.scheduled;
+                this.scheduled = true;
+            }
+            if (!wasScheduled) {
+                RateLimitedExecutor.this.makeReady(this);
+            }
         }
 
-        LOGGER.info("Running a task, {} tasks left", this.taskQueue.size());
-        this.lastTask = CompletableFuture.runAsync(task, this.taskExecutor);
+        /**
+         * @return the lane whose turn it is, having given it its quantum if it's only just got its turn
+         */
+        private LaneQueue currentLane() {
+            while (true) {
+                var lane = this.active.peekFirst();
+                if (lane == null) {
+                    return null;
+                }
+                if (lane.tasks.isEmpty()) {
+                    // lanes don't save up deficit while they've nothing to send
+                    this.active.pollFirst();
+                    lane.active = false;
+                    lane.inTurn = false;
+                    lane.deficit = 0;
+                    continue;
+                }
+                if (!lane.inTurn) {
+                    lane.inTurn = true;
+                    lane.deficit += lane.weight;
+                }
+                if (lane.deficit >= lane.tasks.peekFirst().cost()) {
+                    return lane;
+                }
+                // its turn is over
+                this.active.pollFirst();
+                lane.inTurn = false;
+                this.active.addLast(lane);
+            }
+        }
 
-        if (this.extraDelay != null) {
-            this.markRateLimited(Instant.now().plus(this.extraDelay.duration(), this.extraDelay.unit().toChronoUnit()));
-            LOGGER.info("We'll hit rate limit if we don't slow down, so waiting {} ms until next task", TimeUnit.MILLISECONDS.convert(this.extraDelay.duration(), this.extraDelay.unit()));
+        private synchronized Task peek() {
+            if (!this.retries.isEmpty()) {
+                return this.retries.peekFirst();
+            }
+            if (!this.priority.isEmpty()) {
+                return this.priority.peekFirst();
+            }
+            var lane = this.currentLane();
+            return lane == null ? null : lane.tasks.peekFirst();
         }
+
+        private synchronized Task poll() {
+            if (!this.retries.isEmpty()) {
+                return this.retries.pollFirst();
+            }
+            if (!this.priority.isEmpty()) {
+                return this.priority.pollFirst();
+            }
+            var lane = this.currentLane();
+            if (lane == null) {
+                return null;
+            }
+            var task = lane.tasks.pollFirst();
+            lane.deficit -= task.cost();
+            return task;
+        }
+
+        private void finished() {
+            synchronized (this) {
+                if (this.retries.isEmpty() && this.priority.isEmpty() && this.currentLane() == null) {
+                    this.scheduled = false;
+                    return;
+                }
+            }
+            RateLimitedExecutor.this.makeReady(this);
+        }
+    }
+
+    private String bucketKey(Route route) {
+        return this.bucketsByRoute.getOrDefault(route.template(), route.template()) + ":" + route.majorParameter();
+    }
+
+    private Bucket bucket(Route route) {
+        return this.buckets.computeIfAbsent(this.bucketKey(route), $ -> new Bucket());
+    }
+
+    /**
+     * Updates a route's bucket from the {@code X-RateLimit-*} headers of a response.
+     */
+    public void updateLimits(Route route, String bucketHash, int limit, int remaining, Duration untilReset) {
+        if (bucketHash != null) {
+            this.bucketsByRoute.put(route.template(), bucketHash);
+        }
+        this.bucket(route).update(limit, remaining, untilReset);
+        LockSupport.unpark(this.dispatcher);
+    }
+
+    /**
+     * Stops tasks for this route's bucket, or for everything if the limit was global, until the given time.
+     */
+    public void markRateLimited(Route route, Instant until, boolean global) {
+        if (global) {
+            this.globallyLimitedUntil = until;
+        } else {
+            this.bucket(route).exhaust(until);
+        }
+    }
+
+    /**
+     * @return whether a task for this route would have to wait for a rate limit to reset before it could run
+     */
+    public boolean isLimited(Route route) {
+        var now = Instant.now();
+        var globallyLimitedUntil = this.globallyLimitedUntil;
+        return (globallyLimitedUntil != null && now.isBefore(globallyLimitedUntil)) || this.bucket(route).isExhausted(now);
+    }
+
+    private void makeReady(RouteQueue queue) {
+        this.ready.add(queue);
+        LockSupport.unpark(this.dispatcher);
+    }
+
+    private void dispatch() {
+        while (!this.closed) {
+            long waitNanos = this.dispatchReady();
+            if (waitNanos == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else if (waitNanos > 0) {
+                LockSupport.parkNanos(this, waitNanos);
+            }
+        }
+    }
+
+    /**
+     * Starts every ready route which has room in its bucket, for as long as there are global permits.
+     *
+     * @return how many nanoseconds until there might be something else to do, or {@link Long#MAX_VALUE} if only a new
+     * task would change anything
+     */
+    private long dispatchReady() {
+        var now = Instant.now();
+        var globallyLimitedUntil = this.globallyLimitedUntil;
+        if (globallyLimitedUntil != null && now.isBefore(globallyLimitedUntil)) {
+            return Duration.between(now, globallyLimitedUntil).toNanos();
+        }
+
+        long nowNanos = System.nanoTime();
+        long nextWake = Long.MAX_VALUE;
+        List<RouteQueue> waiting = new ArrayList<>();
+        for (int i = this.ready.size(); i > 0; i--) {
+            var queue = this.ready.poll();
+            if (queue == null) {
+                break;
+            }
+            var task = queue.peek();
+            if (task == null) {
+                queue.finished();
+                continue;
+            }
+            long permitWait = Math.max(this.theoreticalArrival, nowNanos) + (task.cost() - 1) * this.emissionIntervalNanos - this.burstToleranceNanos - nowNanos;
+            // a task costing more than the burst goes as soon as we're idle, rather than never
+            permitWait = Math.min(permitWait, this.theoreticalArrival - nowNanos);
+            if (permitWait > 0) {
+                // no permits left for anyone, so the rest of the routes wait too
+                waiting.add(queue);
+                nextWake = Math.min(nextWake, permitWait);
+                break;
+            }
+            if (this.concurrencyLimit != null && !this.concurrencyLimit.tryAcquire()) {
+                // nothing else can start until a task finishes, which will wake us up
+                waiting.add(queue);
+                break;
+            }
+            long bucketWait = this.bucket(queue.route).tryAcquire(now);
+            if (bucketWait > 0) {
+                if (this.concurrencyLimit != null) {
+                    this.concurrencyLimit.release();
+                }
+                waiting.add(queue);
+                nextWake = Math.min(nextWake, bucketWait);
+                continue;
+            }
+
+            this.theoreticalArrival = Math.max(this.theoreticalArrival, nowNanos) + task.cost() * this.emissionIntervalNanos;
+            queue.poll();
+            this.queued.decrementAndGet();
+            QUEUE_WAIT.record(nowNanos - task.queuedAt(), queue.route.template());
+            task.waitEvent().end();
+            if (task.waitEvent().shouldCommit()) {
+                task.waitEvent().route = queue.route.template();
+                task.waitEvent().majorParameter = queue.route.majorParameter();
+                task.waitEvent().lane = task.lane().name();
+                task.waitEvent().priority = task.lane().priority();
+                task.waitEvent().commit();
+            }
+            LOGGER.debug("Running a task for {}", queue.route);
+            CompletableFuture.runAsync(task.runnable(), this.taskExecutor).whenComplete(($, e) -> {
+                if (this.concurrencyLimit != null) {
+                    this.concurrencyLimit.release();
+                    LockSupport.unpark(this.dispatcher);
+                }
+                queue.finished();
+            });
+        }
+        // the ones that had to wait go to the back of the line
+        this.ready.addAll(waiting);
+        return nextWake;
+    }
+
+    /**
+     * @return an executor which queues tasks on the given route
+     */
+    public Executor forRoute(Route route) {
+        return this.forRoute(route, 1, DEFAULT_LANE);
+    }
+
+    /**
+     * @return an executor which queues tasks in the given lane of the given route
+     */
+    public Executor forRoute(Route route, Lane lane) {
+        return this.forRoute(route, 1, lane);
+    }
+
+    /**
+     * @return an executor which queues tasks in the given lane of the given route, each using up {@code cost} global
+     * permits and {@code cost} of the lane's turn
+     */
+    public Executor forRoute(Route route, int cost, Lane lane) {
+        return command -> this.queue(route).add(new Task(command, cost, lane), false);
+    }
+
+    private RouteQueue queue(Route route) {
+        return this.queues.computeIfAbsent(route, RouteQueue::new);
+    }
+
+    /**
+     * @return how many tasks are waiting to be run
+     */
+    public int queued() {
+        return this.queued.get();
+    }
+
+    /**
+     * Puts a task back at the very front of its route's queue, e.g. after it got rate-limited, for a task which was
+     * queued with {@link #forRoute(Route)}.
+     */
+    public void retry(Route route, Runnable command) {
+        this.retry(route, 1, DEFAULT_LANE, command);
     }
 
-    public void retry(Runnable command) {
-        this.taskQueue.addFirst(command);
+    /**
+     * Puts a task back at the very front of its route's queue, keeping the cost and lane it was queued with.
+     */
+    public void retry(Route route, int cost, Lane lane, Runnable command) {
+        this.queue(route).add(new Task(command, cost, lane), true);
     }
 
     @Override
     public void execute(Runnable command) {
-        this.taskQueue.add(command);
+        this.forRoute(DEFAULT_ROUTE).execute(command);
     }
 
     @Override
     public void close() {
-        this.scheduler.close();
+        this.closed = true;
+        LockSupport.unpark(this.dispatcher);
     }
 }
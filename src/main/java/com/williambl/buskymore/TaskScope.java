@@ -0,0 +1,220 @@
+package com.williambl.buskymore;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Structured concurrency, for Java 21 without preview features: like {@code StructuredTaskScope}, each subtask runs
+ * on its own virtual thread, and none of them outlive the scope.
+ * <p>Fork subtasks, then {@link #join()} (or {@link #joinUntil(Instant)}) to wait for them, and close the scope -
+ * which cancels anything still running, by interrupting it, and waits for it to stop. A scope which fails fast also
+ * cancels everything as soon as one subtask fails, and {@link #throwIfFailed()} throws that failure.</p>
+ * <p>Only the thread which opened a scope should fork in it, join it or close it. Anything may {@link #shutdown()} it.</p>
+ */
+public final class TaskScope implements AutoCloseable {
+    private final String name;
+    private final boolean failFast;
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = this.lock.newCondition();
+    private int running;
+    private boolean shutdown;
+    private Throwable failure;
+
+    /**
+     * @param name what the subtasks' threads are named after
+     * @param failFast whether one subtask failing cancels the rest
+     */
+    public TaskScope(String name, boolean failFast) {
+        this.name = name;
+        this.failFast = failFast;
+    }
+
+    public enum State { RUNNING, SUCCESS, FAILED, CANCELLED }
+
+    public static final class Subtask<T> implements Supplier<T> {
+        private volatile State state = State.RUNNING;
+        private volatile T result;
+        private volatile Throwable exception;
+
+        private Subtask() {}
+
+        public State state() {
+            return this.state;
+        }
+
+        /**
+         * @throws IllegalStateException if the subtask hasn't succeeded
+         */
+        @Override
+        public T get() {
+            if (this.state != State.SUCCESS) {
+                throw new IllegalStateException("Subtask is %s, not successful".formatted(this.state));
+            }
+            return this.result;
+        }
+
+        /**
+         * @return why the subtask failed, or null if it didn't
+         */
+        public Throwable exception() {
+            return this.exception;
+        }
+    }
+
+    /**
+     * Starts a subtask on a new virtual thread. If the scope has already been shut down, the subtask is cancelled
+     * without running.
+     */
+    public <T> Subtask<T> fork(Callable<? extends T> task) {
+        var subtask = new Subtask<T>();
+        var thread = Thread.ofVirtual().name(this.name).unstarted(() -> this.run(subtask, task));
+        this.lock.lock();
+        try {
+            if (this.shutdown) {
+                subtask.state = State.CANCELLED;
+                return subtask;
+            }
+            this.running++;
+            this.threads.add(thread);
+        } finally {
+            this.lock.unlock();
+        }
+        thread.start();
+        return subtask;
+    }
+
+    private <T> void run(Subtask<T> subtask, Callable<? extends T> task) {
+        try {
+            subtask.result = task.call();
+            subtask.state = State.SUCCESS;
+        } catch (Throwable t) {
+            this.lock.lock();
+            try {
+                // anything which goes wrong once we've been shut down is just the subtask being cancelled
+                if (this.shutdown) {
+                    subtask.state = State.CANCELLED;
+                } else {
+                    subtask.exception = t;
+                    subtask.state = State.FAILED;
+                    if (this.failFast) {
+                        this.failure = t;
+                        this.shutdown();
+                    }
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        } finally {
+            this.threads.remove(Thread.currentThread());
+            this.lock.lock();
+            try {
+                this.running--;
+                this.changed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits until every subtask has finished, or the scope has been shut down.
+     */
+    public TaskScope join() throws InterruptedException {
+        this.lock.lock();
+        try {
+            while (this.running > 0 && !this.shutdown) {
+                this.changed.await();
+            }
+            return this;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #join()}, but if the deadline passes first the scope is shut down, and this throws.
+     */
+    public TaskScope joinUntil(Instant deadline) throws InterruptedException, TimeoutException {
+        this.lock.lock();
+        try {
+            while (this.running > 0 && !this.shutdown) {
+                long nanos = Duration.between(Instant.now(), deadline).toNanos();
+                if (nanos <= 0) {
+                    this.shutdown();
+                    throw new TimeoutException("%s ran out of time".formatted(this.name));
+                }
+                this.changed.awaitNanos(nanos);
+            }
+            return this;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @throws ExecutionException with the first subtask's failure, if this scope fails fast and one has failed
+     */
+    public void throwIfFailed() throws ExecutionException {
+        this.lock.lock();
+        try {
+            if (this.failure != null) {
+                throw new ExecutionException(this.failure);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels every subtask that's still running, by interrupting it, and stops any more from starting.
+     */
+    public void shutdown() {
+        this.lock.lock();
+        try {
+            if (this.shutdown) {
+                return;
+            }
+            this.shutdown = true;
+            for (var thread : this.threads) {
+                thread.interrupt();
+            }
+            this.changed.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public boolean isShutdown() {
+        this.lock.lock();
+        try {
+            return this.shutdown;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Shuts the scope down, and waits for every subtask to stop.
+     */
+    @Override
+    public void close() {
+        this.shutdown();
+        this.lock.lock();
+        try {
+            while (this.running > 0) {
+                this.changed.awaitUninterruptibly();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
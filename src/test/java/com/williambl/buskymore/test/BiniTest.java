@@ -0,0 +1,123 @@
+package com.williambl.buskymore.test;
+
+import com.google.gson.JsonParser;
+import com.williambl.buskymore.Bini;
+import com.williambl.buskymore.BskyPostGetter;
+import com.williambl.buskymore.ConfigCodecs;
+import com.williambl.buskymore.DiscordPostSender;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static com.williambl.buskymore.PostFilter.Fisp.parse;
+
+public class BiniTest {
+    private static final String CONFIG = """
+            token       = abc
+            botOwnerUri = https://example.com
+            botVersion  = 1.0
+            mappings:
+            \t[art]
+            \t\tgetterConfig:
+            \t\t\tuserAgent       = buskymore
+            \t\t\tbacklogDays     = 2
+            \t\t\tmaxBacklogPosts = 10
+            \t\t\tstatePath       = ./art.tsv
+            \t\t\tpostSources:
+            \t\t\t\t[]
+            \t\t\t\t\tuserDid = did:plc:someone
+            \t\t\t\t\tfilter  = is_self_retweet
+            \t\t\t\t[]
+            \t\t\t\t\tuserDid = did:plc:someone
+            \t\t\t\t\tfeedKey = art
+            \t\t\t\t\tfilter  = has_embed
+            \t\tchannelIds:
+            \t\t\t[] 123
+            \t\t\t[] 456
+            \t\twebhookChannels:
+            \t\t\t[art-hooks]
+            \t\t\t\turls:
+            \t\t\t\t\t[] https://discord.com/api/webhooks/1/a
+            \t\t\t\t\t[] https://discord.com/api/webhooks/2/b
+            \t\tbatching:
+            \t\t\tmaxPosts       = 5
+            \t\t\tmaxDelayMillis = 2000
+            definitions:
+            \t[is_art]
+            \t\tbody = all_of (has_embed) (labels_contains art)
+            """;
+
+    @Test
+    public void parsesConfig() {
+        var config = new Bini().parse(DiscordPostSender.Config.class, CONFIG.lines().toList());
+        Assertions.assertEquals("abc", config.token());
+        var mapping = config.mappings().getFirst();
+        Assertions.assertEquals("art", mapping.name());
+        Assertions.assertEquals(List.of("123", "456"), mapping.channelIds());
+        Assertions.assertEquals(List.of(new DiscordPostSender.Config.WebhookChannel("art-hooks", List.of("https://discord.com/api/webhooks/1/a", "https://discord.com/api/webhooks/2/b"), Optional.empty())), mapping.webhookChannels());
+        Assertions.assertEquals(Optional.of(new DiscordPostSender.Config.Batching(5, 2000)), mapping.batching());
+        Assertions.assertEquals(2, mapping.getterConfig().backlogDays());
+        Assertions.assertEquals(List.of(
+                new BskyPostGetter.Config.PostSource.User("did:plc:someone", parse("is_self_retweet")),
+                new BskyPostGetter.Config.PostSource.Feed("did:plc:someone", "art", parse("has_embed"))
+        ), mapping.getterConfig().postSources());
+        Assertions.assertEquals(List.of(new DiscordPostSender.Config.Definition("is_art", parse("all_of (has_embed) (labels_contains art)"))), config.definitions());
+    }
+
+    @Test
+    public void generatedCodecsMatchReflection() {
+        var config = ConfigCodecs.parseBini(CONFIG.lines().toList());
+        Assertions.assertEquals(new Bini().parse(DiscordPostSender.Config.class, CONFIG.lines().toList()), config);
+        var unparsed = ConfigCodecs.unparseBini(config);
+        Assertions.assertTrue(unparsed.contains("type = user") && unparsed.contains("type = feed"), unparsed);
+    }
+
+    @Test
+    public void discriminatorPicksSubtype() {
+        // without the discriminator this would be a feed, since it has all of a feed's fields
+        var lines = List.of("type = user", "userDid = did:plc:someone", "feedKey = art", "filter = has_embed");
+        var expected = new BskyPostGetter.Config.PostSource.User("did:plc:someone", parse("has_embed"));
+        Assertions.assertEquals(expected, ConfigCodecs.parseBskyPostGetterConfigPostSource(Bini.tokenise(lines), null));
+        Assertions.assertEquals(expected, new Bini().parse(BskyPostGetter.Config.PostSource.class, lines));
+        Assertions.assertEquals(expected, ConfigCodecs.readBskyPostGetterConfigPostSource(JsonParser.parseString("""
+                {"type": "user", "userDid": "did:plc:someone", "feedKey": "art", "filter": ["has_embed"]}""")));
+        Assertions.assertInstanceOf(BskyPostGetter.Config.PostSource.Feed.class, ConfigCodecs.readBskyPostGetterConfigPostSource(JsonParser.parseString("""
+                {"userDid": "did:plc:someone", "feedKey": "art", "filter": ["has_embed"]}""")));
+    }
+
+    @Test
+    public void missingFieldsAreReported() {
+        var lines = List.of("token = abc", "botVersion = 1.0");
+        var e = Assertions.assertThrows(IllegalArgumentException.class, () -> new Bini().parse(DiscordPostSender.Config.class, lines));
+        Assertions.assertTrue(e.getMessage().contains("botOwnerUri"), e.getMessage());
+        e = Assertions.assertThrows(IllegalArgumentException.class, () -> ConfigCodecs.parseBini(lines));
+        Assertions.assertTrue(e.getMessage().contains("botOwnerUri"), e.getMessage());
+    }
+
+    @Test
+    public void parsesLargeConfigs() {
+        List<String> lines = new ArrayList<>(List.of("token = abc", "botOwnerUri = https://example.com", "botVersion = 1.0", "mappings:"));
+        for (int i = 0; i < 5000; i++) {
+            lines.add("\t[mapping" + i + "]");
+            lines.add("\t\tgetterConfig:");
+            lines.add("\t\t\tuserAgent = buskymore");
+            lines.add("\t\t\tbacklogDays = 2");
+            lines.add("\t\t\tmaxBacklogPosts = 10");
+            lines.add("\t\t\tstatePath = ./state" + i + ".tsv");
+            lines.add("\t\t\tpostSources:");
+            lines.add("\t\t\t\t[]");
+            lines.add("\t\t\t\t\tuserDid = did:plc:" + i);
+            lines.add("\t\t\t\t\tfilter = has_embed");
+            lines.add("\t\tchannelIds:");
+            lines.add("\t\t\t[] " + i);
+        }
+        var config = new Bini().parse(DiscordPostSender.Config.class, lines);
+        Assertions.assertEquals(5000, config.mappings().size());
+        Assertions.assertEquals(config, ConfigCodecs.parseBini(lines));
+        Assertions.assertEquals(Optional.empty(), config.mappings().getFirst().batching());
+        Assertions.assertEquals("did:plc:4999", ((BskyPostGetter.Config.PostSource.User) config.mappings().getLast().getterConfig().postSources().getFirst()).userDid());
+    }
+}
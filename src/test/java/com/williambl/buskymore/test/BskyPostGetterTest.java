@@ -0,0 +1,233 @@
+package com.williambl.buskymore.test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpServer;
+import com.williambl.buskymore.BskyPostGetter;
+import com.williambl.buskymore.Post;
+import com.williambl.buskymore.PostFilter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BskyPostGetterTest {
+    private static final String DID = "did:plc:someone";
+
+    /**
+     * Serves a page of posts, after waiting a while.
+     */
+    private static HttpServer bluesky(int posts, Duration delay) throws IOException {
+        return bluesky(delay, Map.of("", page(0, posts, null)));
+    }
+
+    /**
+     * @return a page of posts numbered from {@code from} to {@code to}, where higher numbers are newer
+     */
+    private static byte[] page(int from, int to, String cursor) {
+        var feed = new JsonArray();
+        for (int i = from; i < to; i++) {
+            var record = new JsonObject();
+            record.addProperty("$type", "app.bsky.feed.post");
+            record.addProperty("text", "post " + i);
+            record.addProperty("createdAt", Instant.now().minusSeconds(600 - i).toString());
+            var author = new JsonObject();
+            author.addProperty("did", DID);
+            var post = new JsonObject();
+            post.addProperty("uri", "at://%s/app.bsky.feed.post/%d".formatted(DID, i));
+            post.add("author", author);
+            post.add("record", record);
+            var item = new JsonObject();
+            item.add("post", post);
+            feed.add(item);
+        }
+        var page = new JsonObject();
+        page.add("feed", feed);
+        if (cursor != null) {
+            page.addProperty("cursor", cursor);
+        }
+        return page.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serves pages of posts by the cursor they're asked for with, after waiting a while. The first page is {@code ""}.
+     */
+    private static HttpServer bluesky(Duration delay, Map<String, byte[]> pages) throws IOException {
+        var server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/xrpc/", exchange -> {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            var cursor = Arrays.stream(exchange.getRequestURI().getQuery().split("&"))
+                    .filter(param -> param.startsWith("cursor="))
+                    .map(param -> param.substring("cursor=".length()))
+                    .findFirst().orElse("");
+            byte[] body = pages.get(cursor);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        return server;
+    }
+
+    private static BskyPostGetter.Config config(HttpServer server, Path directory) {
+        return new BskyPostGetter.Config("test", 1, 1000, directory.resolve("state").toString(),
+                List.of(new BskyPostGetter.Config.PostSource.User(DID, PostFilter.Fisp.parse("not (has_embed)"))),
+                Optional.of("http://127.0.0.1:" + server.getAddress().getPort()), Optional.of(1L));
+    }
+
+    @Test
+    public void slowSubscribersDontTimeSourcesOut(@TempDir Path directory) throws IOException, InterruptedException, ExecutionException {
+        PostFilter.bootstrap();
+        var server = bluesky(150, Duration.ZERO);
+        var received = new AtomicInteger();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var getter = new BskyPostGetter(config(server, directory), PostFilter.FUNCTIONS, executor);
+            // takes longer than the timeout to get through every post, as it would while Discord is rate limiting us, and
+            // there are more posts than fit in the publisher's buffer, so fetching has to wait for it
+            var state = getter.stream(new BskyPostGetter.State(Map.of()), new Flow.Subscriber<Post>() {
+                private Flow.Subscription subscription;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(Post item) {
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    received.incrementAndGet();
+                    this.subscription.request(1);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {}
+
+                @Override
+                public void onComplete() {}
+            });
+            Assertions.assertTrue(state.latestPostTimestamps().containsKey(DID));
+        } finally {
+            server.stop(0);
+        }
+        Assertions.assertEquals(150, received.get());
+    }
+
+    @Test
+    public void slowRequestsTimeSourcesOut(@TempDir Path directory) throws IOException {
+        PostFilter.bootstrap();
+        var server = bluesky(1, Duration.ofSeconds(5));
+        long start = System.nanoTime();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var getter = new BskyPostGetter(config(server, directory), PostFilter.FUNCTIONS, executor);
+            var e = Assertions.assertThrows(ExecutionException.class, () -> getter.run(new BskyPostGetter.State(Map.of())));
+            Assertions.assertInstanceOf(TimeoutException.class, e.getCause());
+        } finally {
+            server.stop(0);
+        }
+        Assertions.assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(4)) < 0);
+    }
+
+    /**
+     * Keeps every post it's given, asking for one at a time - or for everything, once {@code released} is.
+     */
+    private static Flow.Subscriber<Post> subscriber(List<Post> received, CountDownLatch released) {
+        return new Flow.Subscriber<>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(Post item) {
+                received.add(item);
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                this.subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {}
+
+            @Override
+            public void onComplete() {}
+        };
+    }
+
+    @Test
+    public void streamedBacklogsAreOldestFirst(@TempDir Path directory) throws IOException, InterruptedException, ExecutionException {
+        PostFilter.bootstrap();
+        // newest first, like Bluesky
+        var server = bluesky(Duration.ZERO, Map.of("", page(200, 300, "b"), "b", page(100, 200, "c"), "c", page(0, 100, null)));
+        List<Post> received = Collections.synchronizedList(new ArrayList<>());
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var getter = new BskyPostGetter(config(server, directory), PostFilter.FUNCTIONS, executor);
+            getter.stream(new BskyPostGetter.State(Map.of()), subscriber(received, new CountDownLatch(0)));
+        } finally {
+            server.stop(0);
+        }
+        Assertions.assertEquals(300, received.size());
+        Assertions.assertEquals(received.stream().sorted(Comparator.comparing(Post::createdAt)).toList(), received);
+    }
+
+    @Test
+    public void streamingWaitsForTheSubscriber(@TempDir Path directory) throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        PostFilter.bootstrap();
+        var server = bluesky(150, Duration.ZERO);
+        List<Post> received = Collections.synchronizedList(new ArrayList<>());
+        var released = new CountDownLatch(1);
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var getter = new BskyPostGetter(config(server, directory), PostFilter.FUNCTIONS, executor);
+            Future<BskyPostGetter.State> state = executor.submit(() -> getter.stream(new BskyPostGetter.State(Map.of()), subscriber(received, released)));
+            // the subscriber is stuck on its first post, and the rest don't fit in the publisher's buffer
+            Assertions.assertThrows(TimeoutException.class, () -> state.get(1, TimeUnit.SECONDS));
+            Assertions.assertEquals(1, received.size());
+            released.countDown();
+            Assertions.assertTrue(state.get(10, TimeUnit.SECONDS).latestPostTimestamps().containsKey(DID));
+        } finally {
+            server.stop(0);
+        }
+        // stream returns once everything has been published, which might not have all been received yet
+        for (int i = 0; i < 100 && received.size() < 150; i++) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(150, received.size());
+    }
+}
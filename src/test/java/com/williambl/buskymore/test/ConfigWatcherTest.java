@@ -0,0 +1,50 @@
+package com.williambl.buskymore.test;
+
+import com.williambl.buskymore.ConfigCodecs;
+import com.williambl.buskymore.ConfigWatcher;
+import com.williambl.buskymore.DiscordPostSender;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class ConfigWatcherTest {
+    private static DiscordPostSender.Config config(String token) {
+        return new DiscordPostSender.Config(token, "https://example.com", "test", List.of(), List.of(),
+                Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty());
+    }
+
+    private static void write(Path path, DiscordPostSender.Config config) throws IOException {
+        Files.writeString(path, ConfigCodecs.unparseBini(config));
+    }
+
+    @Test
+    public void brokenConfigsAreIgnored(@TempDir Path directory) throws IOException, InterruptedException {
+        var path = directory.resolve("config.bini");
+        write(path, config("first"));
+        BlockingQueue<DiscordPostSender.Config> changes = new LinkedBlockingQueue<>();
+        try (var watcher = new ConfigWatcher(path, config("first"), changes::add)) {
+            watcher.start();
+            write(path, config("second"));
+            Assertions.assertEquals(config("second"), changes.poll(10, TimeUnit.SECONDS));
+
+            // half-saved, so missing most of what it needs
+            Files.writeString(path, "token = third\n");
+            Assertions.assertNull(changes.poll(1, TimeUnit.SECONDS));
+
+            // the second config is still the one in use, so saving it again isn't a change
+            write(path, config("second"));
+            Assertions.assertNull(changes.poll(1, TimeUnit.SECONDS));
+            write(path, config("fourth"));
+            Assertions.assertEquals(config("fourth"), changes.poll(10, TimeUnit.SECONDS));
+        }
+    }
+}
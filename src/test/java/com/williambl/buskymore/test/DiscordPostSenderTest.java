@@ -0,0 +1,241 @@
+package com.williambl.buskymore.test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import com.williambl.buskymore.BskyPostGetter;
+import com.williambl.buskymore.DiscordPostSender;
+import com.williambl.buskymore.Metrics;
+import com.williambl.buskymore.Outbox;
+import com.williambl.buskymore.PostFilter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DiscordPostSenderTest {
+    private static DiscordPostSender.Config.Mapping mapping(String channelId, Path directory) {
+        var getterConfig = new BskyPostGetter.Config("test", 1, 1, directory.resolve(channelId + ".state").toString(), List.of(), Optional.empty(), Optional.empty());
+        return new DiscordPostSender.Config.Mapping(channelId, getterConfig, List.of(channelId), Optional.empty(), List.of(), Optional.empty(), Optional.empty(), Optional.empty());
+    }
+
+    @Test
+    public void failedSendsStayInTheOutbox(@TempDir Path directory) throws IOException {
+        PostFilter.bootstrap();
+        var server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/api/channels/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            var channelId = exchange.getRequestURI().getPath().split("/")[3];
+            switch (channelId) {
+                case "broken" -> exchange.sendResponseHeaders(500, -1);
+                case "limited" -> {
+                    // never lets up, so we give up retrying
+                    exchange.getResponseHeaders().add("Retry-After", "0.01");
+                    exchange.sendResponseHeaders(429, -1);
+                }
+                default -> exchange.sendResponseHeaders(204, -1);
+            }
+            exchange.close();
+        });
+        server.start();
+
+        var outboxPath = directory.resolve("outbox");
+        List<Outbox.Entry> entries;
+        try (var outbox = new Outbox(outboxPath)) {
+            entries = List.of(
+                    outbox.append("fine", List.of(URI.create("at://did:plc:someone/app.bsky.feed.post/1"))).getFirst(),
+                    outbox.append("broken", List.of(URI.create("at://did:plc:someone/app.bsky.feed.post/2"))).getFirst(),
+                    outbox.append("limited", List.of(URI.create("at://did:plc:someone/app.bsky.feed.post/3"))).getFirst());
+        }
+
+        var config = new DiscordPostSender.Config("token", "https://example.com", "test",
+                List.of(mapping("fine", directory), mapping("broken", directory), mapping("limited", directory)), List.of(),
+                Optional.of(outboxPath.toString()), Optional.empty(), Optional.empty(),
+                Optional.of("http://127.0.0.1:" + server.getAddress().getPort() + "/api"), Optional.empty());
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var sender = new DiscordPostSender(config, executor);
+            Assertions.assertThrows(CompletionException.class, () -> sender.replayOutbox().orTimeout(30, TimeUnit.SECONDS).join());
+            sender.stop();
+        } finally {
+            server.stop(0);
+        }
+
+        try (var outbox = new Outbox(outboxPath)) {
+            Assertions.assertEquals(entries.subList(1, 3), outbox.pending());
+        }
+    }
+
+    @Test
+    public void batchedPostsShareMessages(@TempDir Path directory) throws IOException {
+        PostFilter.bootstrap();
+        var server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        List<String> messages = Collections.synchronizedList(new ArrayList<>());
+        server.createContext("/api/channels/", exchange -> {
+            var body = JsonParser.parseString(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            messages.add(body.getAsJsonObject().get("content").getAsString());
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+
+        var outboxPath = directory.resolve("outbox");
+        try (var outbox = new Outbox(outboxPath)) {
+            List<URI> posts = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                posts.add(URI.create("at://did:plc:someone/app.bsky.feed.post/" + i));
+            }
+            outbox.append("batched", posts);
+        }
+
+        var unbatched = mapping("batched", directory);
+        // a batch of ten goes as soon as it's full, as two messages of five (discord's embed limit), and the two left
+        // over go once they've waited long enough
+        var batching = new DiscordPostSender.Config.Batching(10, 300);
+        var mapping = new DiscordPostSender.Config.Mapping(unbatched.name(), unbatched.getterConfig(), unbatched.channelIds(), Optional.empty(), List.of(), Optional.of(batching), Optional.empty(), Optional.empty());
+        var config = new DiscordPostSender.Config("token", "https://example.com", "test", List.of(mapping), List.of(),
+                Optional.of(outboxPath.toString()), Optional.empty(), Optional.empty(),
+                Optional.of("http://127.0.0.1:" + server.getAddress().getPort() + "/api"), Optional.empty());
+        long start = System.nanoTime();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var sender = new DiscordPostSender(config, executor);
+            sender.replayOutbox().orTimeout(30, TimeUnit.SECONDS).join();
+            sender.stop();
+        } finally {
+            server.stop(0);
+        }
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 300);
+
+        Assertions.assertEquals(3, messages.size(), messages::toString);
+        Assertions.assertEquals(List.of(5L, 5L, 2L), messages.stream().map(m -> m.lines().count() - 1).sorted(Collections.reverseOrder()).toList(), messages::toString);
+        for (var message : messages) {
+            Assertions.assertEquals(1, message.split("@everyone", -1).length - 1, message);
+        }
+    }
+
+    @Test
+    public void failedSendsAreTriedAgainNextCycle(@TempDir Path directory) throws IOException, InterruptedException {
+        PostFilter.bootstrap();
+        var server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        var attempts = new AtomicInteger();
+        server.createContext("/api/channels/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            // only fails the first time
+            exchange.sendResponseHeaders(attempts.getAndIncrement() == 0 ? 500 : 204, -1);
+            exchange.close();
+        });
+        server.start();
+
+        var outboxPath = directory.resolve("outbox");
+        try (var outbox = new Outbox(outboxPath)) {
+            outbox.append("flaky", List.of(URI.create("at://did:plc:someone/app.bsky.feed.post/1")));
+        }
+
+        var config = new DiscordPostSender.Config("token", "https://example.com", "test",
+                List.of(mapping("flaky", directory)), List.of(),
+                Optional.of(outboxPath.toString()), Optional.empty(), Optional.empty(),
+                Optional.of("http://127.0.0.1:" + server.getAddress().getPort() + "/api"), Optional.empty());
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var sender = new DiscordPostSender(config, executor);
+            Assertions.assertThrows(CompletionException.class, () -> sender.replayOutbox().orTimeout(30, TimeUnit.SECONDS).join());
+            sender.run();
+            sender.stop();
+        } finally {
+            server.stop(0);
+        }
+
+        Assertions.assertEquals(2, attempts.get());
+        try (var outbox = new Outbox(outboxPath)) {
+            Assertions.assertEquals(List.of(), outbox.pending());
+        }
+    }
+
+    @Test
+    public void sentPostsHaveEachStageRecorded(@TempDir Path directory) throws IOException, InterruptedException {
+        PostFilter.bootstrap();
+        var record = new JsonObject();
+        record.addProperty("$type", "app.bsky.feed.post");
+        record.addProperty("text", "hello");
+        record.addProperty("createdAt", Instant.now().minusSeconds(60).toString());
+        var author = new JsonObject();
+        author.addProperty("did", "did:plc:someone");
+        var post = new JsonObject();
+        post.addProperty("uri", "at://did:plc:someone/app.bsky.feed.post/1");
+        post.add("author", author);
+        post.add("record", record);
+        var item = new JsonObject();
+        item.add("post", post);
+        var feed = new JsonArray();
+        feed.add(item);
+        var page = new JsonObject();
+        page.add("feed", feed);
+        byte[] body = page.toString().getBytes(StandardCharsets.UTF_8);
+
+        var server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/xrpc/", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.createContext("/api/channels/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+
+        var serverUri = "http://127.0.0.1:" + server.getAddress().getPort();
+        List<DiscordPostSender.Config.Mapping> mappings = new ArrayList<>();
+        for (var streaming : List.of(false, true)) {
+            var name = streaming ? "traced-streaming" : "traced";
+            var getterConfig = new BskyPostGetter.Config("test", 1, 1000, directory.resolve(name + ".state").toString(),
+                    List.of(new BskyPostGetter.Config.PostSource.User("did:plc:someone", PostFilter.Fisp.parse("not (has_embed)"))),
+                    Optional.of(serverUri), Optional.empty());
+            mappings.add(new DiscordPostSender.Config.Mapping(name, getterConfig, List.of("123"), Optional.empty(), List.of(), Optional.empty(), Optional.of(streaming), Optional.empty()));
+        }
+        var config = new DiscordPostSender.Config("token", "https://example.com", "test", mappings, List.of(),
+                Optional.empty(), Optional.empty(), Optional.empty(), Optional.of(serverUri + "/api"), Optional.empty());
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var sender = new DiscordPostSender(config, executor);
+            sender.run();
+            sender.stop();
+        } finally {
+            server.stop(0);
+        }
+
+        var scraped = Metrics.scrape();
+        for (var mapping : mappings) {
+            double previous = 0;
+            for (var stage : List.of("seen", "filtered", "enqueued", "sent")) {
+                var labels = "{mapping=\"%s\",stage=\"%s\"}".formatted(mapping.name(), stage);
+                Assertions.assertTrue(scraped.contains("buskymore_post_latency_seconds_count" + labels + " 1\n"), scraped);
+                // each stage comes after the one before it, and all of them after the post was made
+                var sum = scraped.lines()
+                        .filter(line -> line.startsWith("buskymore_post_latency_seconds_sum" + labels))
+                        .mapToDouble(line -> Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1)))
+                        .findFirst().orElseThrow();
+                Assertions.assertTrue(sum >= 60 && sum >= previous, scraped);
+                previous = sum;
+            }
+        }
+    }
+}
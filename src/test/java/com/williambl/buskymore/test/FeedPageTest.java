@@ -0,0 +1,35 @@
+package com.williambl.buskymore.test;
+
+import com.google.gson.JsonParseException;
+import com.williambl.buskymore.BskyPostGetter;
+import com.williambl.buskymore.FeedPage;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+public class FeedPageTest {
+    private static final String ITEM = """
+            {"post": {"uri": "at://did:plc:someone/app.bsky.feed.post/1", "author": {"did": "did:plc:someone"},
+              "record": {"$type": "app.bsky.feed.post", "text": "brackets ] } and \\"quotes\\" [", "createdAt": "2024-01-01T00:00:00Z"}}}""";
+
+    @Test
+    public void itemsKeepTheirText() {
+        var page = FeedPage.parse("""
+                {"feed": [%s, {"post": null}], "extra": [1, {"a": "]"}], "cursor": "next\\u0021"}""".formatted(ITEM));
+        Assertions.assertEquals(List.of(ITEM, "{\"post\": null}"), page.items());
+        Assertions.assertEquals("next!", page.cursor());
+        var post = BskyPostGetter.parsePost(page.items().getFirst());
+        Assertions.assertSame(page.items().getFirst(), post.json());
+        Assertions.assertEquals("brackets ] } and \"quotes\" [", post.text());
+        Assertions.assertNull(BskyPostGetter.parsePost(page.items().get(1)));
+    }
+
+    @Test
+    public void pagesWithoutFeeds() {
+        Assertions.assertEquals(new FeedPage(null, null), FeedPage.parse("{\"error\": \"InvalidRequest\"}"));
+        Assertions.assertEquals(new FeedPage(null, List.of()), FeedPage.parse(" { \"feed\" : [ ] } "));
+        Assertions.assertThrows(JsonParseException.class, () -> FeedPage.parse("[]"));
+        Assertions.assertThrows(JsonParseException.class, () -> FeedPage.parse("{\"feed\": [{\"a\": 1}"));
+    }
+}
@@ -0,0 +1,51 @@
+package com.williambl.buskymore.test;
+
+import com.williambl.buskymore.RateLimitedExecutor;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class JfrEventsTest {
+    private static List<RecordedEvent> record(Path file, boolean enable) throws IOException {
+        try (var recording = new Recording()) {
+            if (enable) {
+                recording.enable("buskymore.RateLimitWait").withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            try (var taskExecutor = Executors.newVirtualThreadPerTaskExecutor();
+                 var executor = new RateLimitedExecutor(1000, Duration.ofSeconds(1), taskExecutor)) {
+                var route = new RateLimitedExecutor.Route("channels/{channel.id}/messages", "123");
+                var lane = new RateLimitedExecutor.Lane("art", 1, true);
+                CompletableFuture.runAsync(() -> {}, executor.forRoute(route, lane)).orTimeout(5, TimeUnit.SECONDS).join();
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+        return RecordingFile.readAllEvents(file).stream()
+                .filter(e -> e.getEventType().getName().equals("buskymore.RateLimitWait"))
+                .toList();
+    }
+
+    @Test
+    public void rateLimitWaitsAreRecordedWhenEnabled(@TempDir Path directory) throws IOException {
+        Assertions.assertEquals(List.of(), record(directory.resolve("off.jfr"), false));
+        var events = record(directory.resolve("on.jfr"), true);
+        Assertions.assertEquals(1, events.size());
+        var event = events.getFirst();
+        Assertions.assertEquals("channels/{channel.id}/messages", event.getString("route"));
+        Assertions.assertEquals("123", event.getString("majorParameter"));
+        Assertions.assertEquals("art", event.getString("lane"));
+        Assertions.assertTrue(event.getBoolean("priority"));
+    }
+}
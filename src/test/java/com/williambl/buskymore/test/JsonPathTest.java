@@ -2,12 +2,19 @@ package com.williambl.buskymore.test;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
 import com.williambl.buskymore.JsonPath;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 import static com.williambl.buskymore.JsonPath.*;
 
@@ -96,4 +103,172 @@ public class JsonPathTest {
             Assertions.assertEquals(expected, path.select(STORE_JSON).toList());
         }
     }
+
+    @Test
+    public void lastBook() {
+        JsonArray booksArray = STORE_JSON.getAsJsonObject().getAsJsonObject("store").getAsJsonArray("book");
+        List<JsonElement> expected = List.of(booksArray.get(3));
+        {
+            JsonPath path = of(dot("store"), dot("book"), dot(-1));
+            Assertions.assertEquals(expected, path.select(STORE_JSON).toList());
+        }
+        {
+            JsonPath path = of(dot("store"), dot("book"), dot(slice(-1, null)));
+            Assertions.assertEquals(expected, path.select(STORE_JSON).toList());
+        }
+    }
+
+    @Test
+    public void compiledIntoReusableBuffer() {
+        var compiled = of(dot("store"), dot("bicycle"), dot("color")).compile();
+        List<JsonElement> out = new ArrayList<>();
+        compiled.select(STORE_JSON, out);
+        compiled.select(STORE_JSON, out);
+        Assertions.assertEquals(List.of("red", "red"), out.stream().map(JsonElement::getAsString).toList());
+    }
+
+    @Test
+    public void pathsAreOnlyCompiledOnce() {
+        var path = JsonPath.parse("$.store.book[*].author");
+        Assertions.assertSame(path.compile(), path.compile());
+    }
+
+    @Test
+    public void deepDocumentsDontOverflow() {
+        JsonElement deep = new JsonPrimitive("bottom");
+        for (int i = 0; i < 100_000; i++) {
+            var obj = new JsonObject();
+            obj.add("a", deep);
+            deep = obj;
+        }
+        JsonPath path = of(dotdot(all()));
+        Assertions.assertEquals(100_000, path.select(deep).count());
+    }
+
+    @Test
+    public void streamingMatchesTree() throws IOException {
+        List<JsonPath> paths = List.of(
+                of(dot("store"), dot("book"), dot(all()), dot("author")),
+                of(dotdot(name("author"))),
+                of(dot("store"), dotdot(name("price"))),
+                of(dotdot(name("book")), dot(idx(0), idx(1))),
+                of(dotdot(name("book")), dot(slice(1, null, 2))),
+                of(dot("store"), dot("book"), dot(-1), dot("title")),
+                of(dot("store"), dot("nothing"))
+        );
+        String json = STORE_JSON.toString();
+        for (var path : paths) {
+            List<JsonElement> out = new ArrayList<>();
+            try (var reader = new JsonReader(new StringReader(json))) {
+                path.compile().select(reader, out);
+            }
+            Assertions.assertEquals(path.select(STORE_JSON).toList(), out, path.toString());
+        }
+    }
+
+    @Test
+    public void streamingKeepsSelectorOrderAndDuplicates() throws IOException {
+        var json = "{\"a\": [10, 20], \"b\": {\"c\": 30}}";
+        var document = JsonParser.parseString(json);
+        var expected = List.of(
+                List.of(20, 10),
+                List.of(10, 10),
+                List.of(10, 20, 10),
+                List.of(10, 20, 10)
+        );
+        var queries = List.of("$.a[1,0]", "$.a[0,0]", "$.a[*,0]", "$.a[0,1,0]");
+        for (int i = 0; i < queries.size(); i++) {
+            var path = JsonPath.parse(queries.get(i));
+            Assertions.assertEquals(expected.get(i), path.select(document).map(JsonElement::getAsInt).toList(), queries.get(i));
+            List<JsonElement> out = new ArrayList<>();
+            try (var reader = new JsonReader(new StringReader(json))) {
+                path.compile().select(reader, out);
+            }
+            Assertions.assertEquals(expected.get(i), out.stream().map(JsonElement::getAsInt).toList(), queries.get(i));
+        }
+        var descendants = JsonPath.parse("$..*");
+        List<JsonElement> out = new ArrayList<>();
+        try (var reader = new JsonReader(new StringReader(json))) {
+            descendants.compile().select(reader, out);
+        }
+        Assertions.assertEquals(descendants.select(document).toList(), out);
+    }
+
+    @Test
+    public void pathSetSelectsEveryPathInOneWalk() throws IOException {
+        List<JsonPath> paths = List.of(
+                of(dot("store"), dot("book"), dot(all()), dot("author")),
+                of(dot("store"), dot("book"), dot(all()), dot("title")),
+                of(dot("store"), dot("book")),
+                of(dot("store"), dotdot(name("price"))),
+                of(dot("store"), dot("book"), dot(-1), dot("title")),
+                of()
+        );
+        var pathSet = JsonPath.compileAll(paths);
+        List<List<JsonElement>> expected = paths.stream().map(p -> p.select(STORE_JSON).toList()).toList();
+        Assertions.assertEquals(expected, pathSet.select(STORE_JSON));
+        try (var reader = new JsonReader(new StringReader(STORE_JSON.toString()))) {
+            Assertions.assertEquals(expected, pathSet.select(reader));
+        }
+    }
+
+    @Test
+    public void parsedQueriesMatchBuiltOnes() {
+        Assertions.assertEquals(of(dot("store"), dot("book"), dot(all()), dot("author")), JsonPath.parse("$.store.book[*].author"));
+        Assertions.assertEquals(of(dotdot(name("author"))), JsonPath.parse("$..author"));
+        Assertions.assertEquals(of(dot("store"), dotdot(name("price"))), JsonPath.parse("$['store']..price"));
+        Assertions.assertEquals(of(dotdot(name("book")), dot(idx(0), idx(1))), JsonPath.parse("$..book[0, 1]"));
+        Assertions.assertEquals(of(dotdot(name("book")), dot(slice(null, 2))), JsonPath.parse("$..book[:2]"));
+        Assertions.assertEquals(of(dotdot(name("book")), dot(slice(-1, null))), JsonPath.parse("$..book[-1:]"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> JsonPath.parse("$.store["));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> JsonPath.parse("$..book[?@.* == 1]"));
+    }
+
+    @Test
+    public void booksWithIsbn() {
+        JsonPath path = JsonPath.parse("$..book[?@.isbn].title");
+        Assertions.assertEquals(List.of("Moby Dick", "The Lord of the Rings"), path.select(STORE_JSON).map(JsonElement::getAsString).toList());
+    }
+
+    @Test
+    public void booksCheaperThan10() {
+        JsonPath path = JsonPath.parse("$..book[?@.price < 10].title");
+        Assertions.assertEquals(List.of("Sayings of the Century", "Moby Dick"), path.select(STORE_JSON).map(JsonElement::getAsString).toList());
+    }
+
+    @Test
+    public void filterFunctionsAndLogic() {
+        Assertions.assertEquals(List.of("Sword of Honour"), JsonPath.parse("$.store.book[?@.category == 'fiction' && !@.isbn].title").select(STORE_JSON).map(JsonElement::getAsString).toList());
+        Assertions.assertEquals(List.of("Nigel Rees", "J. R. R. Tolkien"), JsonPath.parse("$.store.book[?search(@.author, '[RT]') || @.price > 20].author").select(STORE_JSON).map(JsonElement::getAsString).toList());
+        Assertions.assertEquals(List.of("Moby Dick"), JsonPath.parse("$.store.book[?match(@.title, 'Moby.*')].title").select(STORE_JSON).map(JsonElement::getAsString).toList());
+        Assertions.assertEquals(List.of("Moby Dick"), JsonPath.parse("$.store.book[?length(@.title) == 9].title").select(STORE_JSON).map(JsonElement::getAsString).toList());
+        Assertions.assertEquals(List.of("red"), JsonPath.parse("$.store[?count(@.*) == 2].color").select(STORE_JSON).map(JsonElement::getAsString).toList());
+        Assertions.assertEquals(3, JsonPath.parse("$.store.book[?@.price < $.store.bicycle.price]").select(STORE_JSON).count());
+    }
+
+    @Test
+    public void streamingFilters() throws IOException {
+        var paths = List.of(
+                JsonPath.parse("$..book[?@.isbn].title"),
+                JsonPath.parse("$.store.book[?@.price < $.store.bicycle.price].title"),
+                JsonPath.parse("$.store.bicycle.color")
+        );
+        var pathSet = JsonPath.compileAll(paths);
+        List<List<JsonElement>> expected = paths.stream().map(p -> p.select(STORE_JSON).toList()).toList();
+        try (var reader = new JsonReader(new StringReader(STORE_JSON.toString()))) {
+            Assertions.assertEquals(expected, pathSet.select(reader));
+        }
+    }
+
+    @Test
+    public void segmentsAndSelectorsAreGivenTheRoot() {
+        var path = JsonPath.parse("$.store.book[?@.price < $.store.bicycle.price].title");
+        var books = STORE_JSON.getAsJsonObject().getAsJsonObject("store").get("book");
+        var filter = path.segments().get(2);
+        Assertions.assertEquals(3, filter.select(STORE_JSON, Stream.of(books)).count());
+        Assertions.assertEquals(3, filter.selectors().getFirst().select(STORE_JSON, books).count());
+        Assertions.assertThrows(IllegalStateException.class, () -> filter.select(Stream.of(books)));
+        Assertions.assertThrows(IllegalStateException.class, () -> filter.selectors().getFirst().select(books));
+        Assertions.assertEquals(2, JsonPath.parse("$[?@.isbn]").segments().getFirst().select(Stream.of(books)).count());
+    }
 }
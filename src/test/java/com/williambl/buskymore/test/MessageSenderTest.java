@@ -0,0 +1,238 @@
+package com.williambl.buskymore.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.williambl.buskymore.DiscordHttp;
+import com.williambl.buskymore.MessageSender;
+import com.williambl.buskymore.RateLimitedExecutor;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MessageSenderTest {
+    private static HttpServer server() throws IOException {
+        var server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        return server;
+    }
+
+    private static String url(HttpServer server, String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String... headers) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        for (int i = 0; i < headers.length; i += 2) {
+            exchange.getResponseHeaders().add(headers[i], headers[i + 1]);
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    private static void respond(HttpExchange exchange, String json) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    /**
+     * Serves an announcement channel {@code ann}, whose messages are published however {@code crosspost} says, and
+     * other channels which messages can be sent to.
+     */
+    private static HttpServer announcements(List<String> requests, HttpHandler crosspost) throws IOException {
+        var server = server();
+        var messages = new AtomicInteger();
+        server.createContext("/api/channels/", exchange -> {
+            var path = exchange.getRequestURI().getPath();
+            requests.add(path);
+            if (path.endsWith("/crosspost")) {
+                crosspost.handle(exchange);
+            } else {
+                respond(exchange, "{\"id\": \"%d\"}".formatted(messages.incrementAndGet()));
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Sends posts one after another, through an announcement channel with channels {@code a} and {@code b} following it.
+     */
+    private static void announce(HttpServer server, int posts) {
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor();
+             var http = new DiscordHttp("token", "test", URI.create(url(server, "/api")), executor)) {
+            var sender = new MessageSender.Announcement(http, "ann", List.of(new MessageSender.Bot(http, "a"), new MessageSender.Bot(http, "b")));
+            for (int i = 0; i < posts; i++) {
+                sender.send("hello " + i, RateLimitedExecutor.DEFAULT_LANE).orTimeout(10, TimeUnit.SECONDS).join();
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void announcementsArePublished() throws IOException {
+        List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        var server = announcements(requests, exchange -> respond(exchange, "{}"));
+        announce(server, 2);
+        Assertions.assertEquals(List.of(
+                "/api/channels/ann/messages", "/api/channels/ann/messages/1/crosspost",
+                "/api/channels/ann/messages", "/api/channels/ann/messages/2/crosspost"), requests);
+    }
+
+    @Test
+    public void announcementsAreSentDirectlyOncePublishingIsLimited() throws IOException {
+        List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        var server = announcements(requests, exchange -> respond(exchange, 429, "Retry-After", "60", "X-RateLimit-Scope", "user"));
+        announce(server, 2);
+        // once we know we're limited, we don't try to publish until it's over
+        Assertions.assertEquals(List.of(
+                "/api/channels/ann/messages", "/api/channels/ann/messages/1/crosspost", "/api/channels/a/messages", "/api/channels/b/messages",
+                "/api/channels/ann/messages", "/api/channels/a/messages", "/api/channels/b/messages"), sorted(requests));
+    }
+
+    @Test
+    public void announcementsAreSentDirectlyIfPublishingFails() throws IOException {
+        List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        var server = announcements(requests, exchange -> respond(exchange, 403));
+        announce(server, 1);
+        Assertions.assertEquals(List.of(
+                "/api/channels/ann/messages", "/api/channels/ann/messages/1/crosspost", "/api/channels/a/messages", "/api/channels/b/messages"), sorted(requests));
+    }
+
+    /**
+     * @return the requests, with the fallback sends for each post (which go at once) in order
+     */
+    private static List<String> sorted(List<String> requests) {
+        List<String> sorted = new ArrayList<>();
+        List<String> fallbacks = new ArrayList<>();
+        for (var request : requests) {
+            if (request.startsWith("/api/channels/ann/") && !fallbacks.isEmpty()) {
+                fallbacks.sort(null);
+                sorted.addAll(fallbacks);
+                fallbacks.clear();
+            }
+            (request.startsWith("/api/channels/ann/") ? sorted : fallbacks).add(request);
+        }
+        fallbacks.sort(null);
+        sorted.addAll(fallbacks);
+        return sorted;
+    }
+
+    @Test
+    public void webhooksTakeTurns() throws IOException {
+        var server = server();
+        List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        server.createContext("/api/webhooks/", exchange -> {
+            requests.add(exchange.getRequestURI().getPath() + "?" + exchange.getRequestURI().getQuery());
+            respond(exchange, 204);
+        });
+        server.start();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor();
+             var http = new DiscordHttp("token", "test", executor)) {
+            var sender = new MessageSender.Webhook(http, List.of(url(server, "/api/webhooks/1/a"), url(server, "/api/webhooks/2/b")), false);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(sender.send("hello " + i, RateLimitedExecutor.DEFAULT_LANE));
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).orTimeout(10, TimeUnit.SECONDS).join();
+        } finally {
+            server.stop(0);
+        }
+        Assertions.assertEquals(4, requests.size());
+        Assertions.assertEquals(2, requests.stream().filter(r -> r.equals("/api/webhooks/1/a?wait=false")).count());
+        Assertions.assertEquals(2, requests.stream().filter(r -> r.equals("/api/webhooks/2/b?wait=false")).count());
+    }
+
+    @Test
+    public void webhookTokensArentRecorded(@TempDir Path directory) throws IOException {
+        var server = server();
+        server.createContext("/api/webhooks/", exchange -> respond(exchange, 204));
+        server.start();
+        var file = directory.resolve("webhook.jfr");
+        try (var recording = new Recording();
+             var executor = Executors.newVirtualThreadPerTaskExecutor();
+             var http = new DiscordHttp("token", "test", executor)) {
+            recording.enable("buskymore.DiscordSend").withThreshold(Duration.ZERO);
+            recording.enable("buskymore.RateLimitWait").withThreshold(Duration.ZERO);
+            recording.start();
+            new MessageSender.Webhook(http, List.of(url(server, "/api/webhooks/1/secret")), false)
+                    .send("hello", RateLimitedExecutor.DEFAULT_LANE).orTimeout(10, TimeUnit.SECONDS).join();
+            recording.stop();
+            recording.dump(file);
+        } finally {
+            server.stop(0);
+        }
+        var events = RecordingFile.readAllEvents(file).stream()
+                .filter(e -> e.getEventType().getName().startsWith("buskymore."))
+                .toList();
+        Assertions.assertEquals(2, events.size());
+        for (var event : events) {
+            Assertions.assertFalse(event.toString().contains("secret"), event::toString);
+        }
+        Assertions.assertEquals("1", events.stream().filter(e -> e.hasField("channel")).findFirst().orElseThrow().getString("channel"));
+    }
+
+    @Test
+    public void botSendsToTheApiUri() throws IOException {
+        var server = server();
+        List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        server.createContext("/api/", exchange -> {
+            requests.add(exchange.getRequestURI().getPath() + " " + exchange.getRequestHeaders().getFirst("Authorization"));
+            respond(exchange, 204);
+        });
+        server.start();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor();
+             var http = new DiscordHttp("token", "test", URI.create(url(server, "/api")), executor)) {
+            new MessageSender.Bot(http, "123").send("hello", RateLimitedExecutor.DEFAULT_LANE).orTimeout(10, TimeUnit.SECONDS).join();
+        } finally {
+            server.stop(0);
+        }
+        Assertions.assertEquals(List.of("/api/channels/123/messages Bot token"), requests);
+    }
+
+    @Test
+    public void rateLimitedWebhookSendsAreRetried() throws IOException {
+        var server = server();
+        var attempts = new AtomicInteger();
+        List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+        server.createContext("/api/webhooks/", exchange -> {
+            if (attempts.getAndIncrement() == 0) {
+                respond(exchange, 429, "Retry-After", "0.1", "X-RateLimit-Scope", "user");
+                return;
+            }
+            bodies.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            respond(exchange, 204, "X-RateLimit-Limit", "5", "X-RateLimit-Remaining", "4", "X-RateLimit-Reset-After", "1");
+        });
+        server.start();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor();
+             var http = new DiscordHttp("token", "test", executor)) {
+            var sender = new MessageSender.Webhook(http, List.of(url(server, "/api/webhooks/1/a")), false);
+            sender.send("hello", RateLimitedExecutor.DEFAULT_LANE).orTimeout(10, TimeUnit.SECONDS).join();
+        } finally {
+            server.stop(0);
+        }
+        Assertions.assertEquals(2, attempts.get());
+        Assertions.assertEquals(List.of("{\"content\":\"hello\"}"), bodies);
+    }
+}
@@ -0,0 +1,72 @@
+package com.williambl.buskymore.test;
+
+import com.williambl.buskymore.Metrics;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+
+public class MetricsTest {
+    @Test
+    public void countersHaveALinePerLabel() {
+        var counter = Metrics.counter("test_sends_total", "Sends", "bucket");
+        counter.inc("a");
+        counter.add(2, "a");
+        counter.inc("b\"c");
+        var scraped = Metrics.scrape();
+        Assertions.assertTrue(scraped.contains("# TYPE test_sends_total counter\n"), scraped);
+        Assertions.assertTrue(scraped.contains("test_sends_total{bucket=\"a\"} 3\n"), scraped);
+        Assertions.assertTrue(scraped.contains("test_sends_total{bucket=\"b\\\"c\"} 1\n"), scraped);
+        // registering again gives the same counter
+        Metrics.counter("test_sends_total", "Sends", "bucket").inc("a");
+        Assertions.assertTrue(Metrics.scrape().contains("test_sends_total{bucket=\"a\"} 4\n"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Metrics.histogram("test_sends_total", "Sends", "bucket"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> counter.inc("a", "b"));
+    }
+
+    @Test
+    public void histogramBucketsAreCumulative() {
+        var histogram = Metrics.histogram("test_latency_seconds", "Latency");
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(10));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        histogram.record(TimeUnit.MINUTES.toNanos(10));
+        var scraped = Metrics.scrape();
+        Assertions.assertTrue(scraped.contains("test_latency_seconds_bucket{le=\"6.5536E-5\"} 1\n"), scraped);
+        // 1ms is between 1.75 * 2^19 and 2^20 nanoseconds
+        Assertions.assertTrue(scraped.contains("test_latency_seconds_bucket{le=\"9.17504E-4\"} 1\n"), scraped);
+        Assertions.assertTrue(scraped.contains("test_latency_seconds_bucket{le=\"0.001048576\"} 3\n"), scraped);
+        Assertions.assertTrue(scraped.contains("test_latency_seconds_bucket{le=\"+Inf\"} 4\n"), scraped);
+        Assertions.assertTrue(scraped.contains("test_latency_seconds_count 4\n"), scraped);
+    }
+
+    @Test
+    public void histogramsCanHaveTheirOwnBuckets() {
+        var histogram = Metrics.histogram("test_age_seconds", "Age", Metrics.Histogram.bounds(30, 43));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+        histogram.record(TimeUnit.HOURS.toNanos(3));
+        var scraped = Metrics.scrape();
+        Assertions.assertTrue(scraped.contains("test_age_seconds_bucket{le=\"1.073741824\"} 1\n"), scraped);
+        // 3 hours still fits under the last bound, 2^44 nanoseconds
+        Assertions.assertTrue(scraped.contains("test_age_seconds_bucket{le=\"17592.186044416\"} 2\n"), scraped);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Metrics.histogram("test_age_seconds", "Age"));
+    }
+
+    @Test
+    public void servesMetrics()throws IOException, InterruptedException {
+        Metrics.gauge("test_queue_depth", "Queue depth", () -> 7);
+        var server = Metrics.serve(0);
+        try (var client = HttpClient.newHttpClient()) {
+            var response = client.send(HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/metrics")).build(), HttpResponse.BodyHandlers.ofString());
+            Assertions.assertEquals(200, response.statusCode());
+            Assertions.assertTrue(response.body().contains("test_queue_depth 7.0\n"), response.body());
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.williambl.buskymore.test;
+
+import com.williambl.buskymore.Outbox;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+public class OutboxTest {
+    private static List<URI> posts(int from, int to) {
+        return IntStream.range(from, to)
+                .mapToObj(i -> URI.create("at://did:plc:someone/app.bsky.feed.post/" + i))
+                .toList();
+    }
+
+    private static long segmentCount(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.toString().endsWith(".log")).count();
+        }
+    }
+
+    @Test
+    public void unackedEntriesArePendingAfterReopening(@TempDir Path directory) throws IOException {
+        List<Outbox.Entry> entries;
+        try (var outbox = new Outbox(directory)) {
+            Assertions.assertEquals(List.of(), outbox.pending());
+            entries = outbox.append("art", posts(0, 5));
+            // out of order: 0, 1 and 3 are acked, so the ack offset only gets to 2, and 3 is in the ack log
+            outbox.ack(entries.get(3));
+            outbox.ack(entries.get(0));
+            outbox.ack(entries.get(1));
+        }
+        try (var outbox = new Outbox(directory)) {
+            Assertions.assertEquals(List.of(entries.get(2), entries.get(4)), outbox.pending());
+            var more = outbox.append("cats", posts(5, 6));
+            Assertions.assertEquals(5, more.getFirst().offset());
+        }
+    }
+
+    @Test
+    public void cutOffLinesAreIgnored(@TempDir Path directory) throws IOException {
+        List<Outbox.Entry> entries;
+        try (var outbox = new Outbox(directory)) {
+            entries = outbox.append("art", posts(0, 2));
+        }
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.filter(path -> path.toString().endsWith(".log")).sorted().findFirst().orElseThrow();
+        }
+        Files.writeString(segment, "2\tart\tat://did:plc:some", StandardOpenOption.APPEND);
+        try (var outbox = new Outbox(directory)) {
+            Assertions.assertEquals(entries, outbox.pending());
+            Assertions.assertEquals(2, outbox.append("art", posts(2, 3)).getFirst().offset());
+        }
+    }
+
+    @Test
+    public void ackedSegmentsAreDeleted(@TempDir Path directory) throws IOException {
+        try (var outbox = new Outbox(directory, 1)) {
+            // every append fills a segment
+            var first = outbox.append("art", posts(0, 2));
+            var second = outbox.append("art", posts(2, 4));
+            Assertions.assertEquals(3, segmentCount(directory));
+            first.forEach(outbox::ack);
+            Assertions.assertEquals(2, segmentCount(directory));
+            second.forEach(outbox::ack);
+            Assertions.assertEquals(1, segmentCount(directory));
+        }
+        try (var outbox = new Outbox(directory, 1)) {
+            Assertions.assertEquals(List.of(), outbox.pending());
+        }
+    }
+
+    @Test
+    public void acksAboveTheAckOffsetSurviveReopening(@TempDir Path directory) throws IOException {
+        List<Outbox.Entry> entries;
+        try (var outbox = new Outbox(directory)) {
+            entries = outbox.append("art", posts(0, 4));
+            outbox.ack(entries.get(0));
+            outbox.ack(entries.get(2));
+            outbox.ack(entries.get(3));
+        }
+        try (var outbox = new Outbox(directory)) {
+            // 2 and 3 were sent, so aren't sent again
+            Assertions.assertEquals(List.of(entries.get(1)), outbox.pending());
+            outbox.ack(entries.get(1));
+        }
+        try (var outbox = new Outbox(directory)) {
+            Assertions.assertEquals(List.of(), outbox.pending());
+        }
+    }
+
+    @Test
+    public void entriesWhichKeepFailingAreGivenUpOn(@TempDir Path directory) throws IOException {
+        try (var outbox = new Outbox(directory, 1)) {
+            var stuck = outbox.append("art", posts(0, 1)).getFirst();
+            var sent = outbox.append("art", posts(1, 2)).getFirst();
+            outbox.ack(sent);
+            for (int i = 1; i < Outbox.MAX_ATTEMPTS; i++) {
+                Assertions.assertFalse(outbox.fail(stuck));
+                Assertions.assertEquals(List.of(stuck), outbox.takeRetries());
+            }
+            Assertions.assertTrue(outbox.fail(stuck));
+            Assertions.assertEquals(List.of(), outbox.takeRetries());
+            // the ack offset has moved past both, so their segments are gone
+            Assertions.assertEquals(1, segmentCount(directory));
+        }
+        Assertions.assertEquals(List.of("0\tart\tat://did:plc:someone/app.bsky.feed.post/0"), Files.readAllLines(directory.resolve("dead-letters")));
+        try (var outbox = new Outbox(directory, 1)) {
+            Assertions.assertEquals(List.of(), outbox.pending());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.williambl.buskymore.test;
+
+import com.williambl.buskymore.Post;
+import com.williambl.buskymore.PostFilter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static com.williambl.buskymore.PostFilter.Fisp.*;
+
+public class PostFilterTest {
+    private static final String SELF = "did:plc:self";
+    private static final Post OWN_POST = new Post(URI.create("at://did:plc:self/app.bsky.feed.post/1"), SELF, "hello", Instant.EPOCH, Optional.empty(), true, Set.of("art"), """
+            {"post": {"record": {"text": "hello", "facets": [{"$type": "link"}, {"$type": "mention"}]}}}
+            """);
+    private static final Post OTHER_REPOST = new Post(URI.create("at://did:plc:other/app.bsky.feed.post/2"), "did:plc:other", "hi", Instant.EPOCH, Optional.of("app.bsky.feed.defs#reasonRepost"), false, Set.of(), "{}");
+
+    @BeforeAll
+    public static void bootstrap() {
+        PostFilter.bootstrap();
+    }
+
+    @Test
+    public void builtInMacrosExpand() {
+        var filter = PostFilter.FUNCTIONS.build(parse("is_self_retweet"));
+        Assertions.assertTrue(filter.test(PostFilter.FilterContext.of(OWN_POST, SELF)));
+        Assertions.assertFalse(filter.test(PostFilter.FilterContext.of(OTHER_REPOST, SELF)));
+    }
+
+    @Test
+    public void userDefinedMacros() {
+        var functions = PostFilter.FUNCTIONS.derive();
+        functions.registerMacro("is_art", parse("all_of (has_embed) (labels_contains art)"));
+        functions.registerMacro("is_good", parse("either (is_art) (is_retweet)"));
+        functions.freeze();
+        var filter = functions.build(parse("is_good"));
+        Assertions.assertTrue(filter.test(PostFilter.FilterContext.of(OWN_POST)));
+        Assertions.assertTrue(filter.test(PostFilter.FilterContext.of(OTHER_REPOST)));
+        Assertions.assertFalse(functions.build(parse("is_art")).test(PostFilter.FilterContext.of(OTHER_REPOST)));
+    }
+
+    @Test
+    public void recursiveMacrosAreRejected() {
+        var functions = PostFilter.FUNCTIONS.derive();
+        functions.registerMacro("a", parse("not (b)"));
+        functions.registerMacro("b", parse("not (a)"));
+        Assertions.assertThrows(IllegalArgumentException.class, functions::freeze);
+    }
+
+    @Test
+    public void unknownFunctionsAreRejectedWhenLinking() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> PostFilter.FUNCTIONS.build(parse("all_of (has_embed) (has_embd)")));
+        var functions = PostFilter.FUNCTIONS.derive();
+        functions.registerMacro("typo", parse("not (is_retweeet)"));
+        Assertions.assertThrows(IllegalArgumentException.class, functions::freeze);
+        // selectors aren't calls
+        var filter = PostFilter.FUNCTIONS.build(parse("extract $ . post . (name record) . (text facets)"));
+        Assertions.assertTrue(filter.test(PostFilter.FilterContext.of(OWN_POST)));
+    }
+
+    @Test
+    public void frozenRegistryCannotBeModified() {
+        Assertions.assertThrows(IllegalStateException.class, () -> PostFilter.FUNCTIONS.registerMacro("x", parse("has_embed")));
+    }
+
+    @Test
+    public void wrappedFunctionsAreCalledByName() {
+        List<String> calls = new ArrayList<>();
+        var functions = PostFilter.FUNCTIONS.wrapped((name, func) -> (fisp, fs, context) -> {
+            calls.add(name);
+            return func.apply(fisp, fs, context);
+        });
+        var filter = functions.build(parse("all_of (is_self_retweet) (extract $ . post . record . facets . * . $type)"));
+        Assertions.assertTrue(filter.test(PostFilter.FilterContext.of(OWN_POST, SELF)));
+        Assertions.assertEquals(List.of("all_of", "any_of", "not", "reason_is", "extract"), calls);
+    }
+
+    @Test
+    public void extract() {
+        var expression = PostFilter.FUNCTIONS.link(parse("extract $ . post . record . facets . * . $type"));
+        Assertions.assertEquals(arr(str("link"), str("mention")), PostFilter.FUNCTIONS.eval(expression, PostFilter.FilterContext.of(OWN_POST)));
+        Assertions.assertEquals(arr(), PostFilter.FUNCTIONS.eval(expression, PostFilter.FilterContext.of(OTHER_REPOST)));
+    }
+
+    @Test
+    public void regexes() {
+        var filter = PostFilter.FUNCTIONS.build(parse("contains_regex \"^h.l+o$\""));
+        Assertions.assertTrue(filter.test(PostFilter.FilterContext.of(OWN_POST)));
+        Assertions.assertFalse(filter.test(PostFilter.FilterContext.of(OTHER_REPOST)));
+        // a regex worked out from the post is compiled when it's evaluated
+        var dynamic = PostFilter.FUNCTIONS.build(parse("contains_regex (extract $ . post . record . text)"));
+        Assertions.assertTrue(dynamic.test(PostFilter.FilterContext.of(OWN_POST)));
+        // a constant one is compiled when it's linked, so a broken one is caught there
+        Assertions.assertThrows(IllegalArgumentException.class, () -> PostFilter.FUNCTIONS.link(parse("contains_regex \"(unclosed\"")));
+    }
+
+    @Test
+    public void extractWithFilterSelector() {
+        var filter = PostFilter.FUNCTIONS.build(parse("not (extract \"$.post.record.facets[?@.$type == 'link']\")"));
+        Assertions.assertFalse(filter.test(PostFilter.FilterContext.of(OWN_POST)));
+        Assertions.assertTrue(filter.test(PostFilter.FilterContext.of(OTHER_REPOST)));
+    }
+}
@@ -0,0 +1,212 @@
+package com.williambl.buskymore.test;
+
+import com.williambl.buskymore.RateLimitedExecutor;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RateLimitedExecutorTest {
+    @Test
+    public void routesKeepOrderAndRunInParallel() throws InterruptedException {
+        try (var taskExecutor = Executors.newVirtualThreadPerTaskExecutor();
+             var executor = new RateLimitedExecutor(1000, Duration.ofSeconds(1), 10, taskExecutor)) {
+            var a = new RateLimitedExecutor.Route("channels/{channel.id}/messages", "a");
+            var b = new RateLimitedExecutor.Route("channels/{channel.id}/messages", "b");
+            List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+            var blockA = new CountDownLatch(1);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    blockA.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                order.add(0);
+            }, executor.forRoute(a)));
+            for (int i = 1; i < 5; i++) {
+                int n = i;
+                futures.add(CompletableFuture.runAsync(() -> order.add(n), executor.forRoute(a)));
+            }
+            // b isn't held up by a
+            CompletableFuture.runAsync(() -> {}, executor.forRoute(b)).orTimeout(5, TimeUnit.SECONDS).join();
+            blockA.countDown();
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).orTimeout(5, TimeUnit.SECONDS).join();
+            Assertions.assertEquals(List.of(0, 1, 2, 3, 4), order);
+        }
+    }
+
+    @Test
+    public void retriesKeepTheirPlace() {
+        try (var taskExecutor = Executors.newVirtualThreadPerTaskExecutor();
+             var executor = new RateLimitedExecutor(1000, Duration.ofSeconds(1), 10, taskExecutor)) {
+            var a = new RateLimitedExecutor.Route("channels/{channel.id}/messages", "a");
+            var b = new RateLimitedExecutor.Route("channels/{channel.id}/messages", "b");
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            var done = new CompletableFuture<Void>();
+            executor.forRoute(a).execute(new Runnable() {
+                private boolean limited = true;
+
+                @Override
+                public void run() {
+                    if (this.limited) {
+                        // like a 429: a's bucket is exhausted for a bit, and this goes back to the front
+                        this.limited = false;
+                        executor.markRateLimited(a, Instant.now().plusMillis(200), false);
+                        executor.retry(a, this);
+                    } else {
+                        order.add("first");
+                    }
+                }
+            });
+            executor.forRoute(a).execute(() -> {
+                order.add("second");
+                done.complete(null);
+            });
+            // b isn't held up by a's limit
+            CompletableFuture.runAsync(() -> order.add("b"), executor.forRoute(b)).orTimeout(5, TimeUnit.SECONDS).join();
+            done.orTimeout(5, TimeUnit.SECONDS).join();
+            Assertions.assertEquals(List.of("b", "first", "second"), order);
+        }
+    }
+
+    @Test
+    public void lanesTakeTurns() throws InterruptedException {
+        try (var taskExecutor = Executors.newVirtualThreadPerTaskExecutor();
+             var executor = new RateLimitedExecutor(1000, Duration.ofSeconds(1), 10, taskExecutor)) {
+            var route = new RateLimitedExecutor.Route("channels/{channel.id}/messages", "a");
+            var heavy = new RateLimitedExecutor.Lane("heavy", 1, false);
+            var light = new RateLimitedExecutor.Lane("light", 2, false);
+            var fresh = new RateLimitedExecutor.Lane("heavy", 1, true);
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            var started = new CountDownLatch(1);
+            var block = new CountDownLatch(1);
+            // hold the route up until everything's queued
+            executor.forRoute(route).execute(() -> {
+                started.countDown();
+                try {
+                    block.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                order.add("block");
+            });
+            started.await(5, TimeUnit.SECONDS);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                String n = Integer.toString(i);
+                futures.add(CompletableFuture.runAsync(() -> order.add("h" + n), executor.forRoute(route, heavy)));
+            }
+            for (int i = 0; i < 4; i++) {
+                String n = Integer.toString(i);
+                futures.add(CompletableFuture.runAsync(() -> order.add("l" + n), executor.forRoute(route, light)));
+            }
+            futures.add(CompletableFuture.runAsync(() -> order.add("fresh"), executor.forRoute(route, fresh)));
+            block.countDown();
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).orTimeout(5, TimeUnit.SECONDS).join();
+            // the light lane gets two turns to the heavy lane's one, and the fresh task goes ahead of both
+            Assertions.assertEquals(List.of("block", "fresh", "h0", "l0", "l1", "h1", "l2", "l3", "h2", "h3"), order);
+        }
+    }
+
+    @Test
+    public void bucketsKeepTheirWindowWhenResponsesDontSay() {
+        try (var taskExecutor = Executors.newVirtualThreadPerTaskExecutor();
+             var executor = new RateLimitedExecutor(1000, Duration.ofSeconds(1), taskExecutor)) {
+            var a = new RateLimitedExecutor.Route("channels/{channel.id}/messages", "a");
+            executor.updateLimits(a, null, 2, 0, Duration.ofMillis(200));
+            // none of these responses tell us anything, so after the reset we can only assume the same window again
+            List<Long> started = Collections.synchronizedList(new ArrayList<>());
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                futures.add(CompletableFuture.runAsync(() -> started.add(System.nanoTime()), executor.forRoute(a)));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).orTimeout(5, TimeUnit.SECONDS).join();
+            Assertions.assertTrue(Duration.ofNanos(started.get(2) - started.get(0)).toMillis() >= 150, "third task went in the first window");
+        }
+    }
+
+    @Test
+    public void knowsWhenRoutesAreLimited() {
+        try (var taskExecutor = Executors.newVirtualThreadPerTaskExecutor();
+             var executor = new RateLimitedExecutor(1000, Duration.ofSeconds(1), taskExecutor)) {
+            var a = new RateLimitedExecutor.Route("channels/{channel.id}/messages/{message.id}/crosspost", "a");
+            var b = new RateLimitedExecutor.Route("channels/{channel.id}/messages/{message.id}/crosspost", "b");
+            Assertions.assertFalse(executor.isLimited(a));
+            executor.markRateLimited(a, Instant.now().plusSeconds(60), false);
+            Assertions.assertTrue(executor.isLimited(a));
+            Assertions.assertFalse(executor.isLimited(b));
+            executor.markRateLimited(b, Instant.now().plusSeconds(60), true);
+            Assertions.assertTrue(executor.isLimited(b));
+        }
+    }
+
+    @Test
+    public void limitsConcurrency() {
+        var limit = new RateLimitedExecutor.ConcurrencyLimit(2, 1, 10);
+        try (var taskExecutor = Executors.newVirtualThreadPerTaskExecutor();
+             var executor = new RateLimitedExecutor(1000, Duration.ofSeconds(1), 10, limit, taskExecutor)) {
+            var running = new AtomicInteger();
+            var maxRunning = new AtomicInteger();
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(CompletableFuture.runAsync(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    running.decrementAndGet();
+                }, executor.forRoute(new RateLimitedExecutor.Route("r", Integer.toString(i)))));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).orTimeout(5, TimeUnit.SECONDS).join();
+            Assertions.assertEquals(2, maxRunning.get());
+        }
+    }
+
+    @Test
+    public void concurrencyLimitAdapts() {
+        var limit = new RateLimitedExecutor.ConcurrencyLimit(2, 1, 10);
+        try (var taskExecutor = Executors.newVirtualThreadPerTaskExecutor();
+             var executor = new RateLimitedExecutor(1000, Duration.ofSeconds(1), 10, limit, taskExecutor)) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(CompletableFuture.runAsync(() -> limit.sample(TimeUnit.MILLISECONDS.toNanos(1), false),
+                        executor.forRoute(new RateLimitedExecutor.Route("r", Integer.toString(i)))));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).orTimeout(5, TimeUnit.SECONDS).join();
+            // healthy tasks using the whole limit push it up, to the max at most
+            int grown = limit.limit();
+            Assertions.assertTrue(grown > 2 && grown <= 10, "limit is " + grown);
+            // a 429 halves it
+            limit.sample(TimeUnit.MILLISECONDS.toNanos(1), true);
+            Assertions.assertEquals(grown / 2, limit.limit());
+        }
+    }
+
+    @Test
+    public void pacesTasks() {
+        try (var taskExecutor = Executors.newVirtualThreadPerTaskExecutor();
+             var executor = new RateLimitedExecutor(100, Duration.ofSeconds(1), 5, taskExecutor)) {
+            long start = System.nanoTime();
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 25; i++) {
+                futures.add(CompletableFuture.runAsync(() -> {}, executor.forRoute(new RateLimitedExecutor.Route("r", Integer.toString(i)))));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).orTimeout(5, TimeUnit.SECONDS).join();
+            // a burst of 5, then 20 more at 10ms apart
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Assertions.assertTrue(millis >= 190, "took " + millis + "ms");
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.williambl.buskymore.test;
+
+import com.williambl.buskymore.TaskScope;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+public class TaskScopeTest {
+    @Test
+    public void subtasksGiveTheirResults() throws InterruptedException, ExecutionException {
+        try (var scope = new TaskScope("test", true)) {
+            var a = scope.fork(() -> 1);
+            var b = scope.fork(() -> 2);
+            scope.join().throwIfFailed();
+            Assertions.assertEquals(3, a.get() + b.get());
+        }
+    }
+
+    @Test
+    public void failureCancelsSiblings() throws InterruptedException {
+        var started = new CountDownLatch(1);
+        TaskScope.Subtask<Void> slow;
+        try (var scope = new TaskScope("test", true)) {
+            slow = scope.fork(() -> {
+                started.countDown();
+                Thread.sleep(Duration.ofMinutes(1));
+                return null;
+            });
+            scope.fork(() -> {
+                started.await();
+                throw new IllegalStateException("broken");
+            });
+            scope.join();
+            var e = Assertions.assertThrows(ExecutionException.class, scope::throwIfFailed);
+            Assertions.assertInstanceOf(IllegalStateException.class, e.getCause());
+        }
+        Assertions.assertEquals(TaskScope.State.CANCELLED, slow.state());
+    }
+
+    @Test
+    public void failureDoesntCancelSiblingsUnlessFailingFast() throws InterruptedException, ExecutionException {
+        try (var scope = new TaskScope("test", false)) {
+            var failed = scope.fork(() -> {
+                throw new IllegalStateException("broken");
+            });
+            var fine = scope.fork(() -> {
+                Thread.sleep(50);
+                return "fine";
+            });
+            scope.join().throwIfFailed();
+            Assertions.assertEquals(TaskScope.State.FAILED, failed.state());
+            Assertions.assertEquals("fine", fine.get());
+        }
+    }
+
+    @Test
+    public void deadlineCancelsEverything() throws InterruptedException {
+        TaskScope.Subtask<Void> slow;
+        long start = System.nanoTime();
+        try (var scope = new TaskScope("test", true)) {
+            slow = scope.fork(() -> {
+                Thread.sleep(Duration.ofMinutes(1));
+                return null;
+            });
+            Assertions.assertThrows(TimeoutException.class, () -> scope.joinUntil(Instant.now().plusMillis(100)));
+            Assertions.assertTrue(scope.isShutdown());
+        }
+        Assertions.assertEquals(TaskScope.State.CANCELLED, slow.state());
+        Assertions.assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(10)) < 0);
+    }
+}